@@ -0,0 +1,92 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the scalar ColumnKernels with the SIMD VectorKernels on one chunk
+ * of rows. Needs the src-vector source root and the incubator module, which
+ * the fork adds itself.
+ * @author Jo Desmet
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class ColumnKernelsBenchmark {
+  @Param({ "scalar", "vector" })
+  public String kernels;
+
+  @Param({ "ADD", "MUL", "DIV", "LT" })
+  public BinaryOperatorType operator;
+
+  private ColumnKernels columnKernels;
+  private final double [] left = new double[BatchEvaluator.CHUNK_SIZE];
+  private final double [] right = new double[BatchEvaluator.CHUNK_SIZE];
+  private final double [] doubles = new double[BatchEvaluator.CHUNK_SIZE];
+  private final long [] longs = new long[BatchEvaluator.CHUNK_SIZE];
+
+  @Setup
+  public void setUp() {
+    columnKernels = kernels.equals("vector") ? new VectorKernels() : new ColumnKernels();
+    Random random = new Random(42);
+    for (int i = 0; i < left.length; i++) {
+      left[i] = random.nextDouble() * 1000.0;
+      right[i] = random.nextDouble() * 1000.0 + 1.0;
+    }
+  }
+
+  @Benchmark
+  public void chunk(Blackhole blackhole) {
+    if (columnKernels.apply(operator,left,right,doubles,left.length)) {
+      blackhole.consume(doubles);
+    } else {
+      columnKernels.test(operator,left,right,longs,left.length);
+      blackhole.consume(longs);
+    }
+  }
+
+  @Benchmark
+  public void abs(Blackhole blackhole) {
+    columnKernels.apply("abs",left,doubles,left.length);
+    blackhole.consume(doubles);
+  }
+}
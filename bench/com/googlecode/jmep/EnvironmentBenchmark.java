@@ -0,0 +1,76 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures resolving the operators of the default Environments, which happens
+ * when an Environment is first used and after every registration. Besides the
+ * plain resolve, the cost of creating an Environment from scratch is measured.
+ * @author Jo Desmet
+ * @see ExpressionBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+  @Param({ "BASIC", "FINANCIAL" })
+  public Expression.OperationalMode mode;
+
+  private Environment environment;
+
+  @Setup
+  public void setUp() {
+    environment = Environment.getInstance(mode);
+  }
+
+  @Benchmark
+  public Environment resolve() {
+    environment.resolve();
+    return environment;
+  }
+
+  @Benchmark
+  public Environment create() {
+    Environment created = Environment.getInstance(mode);
+    created.resolve();
+    return created;
+  }
+}
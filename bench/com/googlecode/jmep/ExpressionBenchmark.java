@@ -0,0 +1,131 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.DoubleVariable;
+import com.googlecode.jmep.function.LongVariable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures compiling and evaluating expressions over a corpus of formulas:
+ * numeric, string, BigDecimal (in the financial Environment), deeply nested and
+ * using many variables. Every benchmark reports throughput and, through the
+ * sampling mode, latency percentiles. The allocation rate is reported by adding
+ * the GC profiler, for example:<p>
+ * <code>java -jar benchmarks.jar ExpressionBenchmark -prof gc</code><p>
+ *
+ * The benchmarks are built into <code>dist/benchmarks.jar</code> by the bench
+ * target of build.xml, given the JMH jars in the jmh.classpath property.
+ * @author Jo Desmet
+ * @see EnvironmentBenchmark
+ * @see ColumnKernelsBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+  private static final int VARIABLES = 50;
+  private static final int NESTING = 40;
+
+  @Param({ "numeric", "functions", "string", "bigdecimal", "nested", "variables" })
+  public String corpus;
+
+  @Param({ "INTERPRETED", "BYTECODE", "TREE" })
+  public Expression.CompileMode compileMode;
+
+  private Environment environment;
+  private String text;
+  private Expression expression;
+  private double x = 1.25;
+  private long n = 7;
+
+  @Setup
+  public void setUp() throws ExpressionException {
+    environment = Environment.getInstance(corpus.equals("bigdecimal")
+            ? Expression.OperationalMode.FINANCIAL : Expression.OperationalMode.BASIC);
+    environment.addVariable("x", (DoubleVariable)() -> x);
+    environment.addVariable("n", (LongVariable)() -> n);
+    environment.addConstant("name", "jmep");
+    for (int i = 0; i < VARIABLES; i++) {
+      final long value = i;
+      environment.addVariable("v"+i, (LongVariable)() -> value + n);
+    }
+    text = formula(corpus);
+    expression = new Expression(text, environment).compile(compileMode);
+  }
+
+  static String formula(String corpus) {
+    switch (corpus) {
+      case "numeric": return "x*x + 3*x - n*x/7 + (n > 3 and x < 2)";
+      case "functions": return "sin(x)*cos(x) + abs(x - n) + floor(x*10)/10";
+      case "string": return "name + \" \" + name*n < \"jmep jmep\"";
+      case "bigdecimal": return "1000000000000000000000 * n + 0.25 * n - 3";
+      case "nested": {
+        StringBuilder builder = new StringBuilder("x");
+        for (int i = 0; i < NESTING; i++) builder.insert(0, "(").append(i % 2 == 0 ? "+n)" : "*0.5)");
+        return builder.toString();
+      }
+      case "variables": {
+        StringBuilder builder = new StringBuilder("v0");
+        for (int i = 1; i < VARIABLES; i++) builder.append(i % 3 == 0 ? "-v" : "+v").append(i);
+        return builder.toString();
+      }
+      default: throw new IllegalArgumentException(corpus);
+    }
+  }
+
+  /*
+   * Tokenizing, compiling to RPN and optimizing, as done by the constructor.
+   */
+  @Benchmark
+  public Expression construct() throws ExpressionException {
+    return new Expression(text, environment);
+  }
+
+  @Benchmark
+  public Object evaluate() throws ExpressionException {
+    return expression.evaluate();
+  }
+
+  @Benchmark
+  public double evaluateAsDouble() throws ExpressionException {
+    if (corpus.equals("string") || corpus.equals("bigdecimal")) return 0.0;
+    return expression.evaluateAsDouble();
+  }
+}
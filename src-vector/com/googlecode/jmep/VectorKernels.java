@@ -0,0 +1,128 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the ColumnKernels, using the incubating Vector API. This
+ * class lives in its own source root, since it needs to be compiled and run
+ * with <code>--add-modules jdk.incubator.vector</code>. It is picked up at
+ * runtime when present, otherwise the scalar loops remain in use.<p>
+ *
+ * The species is the preferred one of the platform, so the same build uses
+ * AVX-512 where available and narrower registers elsewhere. The Vector API has
+ * no rounding operations, so floor and ceil keep the scalar loops.
+ * @author Jo Desmet
+ */
+final class VectorKernels extends ColumnKernels {
+  private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Long> LONGS = VectorSpecies.of(long.class,DOUBLES.vectorShape());
+
+  @Override
+  boolean isAccelerated() {
+    return DOUBLES.length() > 1;
+  }
+
+  @Override
+  boolean apply(BinaryOperatorType type,double [] left,double [] right,double [] result,int rows) {
+    int bound = DOUBLES.loopBound(rows);
+    int i = 0;
+    switch (type) {
+      case ADD:
+        for (; i < bound; i += DOUBLES.length()) {
+          DoubleVector.fromArray(DOUBLES,left,i).add(DoubleVector.fromArray(DOUBLES,right,i)).intoArray(result,i);
+        }
+        for (; i < rows; i++) result[i] = left[i] + right[i];
+        return true;
+      case SUB:
+        for (; i < bound; i += DOUBLES.length()) {
+          DoubleVector.fromArray(DOUBLES,left,i).sub(DoubleVector.fromArray(DOUBLES,right,i)).intoArray(result,i);
+        }
+        for (; i < rows; i++) result[i] = left[i] - right[i];
+        return true;
+      case MUL:
+        for (; i < bound; i += DOUBLES.length()) {
+          DoubleVector.fromArray(DOUBLES,left,i).mul(DoubleVector.fromArray(DOUBLES,right,i)).intoArray(result,i);
+        }
+        for (; i < rows; i++) result[i] = left[i] * right[i];
+        return true;
+      case DIV:
+        for (; i < bound; i += DOUBLES.length()) {
+          DoubleVector.fromArray(DOUBLES,left,i).div(DoubleVector.fromArray(DOUBLES,right,i)).intoArray(result,i);
+        }
+        for (; i < rows; i++) result[i] = left[i] / right[i];
+        return true;
+      default:
+        return super.apply(type,left,right,result,rows);
+    }
+  }
+
+  @Override
+  boolean test(BinaryOperatorType type,double [] left,double [] right,long [] result,int rows) {
+    VectorOperators.Comparison comparison;
+    switch (type) {
+      case LT: comparison = VectorOperators.LT; break;
+      case GT: comparison = VectorOperators.GT; break;
+      case LE: comparison = VectorOperators.LE; break;
+      case GE: comparison = VectorOperators.GE; break;
+      default: return super.test(type,left,right,result,rows);
+    }
+    LongVector zero = LongVector.zero(LONGS);
+    int bound = DOUBLES.loopBound(rows);
+    int i = 0;
+    for (; i < bound; i += DOUBLES.length()) {
+      VectorMask<Double> mask = DoubleVector.fromArray(DOUBLES,left,i).compare(comparison,DoubleVector.fromArray(DOUBLES,right,i));
+      zero.blend(1L,mask.cast(LONGS)).intoArray(result,i);
+    }
+    for (; i < rows; i++) {
+      boolean value;
+      switch (type) {
+        case LT: value = left[i] < right[i]; break;
+        case GT: value = left[i] > right[i]; break;
+        case LE: value = left[i] <= right[i]; break;
+        default: value = left[i] >= right[i];
+      }
+      result[i] = value ? 1L : 0L;
+    }
+    return true;
+  }
+
+  @Override
+  boolean apply(String function,double [] operand,double [] result,int rows) {
+    if (!function.equals("abs")) return super.apply(function,operand,result,rows);
+    int bound = DOUBLES.loopBound(rows);
+    int i = 0;
+    for (; i < bound; i += DOUBLES.length()) {
+      DoubleVector.fromArray(DOUBLES,operand,i).abs().intoArray(result,i);
+    }
+    for (; i < rows; i++) result[i] = Math.abs(operand[i]);
+    return true;
+  }
+}
@@ -8,8 +8,13 @@ package com.googlecode.jmep;
 
 import static com.googlecode.jmep.BinaryOperatorType.*;
 import static com.googlecode.jmep.UnaryOperatorType.*;
+import com.googlecode.jmep.function.DoubleBinaryOperator;
+import com.googlecode.jmep.function.DoubleBinaryPredicate;
+import com.googlecode.jmep.function.DoubleUnaryOperator;
+import com.googlecode.jmep.function.LongBinaryOperator;
+import com.googlecode.jmep.function.LongBinaryPredicate;
+import com.googlecode.jmep.function.LongUnaryOperator;
 import java.math.BigDecimal;
-import java.util.Objects;
 
 /**
  * This class defines the basic operating mode. It does so by implementing all operators
@@ -41,64 +46,66 @@ public class BasicEnvironment extends Environment {
     });
     
     // Register Double cases
-    register(POW,Double.class, Double.class, Math::pow);
-    register(MUL,Double.class, Double.class, (t,u)->t * u);
-    register(DIV,Double.class, Double.class, (t,u)->t / u);
-    register(ADD,Double.class, Double.class, (t,u)->t + u);
-    register(SUB,Double.class, Double.class, (t,u)->t - u);
-    register(LT,Double.class, Double.class, (t,u)->(t < u) ? 1L : 0L);
-    register(GT,Double.class, Double.class, (t,u)->((t > u) ? 1L : 0L));
-    register(LE,Double.class, Double.class, (t,u)->((t <= u) ? 1L : 0L));
-    register(GE,Double.class, Double.class, (t,u)->((t >= u) ? 1L : 0L));
+    register(POW,Double.class, Double.class, (DoubleBinaryOperator)Math::pow);
+    register(MUL,Double.class, Double.class, (DoubleBinaryOperator)(t,u)->t * u);
+    register(DIV,Double.class, Double.class, (DoubleBinaryOperator)(t,u)->t / u);
+    register(ADD,Double.class, Double.class, (DoubleBinaryOperator)(t,u)->t + u);
+    register(SUB,Double.class, Double.class, (DoubleBinaryOperator)(t,u)->t - u);
+    register(LT,Double.class, Double.class, (DoubleBinaryPredicate)(t,u)->t < u);
+    register(GT,Double.class, Double.class, (DoubleBinaryPredicate)(t,u)->t > u);
+    register(LE,Double.class, Double.class, (DoubleBinaryPredicate)(t,u)->t <= u);
+    register(GE,Double.class, Double.class, (DoubleBinaryPredicate)(t,u)->t >= u);
 
     // Register other
     register(ADD,BigDecimal.class, BigDecimal.class, (t,u)->t.add(u));
     
     // Register Unary Operators on Double
-    register(PLS,Double.class, (t)->t);
-    register(MIN,Double.class, (t)->-t);
+    register(PLS,Double.class, (DoubleUnaryOperator)(t)->t);
+    register(MIN,Double.class, (DoubleUnaryOperator)(t)->-t);
     
     // Register Upgrade Conversions
     register(Long.class, BigDecimal.class, (t) -> new BigDecimal(t));
-    register(Long.class, Double.class, (t) -> new Double(t));
+    register(Long.class, Double.class, (LongToDoubleConversion)(t) -> (double)t);
+    
+    markDefaults();
   }
   
   final static void implementDefaultDouble(Environment env) {
     env.addConstant("e", Math.E);
     env.addConstant("pi", Math.PI);
-    env.addFunction("sin", (Object [] p)->Math.sin(((Number)p[0]).doubleValue()));
-    env.addFunction("cos", (Object [] p)->Math.cos(((Number)p[0]).doubleValue()));
-    env.addFunction("exp", (Object [] p)->Math.exp(((Number)p[0]).doubleValue()));
-    env.addFunction("tan", (Object [] p)->Math.tan(((Number)p[0]).doubleValue()));
-    env.addFunction("abs", (Object [] p)->Math.abs(((Number)p[0]).doubleValue()));
-    env.addFunction("log", (Object [] p)->Math.log(((Number)p[0]).doubleValue()));
-    env.addFunction("floor", (Object [] p)->Math.floor(((Number)p[0]).doubleValue()));
-    env.addFunction("ceil", (Object [] p)->Math.ceil(((Number)p[0]).doubleValue()));
-    env.addFunction("round", (Object [] p)->Math.round(((Number)p[0]).doubleValue()));
+    env.addFunction("sin", Double.class, (Object [] p)->Math.sin(((Number)p[0]).doubleValue()));
+    env.addFunction("cos", Double.class, (Object [] p)->Math.cos(((Number)p[0]).doubleValue()));
+    env.addFunction("exp", Double.class, (Object [] p)->Math.exp(((Number)p[0]).doubleValue()));
+    env.addFunction("tan", Double.class, (Object [] p)->Math.tan(((Number)p[0]).doubleValue()));
+    env.addFunction("abs", Double.class, (Object [] p)->Math.abs(((Number)p[0]).doubleValue()));
+    env.addFunction("log", Double.class, (Object [] p)->Math.log(((Number)p[0]).doubleValue()));
+    env.addFunction("floor", Double.class, (Object [] p)->Math.floor(((Number)p[0]).doubleValue()));
+    env.addFunction("ceil", Double.class, (Object [] p)->Math.ceil(((Number)p[0]).doubleValue()));
+    env.addFunction("round", Long.class, (Object [] p)->Math.round(((Number)p[0]).doubleValue()));
   }
   
   final static void implementDefaultLong(Environment env) {
     // Binary on Long-Long
-    env.register(MOD,Long.class, Long.class, (t,u)->t % u);
-    env.register(ADD,Long.class, Long.class, (t,u)->t + u);
-    env.register(SUB,Long.class, Long.class, (t,u)->t - u);
-    env.register(MUL,Long.class, Long.class, (t,u)->t * u);
-    env.register(LT,Long.class, Long.class, (t,u)->(t < u) ? 1L : 0L);
-    env.register(GT,Long.class, Long.class, (t,u)->((t > u) ? 1L : 0L));
-    env.register(LE,Long.class, Long.class, (t,u)->((t <= u) ? 1L : 0L));
-    env.register(GE,Long.class, Long.class, (t,u)->((t >= u) ? 1L : 0L));
-    env.register(NE,Long.class, Long.class, (t,u)->((!Objects.equals(t, u)) ? 1L : 0L));
-    env.register(EQ,Long.class, Long.class, (t,u)->((Objects.equals(t, u)) ? 1L : 0L));
-    env.register(AND,Long.class, Long.class, (t,u)->(t & u));
-    env.register(XOR,Long.class, Long.class, (t,u)->(t ^ u));
-    env.register(OR,Long.class, Long.class, (t,u)->(t | u));
-    env.register(LAND,Long.class, Long.class, (t,u)->(((t != 0L) && (u != 0L)) ? 1L : 0L));
-    env.register(LOR,Long.class, Long.class, (t,u)->(((t != 0L) || (u != 0L)) ? 1L : 0L));
+    env.register(MOD,Long.class, Long.class, (LongBinaryOperator)(t,u)->t % u);
+    env.register(ADD,Long.class, Long.class, (LongBinaryOperator)(t,u)->t + u);
+    env.register(SUB,Long.class, Long.class, (LongBinaryOperator)(t,u)->t - u);
+    env.register(MUL,Long.class, Long.class, (LongBinaryOperator)(t,u)->t * u);
+    env.register(LT,Long.class, Long.class, (LongBinaryPredicate)(t,u)->t < u);
+    env.register(GT,Long.class, Long.class, (LongBinaryPredicate)(t,u)->t > u);
+    env.register(LE,Long.class, Long.class, (LongBinaryPredicate)(t,u)->t <= u);
+    env.register(GE,Long.class, Long.class, (LongBinaryPredicate)(t,u)->t >= u);
+    env.register(NE,Long.class, Long.class, (LongBinaryPredicate)(t,u)->t != u);
+    env.register(EQ,Long.class, Long.class, (LongBinaryPredicate)(t,u)->t == u);
+    env.register(AND,Long.class, Long.class, (LongBinaryOperator)(t,u)->(t & u));
+    env.register(XOR,Long.class, Long.class, (LongBinaryOperator)(t,u)->(t ^ u));
+    env.register(OR,Long.class, Long.class, (LongBinaryOperator)(t,u)->(t | u));
+    env.register(LAND,Long.class, Long.class, (LongBinaryPredicate)(t,u)->(t != 0L) && (u != 0L));
+    env.register(LOR,Long.class, Long.class, (LongBinaryPredicate)(t,u)->(t != 0L) || (u != 0L));
     // Unary on Long
-    env.register(PLS,Long.class, (t)->t);
-    env.register(MIN,Long.class, (t)->-t);
-    env.register(NOT,Long.class, (t)->((t==0L) ? 1L : 0L));
-    env.register(INV,Long.class, (t)->~t);
+    env.register(PLS,Long.class, (LongUnaryOperator)(t)->t);
+    env.register(MIN,Long.class, (LongUnaryOperator)(t)->-t);
+    env.register(NOT,Long.class, (LongUnaryOperator)(t)->((t==0L) ? 1L : 0L));
+    env.register(INV,Long.class, (LongUnaryOperator)(t)->~t);
   }
   
   final static void implementDefaultString(Environment env) {
@@ -0,0 +1,527 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.BinaryOperator;
+import com.googlecode.jmep.function.DoubleBinaryOperator;
+import com.googlecode.jmep.function.DoubleBinaryPredicate;
+import com.googlecode.jmep.function.DoubleUnaryOperator;
+import com.googlecode.jmep.function.DoubleVariable;
+import com.googlecode.jmep.function.LongBinaryOperator;
+import com.googlecode.jmep.function.LongBinaryPredicate;
+import com.googlecode.jmep.function.LongUnaryOperator;
+import com.googlecode.jmep.function.LongVariable;
+import com.googlecode.jmep.function.UnaryOperator;
+import com.googlecode.jmep.function.Variable;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Evaluates the RPN Stack over columns of rows rather than one row at a time.
+ * Every slot of the result stack holds a chunk of rows, and every token is
+ * applied once to the whole chunk. As long as the implementations found in the
+ * Environment are primitive specializations, an operator becomes a tight loop
+ * over primitive arrays, much like the PrimitiveEvaluator does for a single
+ * row.<p>
+ *
+ * Any other implementation is applied row by row on boxed operands. This also
+ * covers implementations whose result type depends on the values, such as the
+ * Long division that returns a Double when the division is not exact. After such
+ * an operator the chunk falls back to Long or Double columns when all the rows
+ * agree, and otherwise keeps boxed rows, each dispatched on its own type.<p>
+ *
+ * The default Double operators, and the abs, floor and ceil functions, go
+ * through the ColumnKernels, which may use SIMD instructions.<p>
+ *
+ * A jump is taken for the whole chunk when all rows agree on it. Otherwise
+ * every row continues on its own from the jump, so that each row only evaluates
+ * the operands and branches it needs.<p>
+ *
+ * Variables that are not bound to a column are read once per chunk. An
+ * evaluator keeps state for a single batch, so it is used by one thread only.
+ * @author Jo Desmet
+ */
+final class BatchEvaluator {
+  static final int CHUNK_SIZE = 1024;
+  private static final byte LONG = PrimitiveEvaluator.LONG;
+  private static final byte DOUBLE = PrimitiveEvaluator.DOUBLE;
+  private static final byte OBJECT = PrimitiveEvaluator.OBJECT;
+
+  private final Token [] program;
+  private final Object [] inputs;
+  private final Environment environment;
+  private final Column [] stack;
+  private Column [] rowStack;
+  private Object [] rowResults;
+  private final ColumnKernels kernels = ColumnKernels.INSTANCE;
+  private long [] spareLongs = new long[CHUNK_SIZE];
+  private double [] spareDoubles = new double[CHUNK_SIZE];
+  private final double [] leftScratch = new double[CHUNK_SIZE];
+  private final double [] rightScratch = new double[CHUNK_SIZE];
+
+  /*
+   * The RPN Stack must be well-formed, the maximum depth is as calculated
+   * by Expression.getMaximumDepth(...). Every column needs at least the given
+   * number of rows.
+   */
+  BatchEvaluator(Deque<Token> rpnStack,int maximumDepth,Environment environment,Map<String,?> columns,int rows) {
+    this.program = rpnStack.toArray(new Token[rpnStack.size()]);
+    this.inputs = new Object[program.length];
+    for (int i = 0; i < program.length; i++) {
+      if (program[i].getType() != Token.Type.VAR) continue;
+      String name = ((VariableToken)program[i]).getName();
+      Object column = columns.get(name);
+      if (column == null) continue;
+      int length;
+      if (column instanceof double []) length = ((double [])column).length;
+      else if (column instanceof long []) length = ((long [])column).length;
+      else throw new IllegalArgumentException("Column "+name+" is neither double[] nor long[]");
+      if (length < rows) throw new IllegalArgumentException("Column "+name+" has "+length+" rows, expected "+rows);
+      inputs[i] = column;
+    }
+    this.environment = environment;
+    this.stack = new Column[maximumDepth];
+    for (int i = 0; i < maximumDepth; i++) stack[i] = new Column();
+  }
+
+  void evaluate(double [] out) throws ExpressionException {
+    evaluate(0,out,out.length);
+  }
+
+  /*
+   * Evaluates the rows starting at the given row of the columns, writing the
+   * results to the start of out.
+   */
+  void evaluate(int first,double [] out,int rows) throws ExpressionException {
+    for (int done = 0; done < rows; done += CHUNK_SIZE) {
+      int chunk = Math.min(CHUNK_SIZE, rows - done);
+      Column result = evaluate(first + done,chunk);
+      switch (result.kind) {
+        case DOUBLE:
+          System.arraycopy(result.doubles, 0, out, done, chunk);
+          break;
+        case LONG:
+          for (int i = 0; i < chunk; i++) out[done + i] = result.longs[i];
+          break;
+        default:
+          for (int i = 0; i < chunk; i++) out[done + i] = PrimitiveEvaluator.toDouble(result.objects[i]);
+      }
+    }
+  }
+
+  /*
+   * Evaluates one chunk, and returns the column holding the result.
+   */
+  private Column evaluate(int offset,int rows) throws ExpressionException {
+    return evaluate(stack,0,-1,offset,rows);
+  }
+
+  /*
+   * Evaluates the program from the given token on, the stack holding the
+   * columns up to top.
+   */
+  private Column evaluate(Column [] stack,int first,int top,int offset,int rows) throws ExpressionException {
+    ResolvedOperators operators = environment.getResolvedOperators();
+    for (int t = first; t < program.length; t++) {
+      Token token = program[t];
+      switch (token.getType()) {
+        case VAL:
+          stack[++top].fill(((ValueToken)token).getValue(),rows);
+          break;
+        case VAR: {
+          Column column = stack[++top];
+          Object input = inputs[t];
+          if (input instanceof double []) {
+            System.arraycopy((double [])input, offset, column.doubles, 0, rows);
+            column.kind = DOUBLE;
+          } else if (input instanceof long []) {
+            System.arraycopy((long [])input, offset, column.longs, 0, rows);
+            column.kind = LONG;
+          } else {
+            Variable variable = ((VariableToken)token).getVariable();
+            if (variable instanceof DoubleVariable) {
+              Arrays.fill(column.doubles, 0, rows, ((DoubleVariable)variable).getAsDouble());
+              column.kind = DOUBLE;
+            } else if (variable instanceof LongVariable) {
+              Arrays.fill(column.longs, 0, rows, ((LongVariable)variable).getAsLong());
+              column.kind = LONG;
+            } else {
+              column.fill(((VariableToken)token).evaluate(),rows);
+            }
+          }
+          break;
+        }
+        case UNA: {
+          UnaryOperatorToken unaryOperatorToken = (UnaryOperatorToken)token;
+          Column operand = stack[top];
+          if (operand.kind != OBJECT) {
+            UnaryOperator operator = unaryOperatorToken.getImplementation(operators,operand.classOf(0));
+            if (operator == null) throw new UndefinedOperatorException(unaryOperatorToken,operand.box(0));
+            if (applyPrimitive(operator,operand,rows)) break;
+          }
+          for (int i = 0; i < rows; i++) {
+            Object value = operand.box(i);
+            UnaryOperator operator = unaryOperatorToken.getImplementation(operators,value.getClass());
+            if (operator == null) throw new UndefinedOperatorException(unaryOperatorToken,value);
+            operand.objects[i] = unaryOperatorToken.apply(operator,value);
+          }
+          operand.normalize(rows);
+          break;
+        }
+        case UNI: {
+          UnitToken unitToken = (UnitToken)token;
+          Column operand = stack[top];
+          if (operand.kind != OBJECT) {
+            UnaryOperator operator = unitToken.getImplementation(operators,operand.classOf(0));
+            if (operator == null) throw new UndefinedOperatorException(unitToken,operand.box(0));
+            if (applyPrimitive(operator,operand,rows)) break;
+          }
+          for (int i = 0; i < rows; i++) {
+            Object value = operand.box(i);
+            UnaryOperator operator = unitToken.getImplementation(operators,value.getClass());
+            if (operator == null) throw new UndefinedOperatorException(unitToken,value);
+            operand.objects[i] = unitToken.apply(operator,value);
+          }
+          operand.normalize(rows);
+          break;
+        }
+        case BIN: {
+          BinaryOperatorToken binaryOperatorToken = (BinaryOperatorToken)token;
+          Column right = stack[top--];
+          Column left = stack[top];
+          if (left.kind != OBJECT && right.kind != OBJECT) {
+            BinaryOperator operator = binaryOperatorToken.getImplementation(operators,left.classOf(0),right.classOf(0));
+            if (operator == null) throw new UndefinedOperatorException(binaryOperatorToken,left.box(0),right.box(0));
+            if (applyPrimitive(binaryOperatorToken.getBinaryOperatorType(),operator,left,right,rows)) break;
+          }
+          for (int i = 0; i < rows; i++) {
+            Object leftValue = left.box(i);
+            Object rightValue = right.box(i);
+            BinaryOperator operator = binaryOperatorToken.getImplementation(operators,leftValue.getClass(),rightValue.getClass());
+            if (operator == null) throw new UndefinedOperatorException(binaryOperatorToken,leftValue,rightValue);
+            left.objects[i] = binaryOperatorToken.apply(operator,leftValue,rightValue);
+          }
+          left.normalize(rows);
+          break;
+        }
+        case DUP:
+          stack[top + 1].copy(stack[top],rows);
+          top++;
+          break;
+        case FNC: {
+          FunctionToken functionToken = (FunctionToken)token;
+          int arity = functionToken.getArity();
+          top -= arity;
+          Column result = stack[top + 1];
+          if (arity == 1 && applyKernel(functionToken,result,rows)) {
+            top++;
+            break;
+          }
+          for (int i = 0; i < rows; i++) {
+            Object [] parameters = new Object [arity];
+            for (int p = 0; p < arity; p++) parameters[p] = stack[top + 1 + p].box(i);
+            result.objects[i] = functionToken.evaluate(parameters);
+          }
+          result.normalize(rows);
+          top++;
+          break;
+        }
+        case JMP: {
+          JumpToken jumpToken = (JumpToken)token;
+          if (jumpToken.getCondition() == JumpToken.Condition.ALWAYS) {
+            t = jumpToken.getTarget() - 1;
+            break;
+          }
+          Column condition = stack[top];
+          int taken = 0;
+          for (int i = 0; i < rows; i++) {
+            if ((condition.kind == LONG) ? jumpToken.isTaken(condition.longs[i]) : jumpToken.isTaken(condition.box(i))) taken++;
+          }
+          if (taken != 0 && taken != rows) return diverge(stack,t,top,offset,rows);
+          if (jumpToken.getCondition() == JumpToken.Condition.FALSE) top--;
+          if (taken != 0) {
+            if (jumpToken.getResult() != null) condition.fill(jumpToken.getResult(),rows);
+            t = jumpToken.getTarget() - 1;
+          }
+          break;
+        }
+        default:
+          throw new IllegalExpressionStateException(token.getPosition());
+      }
+    }
+    return stack[0];
+  }
+
+  /*
+   * Continues every row of the chunk on its own from the jump at the given
+   * token, on a stack holding only that row.
+   */
+  private Column diverge(Column [] stack,int jump,int top,int offset,int rows) throws ExpressionException {
+    if (rowStack == null) {
+      rowStack = new Column[stack.length];
+      for (int i = 0; i < stack.length; i++) rowStack[i] = new Column();
+      rowResults = new Object[CHUNK_SIZE];
+    }
+    for (int i = 0; i < rows; i++) {
+      for (int s = 0; s <= top; s++) rowStack[s].copyRow(stack[s],i);
+      rowResults[i] = evaluate(rowStack,jump,top,offset + i,1).box(0);
+    }
+    Column result = stack[0];
+    System.arraycopy(rowResults, 0, result.objects, 0, rows);
+    Arrays.fill(rowResults, 0, rows, null);
+    result.normalize(rows);
+    return result;
+  }
+
+  /*
+   * Applies the operator over the chunk without boxing if both the operator
+   * and the operand allow for it. Results are written to the spare arrays and
+   * only swapped in on success, so if the operator fails the chunk is untouched
+   * and can be evaluated again on boxed rows, which reports the failing row.
+   */
+  private boolean applyPrimitive(UnaryOperator operator,Column operand,int rows) {
+    byte kind = operand.kind;
+    long [] longs = operand.longs;
+    double [] doubles = operand.doubles;
+    while (operator instanceof Environment.UpgradedUnaryOperator) {
+      Environment.UpgradedUnaryOperator upgraded = (Environment.UpgradedUnaryOperator)operator;
+      UpgradeConversion conversion = upgraded.getConversion();
+      if (conversion != null) {
+        if (kind != LONG || !(conversion instanceof LongToDoubleConversion)) return false;
+        doubles = convert((LongToDoubleConversion)conversion,longs,leftScratch,rows);
+        kind = DOUBLE;
+      }
+      operator = upgraded.getOperator();
+    }
+    try {
+      if (kind == DOUBLE && operator instanceof DoubleUnaryOperator) {
+        DoubleUnaryOperator function = (DoubleUnaryOperator)operator;
+        double [] result = spareDoubles;
+        for (int i = 0; i < rows; i++) result[i] = function.applyAsDouble(doubles[i]);
+        spareDoubles = operand.doubles;
+        operand.doubles = result;
+        operand.kind = DOUBLE;
+        return true;
+      }
+      if (kind == LONG && operator instanceof LongUnaryOperator) {
+        LongUnaryOperator function = (LongUnaryOperator)operator;
+        long [] result = spareLongs;
+        for (int i = 0; i < rows; i++) result[i] = function.applyAsLong(longs[i]);
+        spareLongs = operand.longs;
+        operand.longs = result;
+        return true;
+      }
+    } catch (RuntimeException x) {
+      return false;
+    }
+    return false;
+  }
+
+  /*
+   * Binary version of the above, leaving the result in the left column.
+   */
+  private boolean applyPrimitive(BinaryOperatorType type,BinaryOperator operator,Column left,Column right,int rows) {
+    byte leftKind = left.kind;
+    byte rightKind = right.kind;
+    double [] leftDoubles = left.doubles;
+    double [] rightDoubles = right.doubles;
+    while (operator instanceof Environment.UpgradedBinaryOperator) {
+      Environment.UpgradedBinaryOperator upgraded = (Environment.UpgradedBinaryOperator)operator;
+      UpgradeConversion leftConversion = upgraded.getLeftConversion();
+      UpgradeConversion rightConversion = upgraded.getRightConversion();
+      if (leftConversion != null) {
+        if (leftKind != LONG || !(leftConversion instanceof LongToDoubleConversion)) return false;
+        leftDoubles = convert((LongToDoubleConversion)leftConversion,left.longs,leftScratch,rows);
+        leftKind = DOUBLE;
+      }
+      if (rightConversion != null) {
+        if (rightKind != LONG || !(rightConversion instanceof LongToDoubleConversion)) return false;
+        rightDoubles = convert((LongToDoubleConversion)rightConversion,right.longs,rightScratch,rows);
+        rightKind = DOUBLE;
+      }
+      operator = upgraded.getOperator();
+    }
+    try {
+      if (leftKind == DOUBLE && rightKind == DOUBLE) {
+        boolean isDefault = environment.isDefault(operator);
+        if (operator instanceof DoubleBinaryOperator) {
+          DoubleBinaryOperator function = (DoubleBinaryOperator)operator;
+          double [] result = spareDoubles;
+          if (!isDefault || !kernels.apply(type,leftDoubles,rightDoubles,result,rows)) {
+            for (int i = 0; i < rows; i++) result[i] = function.applyAsDouble(leftDoubles[i],rightDoubles[i]);
+          }
+          spareDoubles = left.doubles;
+          left.doubles = result;
+          left.kind = DOUBLE;
+          return true;
+        }
+        if (operator instanceof DoubleBinaryPredicate) {
+          DoubleBinaryPredicate function = (DoubleBinaryPredicate)operator;
+          long [] result = spareLongs;
+          if (!isDefault || !kernels.test(type,leftDoubles,rightDoubles,result,rows)) {
+            for (int i = 0; i < rows; i++) result[i] = function.test(leftDoubles[i],rightDoubles[i]) ? 1L : 0L;
+          }
+          spareLongs = left.longs;
+          left.longs = result;
+          left.kind = LONG;
+          return true;
+        }
+      } else if (leftKind == LONG && rightKind == LONG) {
+        long [] leftLongs = left.longs;
+        long [] rightLongs = right.longs;
+        if (operator instanceof LongBinaryOperator) {
+          LongBinaryOperator function = (LongBinaryOperator)operator;
+          long [] result = spareLongs;
+          for (int i = 0; i < rows; i++) result[i] = function.applyAsLong(leftLongs[i],rightLongs[i]);
+          spareLongs = left.longs;
+          left.longs = result;
+          return true;
+        }
+        if (operator instanceof LongBinaryPredicate) {
+          LongBinaryPredicate function = (LongBinaryPredicate)operator;
+          long [] result = spareLongs;
+          for (int i = 0; i < rows; i++) result[i] = function.test(leftLongs[i],rightLongs[i]) ? 1L : 0L;
+          spareLongs = left.longs;
+          left.longs = result;
+          return true;
+        }
+      }
+    } catch (RuntimeException x) {
+      return false;
+    }
+    return false;
+  }
+
+  /*
+   * Applies a default single argument function through the kernels. These
+   * functions take any Number as a double.
+   */
+  private boolean applyKernel(FunctionToken functionToken,Column operand,int rows) {
+    if (operand.kind == OBJECT || !environment.isDefault(functionToken.getFunction())) return false;
+    double [] doubles = operand.doubles;
+    if (operand.kind == LONG) {
+      doubles = leftScratch;
+      for (int i = 0; i < rows; i++) doubles[i] = operand.longs[i];
+    }
+    double [] result = spareDoubles;
+    if (!kernels.apply(functionToken.getName(),doubles,result,rows)) return false;
+    spareDoubles = operand.doubles;
+    operand.doubles = result;
+    operand.kind = DOUBLE;
+    return true;
+  }
+
+  private static double [] convert(LongToDoubleConversion conversion,long [] longs,double [] doubles,int rows) {
+    for (int i = 0; i < rows; i++) doubles[i] = conversion.applyAsDouble(longs[i]);
+    return doubles;
+  }
+
+  /*
+   * A slot of the result stack, holding one chunk of rows. Either all rows
+   * are Long, all rows are Double, or every row is boxed.
+   */
+  static private final class Column {
+    byte kind;
+    long [] longs = new long[CHUNK_SIZE];
+    double [] doubles = new double[CHUNK_SIZE];
+    final Object [] objects = new Object[CHUNK_SIZE];
+
+    void fill(Object value,int rows) {
+      if (value instanceof Long || value instanceof Integer) {
+        Arrays.fill(longs, 0, rows, ((Number)value).longValue());
+        kind = LONG;
+      } else if (value instanceof Double) {
+        Arrays.fill(doubles, 0, rows, (Double)value);
+        kind = DOUBLE;
+      } else {
+        Arrays.fill(objects, 0, rows, value);
+        kind = OBJECT;
+      }
+    }
+
+    /*
+     * Copies a single row of the column to the first row.
+     */
+    void copyRow(Column column,int row) {
+      kind = column.kind;
+      longs[0] = column.longs[row];
+      doubles[0] = column.doubles[row];
+      objects[0] = column.objects[row];
+    }
+
+    void copy(Column column,int rows) {
+      kind = column.kind;
+      switch (kind) {
+        case LONG: System.arraycopy(column.longs, 0, longs, 0, rows); break;
+        case DOUBLE: System.arraycopy(column.doubles, 0, doubles, 0, rows); break;
+        default: System.arraycopy(column.objects, 0, objects, 0, rows);
+      }
+    }
+
+    /*
+     * Called after boxed rows have been stored: unboxes them when all
+     * rows have the same primitive type.
+     */
+    void normalize(int rows) {
+      boolean allLong = true;
+      boolean allDouble = true;
+      for (int i = 0; i < rows && (allLong || allDouble); i++) {
+        Object value = objects[i];
+        allLong &= value instanceof Long || value instanceof Integer;
+        allDouble &= value instanceof Double;
+      }
+      if (allLong) {
+        for (int i = 0; i < rows; i++) longs[i] = ((Number)objects[i]).longValue();
+        kind = LONG;
+      } else if (allDouble) {
+        for (int i = 0; i < rows; i++) doubles[i] = (Double)objects[i];
+        kind = DOUBLE;
+      } else {
+        for (int i = 0; i < rows; i++) {
+          if (objects[i] instanceof Integer) objects[i] = Long.valueOf((Integer)objects[i]);
+        }
+        kind = OBJECT;
+      }
+      if (kind != OBJECT) Arrays.fill(objects, 0, rows, null);
+    }
+
+    Class classOf(int row) {
+      switch (kind) {
+        case LONG: return Long.class;
+        case DOUBLE: return Double.class;
+        default: return objects[row].getClass();
+      }
+    }
+
+    Object box(int row) {
+      switch (kind) {
+        case LONG: return longs[row];
+        case DOUBLE: return doubles[row];
+        default: return objects[row];
+      }
+    }
+  }
+}
@@ -1 +1,112 @@
-/* * JMEP - Java Mathematical Expression Parser. * Copyright (C) 1999  Jo Desmet *  * This library is free software; you can redistribute it and/or * modify it under the terms of the GNU Lesser General Public * License as published by the Free Software Foundation; either * version 2.1 of the License, or any later version. *  * This library is distributed in the hope that it will be useful, * but WITHOUT ANY WARRANTY; without even the implied warranty of * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU * Lesser General Public License for more details. *  * You should have received a copy of the GNU Lesser General Public * License along with this library; if not, write to the Free Software * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA *  * You can contact the Original submitter of this library by * email at: Jo_Desmet@yahoo.com. *  */package com.googlecode.jmep;import com.googlecode.jmep.function.BinaryOperator;import java.util.Map;class BinaryOperatorToken extends Token {    private final BinaryOperatorType binaryOperatorType;  BinaryOperatorToken(BinaryOperatorType binaryOperatorType,int position) {    super(Token.Type.BIN,position);    this.binaryOperatorType = binaryOperatorType;  }    int getPrecedence() {    return binaryOperatorType.getPrecedence();  }  BinaryOperatorType getBinaryOperatorType() {    return binaryOperatorType;  }    Object evaluate(Environment environment,Object leftOperand, Object rightOperand)  throws ExpressionException {    Map<SimpleClassPair,BinaryOperator> implementations = environment.getBinaryOperators().get(this.binaryOperatorType);    if (implementations == null) throw new UndefinedOperatorException(this,leftOperand,rightOperand);    SimpleClassPair p = SimpleClassPair.of(leftOperand.getClass(), rightOperand.getClass());    BinaryOperator operation = implementations.get(p);    if (operation == null) throw new UndefinedOperatorException(this,leftOperand,rightOperand);    try {      return operation.apply(leftOperand, rightOperand);    } catch (Throwable x) {      throw new OperatorException(this, leftOperand, rightOperand,x);    }  }}
\ No newline at end of file
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.BinaryOperator;
+
+class BinaryOperatorToken extends Token {
+  
+  private final BinaryOperatorType binaryOperatorType;
+  private Binding<BinaryOperator [][],BinaryOperator> binding;
+
+  BinaryOperatorToken(BinaryOperatorType binaryOperatorType,int position) {
+    super(Token.Type.BIN,position);
+    this.binaryOperatorType = binaryOperatorType;
+  }
+  
+  int getPrecedence() {
+    return binaryOperatorType.getPrecedence();
+  }
+
+  BinaryOperatorType getBinaryOperatorType() {
+    return binaryOperatorType;
+  }
+  
+  /*
+   * The token binds to the dispatch table of its operator once per snapshot,
+   * after which a lookup is an array index on the class IDs. The binding is
+   * immutable, so sharing the token between threads is safe.
+   */
+  private Binding<BinaryOperator [][],BinaryOperator> getBinding(ResolvedOperators operators) {
+    Binding<BinaryOperator [][],BinaryOperator> binding = this.binding;
+    if (binding == null || binding.operators != operators) {
+      binding = new Binding<>(operators,operators.getBinaryOperators(this.binaryOperatorType));
+      this.binding = binding;
+    }
+    return binding;
+  }
+
+  @Override
+  void bind(ResolvedOperators operators) {
+    getBinding(operators);
+  }
+
+  /*
+   * Binds to the exact implementation for operands of known classes, found at
+   * compile time. Evaluation then only needs to confirm the classes of the
+   * operands, falling back to the lookup for any other classes.
+   */
+  void bind(ResolvedOperators operators,Class leftClass,Class rightClass) {
+    BinaryOperator implementation = getImplementation(operators,leftClass,rightClass);
+    if (implementation == null) return;
+    this.binding = getBinding(operators).bind(leftClass,rightClass,implementation);
+  }
+
+  BinaryOperator getImplementation(ResolvedOperators operators,Class leftClass,Class rightClass) {
+    Binding<BinaryOperator [][],BinaryOperator> binding = getBinding(operators);
+    int left = operators.getClassId(leftClass);
+    int right = operators.getClassId(rightClass);
+    if (left < 0 || right < 0) return null;
+    return binding.implementations[left][right];
+  }
+
+  /*
+   * Returns the implementation for operands of the given classes while
+   * evaluating: the bound one when the classes are those bound at compile
+   * time, otherwise the one looked up. The metrics count either.
+   */
+  BinaryOperator dispatch(ResolvedOperators operators,Class leftClass,Class rightClass) {
+    Metrics metrics = Metrics.active;
+    if (metrics != null) metrics.dispatched(binaryOperatorType,leftClass,rightClass);
+    Binding<BinaryOperator [][],BinaryOperator> binding = getBinding(operators);
+    if (leftClass == binding.leftClass && rightClass == binding.rightClass) return binding.implementation;
+    return getImplementation(operators,leftClass,rightClass);
+  }
+
+  Object evaluate(ResolvedOperators operators,Object leftOperand, Object rightOperand)
+  throws ExpressionException {
+    BinaryOperator operation = dispatch(operators,leftOperand.getClass(),rightOperand.getClass());
+    if (operation == null) throw new UndefinedOperatorException(this,leftOperand,rightOperand);
+    return apply(operation,leftOperand,rightOperand);
+  }
+
+  Object apply(BinaryOperator operation,Object leftOperand, Object rightOperand)
+  throws OperatorException {
+    try {
+      return operation.apply(leftOperand, rightOperand);
+    } catch (Throwable x) {
+      throw new OperatorException(this, leftOperand, rightOperand,x);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+/**
+ * What an operator or unit token is bound to within one snapshot of the
+ * operators: the table of implementations for the token, and optionally the
+ * implementation for the operand classes found at compile time. A unary
+ * operator or unit only uses the left class. A binding is immutable, so the
+ * token replaces it, and sharing the token between threads is safe.
+ * @author Jo Desmet
+ */
+final class Binding<T,O> {
+  final ResolvedOperators operators;
+  final T implementations;
+  final Class leftClass;
+  final Class rightClass;
+  final O implementation;
+
+  Binding(ResolvedOperators operators,T implementations) {
+    this(operators,implementations,null,null,null);
+  }
+
+  private Binding(ResolvedOperators operators,T implementations,
+          Class leftClass,Class rightClass,O implementation) {
+    this.operators = operators;
+    this.implementations = implementations;
+    this.leftClass = leftClass;
+    this.rightClass = rightClass;
+    this.implementation = implementation;
+  }
+
+  /*
+   * Returns a binding to the same table that also holds the implementation
+   * for operands of the given classes.
+   */
+  Binding<T,O> bind(Class leftClass,Class rightClass,O implementation) {
+    return new Binding<>(operators,implementations,leftClass,rightClass,implementation);
+  }
+}
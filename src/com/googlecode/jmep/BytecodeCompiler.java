@@ -0,0 +1,461 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates the RPN Stack of an expression into a hidden class implementing
+ * {@link Evaluator}. RPN maps directly onto the operand stack of the JVM, so
+ * every token becomes a short sequence of instructions calling straight into
+ * the bound token. No result stack and no dispatch on the token type remain,
+ * which allows the JIT to inline the whole formula.<p>
+ *
+ * Every token is stored in a static final field of the generated class, which
+ * the JIT treats as a constant. Classes are generated with version 49 so that
+ * no stack map frames have to be calculated for the jumps.
+ * @author Jo Desmet
+ */
+final class BytecodeCompiler {
+  private static final String CLASS_NAME = "com/googlecode/jmep/Expression$Compiled";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+  private static final String ENVIRONMENT_DESCRIPTOR = "Lcom/googlecode/jmep/Environment;";
+  private static final String OPERATORS_DESCRIPTOR = "Lcom/googlecode/jmep/ResolvedOperators;";
+  private static final int OPERATORS_LOCAL = 1;
+  private static final int MAX_FIELDS = Short.MAX_VALUE;
+  private static final int MAX_LOCALS = 250;
+  private static final int MAX_CODE_LENGTH = 65535;
+  private static final int MAX_CONSTANTS = 65535;
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_PRIVATE = 0x0002;
+  private static final int ACC_STATIC = 0x0008;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  private static final int ALOAD = 0x19;
+  private static final int ASTORE = 0x3a;
+  private static final int AALOAD = 0x32;
+  private static final int AASTORE = 0x53;
+  private static final int POP = 0x57;
+  private static final int DUP = 0x59;
+  private static final int SWAP = 0x5f;
+  private static final int IFEQ = 0x99;
+  private static final int IFNE = 0x9a;
+  private static final int GOTO = 0xa7;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int ARETURN = 0xb0;
+  private static final int RETURN = 0xb1;
+  private static final int GETSTATIC = 0xb2;
+  private static final int PUTSTATIC = 0xb3;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int ANEWARRAY = 0xbd;
+  private static final int CHECKCAST = 0xc0;
+
+  private final ConstantPool constantPool = new ConstantPool();
+  private final List<Object> fieldValues = new ArrayList<>();
+  private final List<String> fieldDescriptors = new ArrayList<>();
+  private int maxLocals = 4;
+
+  private BytecodeCompiler() {
+  }
+
+  /**
+   * Generates and instantiates the evaluator for an RPN Stack.
+   * @return the evaluator, or <code>null</code> when the RPN Stack is not well-formed
+   * or too large for a single class, its methods or its constant pool. Such an
+   * expression should remain interpreted, so it keeps reporting its errors at
+   * evaluation time.
+   */
+  static Evaluator compile(Deque<Token> rpnStack,Environment environment) {
+    if (rpnStack == null || rpnStack.size() >= MAX_FIELDS) return null;
+    int maximumDepth = Expression.getMaximumDepth(rpnStack);
+    if (maximumDepth < 0 || maximumDepth > MAX_LOCALS) return null;
+    BytecodeCompiler compiler = new BytecodeCompiler();
+    byte [] classBytes = compiler.generate(rpnStack,environment,maximumDepth);
+    if (classBytes == null) return null;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(
+              classBytes, compiler.fieldValues.toArray(), true);
+      return (Evaluator)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+    } catch (Throwable x) {
+      throw new IllegalExpressionStateException(-1,"Failed to generate bytecode",x);
+    }
+  }
+
+  private byte [] generate(Deque<Token> rpnStack,Environment environment,int maximumDepth) {
+    int environmentField = addField(environment,ENVIRONMENT_DESCRIPTOR);
+    Code code = new Code();
+    // One snapshot of the operators for the whole evaluation.
+    code.field(GETSTATIC,environmentField,ENVIRONMENT_DESCRIPTOR);
+    code.method(INVOKEVIRTUAL,"com/googlecode/jmep/Environment","getResolvedOperators","()"+OPERATORS_DESCRIPTOR);
+    code.local(ASTORE,OPERATORS_LOCAL);
+    Token [] program = rpnStack.toArray(new Token[rpnStack.size()]);
+    code.labels = new int[program.length + 1];
+    for (int t = 0; t < program.length; t++) {
+      Token token = program[t];
+      code.label(t);
+      switch (token.getType()) {
+        case VAL:
+          code.field(GETSTATIC,addField(((ValueToken)token).getValue(),OBJECT_DESCRIPTOR),OBJECT_DESCRIPTOR);
+          break;
+        case VAR:
+          code.field(GETSTATIC,addField(token,"Lcom/googlecode/jmep/VariableToken;"),"Lcom/googlecode/jmep/VariableToken;");
+          code.method(INVOKEVIRTUAL,"com/googlecode/jmep/VariableToken","evaluate","()Ljava/lang/Object;");
+          break;
+        case DUP:
+          code.op(DUP);
+          break;
+        case UNA:
+          emitUnary(code,token,"com/googlecode/jmep/UnaryOperatorToken");
+          break;
+        case UNI:
+          emitUnary(code,token,"com/googlecode/jmep/UnitToken");
+          break;
+        case BIN: {
+          String owner = "com/googlecode/jmep/BinaryOperatorToken";
+          code.local(ASTORE,3);
+          code.local(ASTORE,2);
+          code.field(GETSTATIC,addField(token,"L"+owner+";"),"L"+owner+";");
+          code.local(ALOAD,OPERATORS_LOCAL);
+          code.local(ALOAD,2);
+          code.local(ALOAD,3);
+          code.method(INVOKEVIRTUAL,owner,"evaluate","("+OPERATORS_DESCRIPTOR+OBJECT_DESCRIPTOR+OBJECT_DESCRIPTOR+")"+OBJECT_DESCRIPTOR);
+          break;
+        }
+        case FNC: {
+          String owner = "com/googlecode/jmep/FunctionToken";
+          int arity = ((FunctionToken)token).getArity();
+          maxLocals = Math.max(maxLocals, arity + 2);
+          for (int p = arity; p >= 1; p--) code.local(ASTORE,p+1);
+          code.field(GETSTATIC,addField(token,"L"+owner+";"),"L"+owner+";");
+          code.push(arity);
+          code.type(ANEWARRAY,OBJECT);
+          for (int p = 0; p < arity; p++) {
+            code.op(DUP);
+            code.push(p);
+            code.local(ALOAD,p+2);
+            code.op(AASTORE);
+          }
+          code.method(INVOKEVIRTUAL,owner,"evaluate","([Ljava/lang/Object;)"+OBJECT_DESCRIPTOR);
+          break;
+        }
+        case JMP:
+          emitJump(code,(JumpToken)token,t);
+          break;
+        default:
+          throw new IllegalExpressionStateException(token.getPosition());
+      }
+    }
+    code.label(program.length);
+    code.op(ARETURN);
+    if (code.bytes.size() > MAX_CODE_LENGTH || !code.isInReach()) return null;
+    return writeClass(code, maximumDepth + 4);
+  }
+
+  private void emitUnary(Code code,Token token,String owner) {
+    code.local(ASTORE,2);
+    code.field(GETSTATIC,addField(token,"L"+owner+";"),"L"+owner+";");
+    code.local(ALOAD,OPERATORS_LOCAL);
+    code.local(ALOAD,2);
+    code.method(INVOKEVIRTUAL,owner,"evaluate","("+OPERATORS_DESCRIPTOR+OBJECT_DESCRIPTOR+")"+OBJECT_DESCRIPTOR);
+  }
+
+  /*
+   * A conditional jump tests the value on top of the operand stack. For the
+   * logical operators the value is kept, and replaced by their result when
+   * the jump is taken.
+   */
+  private void emitJump(Code code,JumpToken token,int index) {
+    String owner = "com/googlecode/jmep/JumpToken";
+    switch (token.getCondition()) {
+      case ALWAYS:
+        code.branch(GOTO,token.getTarget());
+        break;
+      case FALSE:
+        code.field(GETSTATIC,addField(token,"L"+owner+";"),"L"+owner+";");
+        code.op(SWAP);
+        code.method(INVOKEVIRTUAL,owner,"isTaken","("+OBJECT_DESCRIPTOR+")Z");
+        code.branch(IFNE,token.getTarget());
+        break;
+      default:
+        code.op(DUP);
+        code.field(GETSTATIC,addField(token,"L"+owner+";"),"L"+owner+";");
+        code.op(SWAP);
+        code.method(INVOKEVIRTUAL,owner,"isTaken","("+OBJECT_DESCRIPTOR+")Z");
+        code.branch(IFEQ,index + 1);
+        code.op(POP);
+        code.field(GETSTATIC,addField(token.getResult(),OBJECT_DESCRIPTOR),OBJECT_DESCRIPTOR);
+        code.branch(GOTO,token.getTarget());
+    }
+  }
+
+  private int addField(Object value,String descriptor) {
+    fieldValues.add(value);
+    fieldDescriptors.add(descriptor);
+    return fieldValues.size() - 1;
+  }
+
+  private static String fieldName(int index) {
+    return "f"+index;
+  }
+
+  private byte [] writeClass(Code evaluate,int maxStack) {
+    // Static initializer: copy the class data into the static final fields.
+    Code clinit = new Code();
+    clinit.method(INVOKESTATIC,"java/lang/invoke/MethodHandles","lookup","()Ljava/lang/invoke/MethodHandles$Lookup;");
+    clinit.constant(constantPool.string("_"));
+    clinit.constant(constantPool.type("[Ljava/lang/Object;"));
+    clinit.method(INVOKESTATIC,"java/lang/invoke/MethodHandles","classData",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;");
+    clinit.type(CHECKCAST,"[Ljava/lang/Object;");
+    clinit.local(ASTORE,0);
+    for (int i = 0; i < fieldValues.size(); i++) {
+      String descriptor = fieldDescriptors.get(i);
+      clinit.local(ALOAD,0);
+      clinit.push(i);
+      clinit.op(AALOAD);
+      if (!descriptor.equals(OBJECT_DESCRIPTOR)) clinit.type(CHECKCAST,descriptor.substring(1,descriptor.length()-1));
+      clinit.field(PUTSTATIC,i,descriptor);
+    }
+    clinit.op(RETURN);
+    if (clinit.bytes.size() > MAX_CODE_LENGTH) return null;
+
+    Code init = new Code();
+    init.local(ALOAD,0);
+    init.method(INVOKESPECIAL,OBJECT,"<init>","()V");
+    init.op(RETURN);
+
+    int thisClass = constantPool.type(CLASS_NAME);
+    int superClass = constantPool.type(OBJECT);
+    int evaluatorInterface = constantPool.type("com/googlecode/jmep/Evaluator");
+    int codeAttribute = constantPool.utf8("Code");
+    int [] fieldNames = new int[fieldValues.size()];
+    int [] fieldTypes = new int[fieldValues.size()];
+    for (int i = 0; i < fieldValues.size(); i++) {
+      fieldNames[i] = constantPool.utf8(fieldName(i));
+      fieldTypes[i] = constantPool.utf8(fieldDescriptors.get(i));
+    }
+    int [][] methods = new int [][] {
+      { ACC_STATIC, constantPool.utf8("<clinit>"), constantPool.utf8("()V") },
+      { ACC_PUBLIC, constantPool.utf8("<init>"), constantPool.utf8("()V") },
+      { ACC_PUBLIC|ACC_FINAL, constantPool.utf8("evaluate"), constantPool.utf8("()"+OBJECT_DESCRIPTOR) },
+    };
+    Code [] codes = new Code [] { clinit, init, evaluate };
+    int [][] limits = new int [][] { { 3, 1 }, { 1, 1 }, { maxStack, maxLocals } };
+    if (constantPool.count > MAX_CONSTANTS) return null;
+
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(constantPool.count);
+      constantPool.bytes.writeTo(out);
+      out.writeShort(ACC_FINAL|ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(1);
+      out.writeShort(evaluatorInterface);
+      out.writeShort(fieldValues.size());
+      for (int i = 0; i < fieldValues.size(); i++) {
+        out.writeShort(ACC_PRIVATE|ACC_STATIC|ACC_FINAL);
+        out.writeShort(fieldNames[i]);
+        out.writeShort(fieldTypes[i]);
+        out.writeShort(0);
+      }
+      out.writeShort(methods.length);
+      for (int m = 0; m < methods.length; m++) {
+        byte [] instructions = codes[m].toByteArray();
+        out.writeShort(methods[m][0]);
+        out.writeShort(methods[m][1]);
+        out.writeShort(methods[m][2]);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + instructions.length);
+        out.writeShort(limits[m][0]);
+        out.writeShort(limits[m][1]);
+        out.writeInt(instructions.length);
+        out.write(instructions);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+      }
+      out.writeShort(0);
+      return bytes.toByteArray();
+    } catch (IOException x) {
+      throw new IllegalExpressionStateException(-1,"Failed to generate bytecode",x);
+    }
+  }
+
+  /*
+   * Instruction sequence of a single method.
+   */
+  private final class Code {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    /* Offsets of the branch instructions, and the index of the token they jump to */
+    private final List<int []> branches = new ArrayList<>();
+    /* Offset of the instructions of every token of the RPN Stack */
+    private int [] labels;
+
+    void op(int opcode) {
+      bytes.write(opcode);
+    }
+
+    void u2(int value) {
+      bytes.write(value >>> 8);
+      bytes.write(value);
+    }
+
+    void local(int opcode,int index) {
+      op(opcode);
+      bytes.write(index);
+    }
+
+    void push(int value) {
+      op(SIPUSH);
+      u2(value);
+    }
+
+    void constant(int index) {
+      op(LDC_W);
+      u2(index);
+    }
+
+    void type(int opcode,String internalName) {
+      op(opcode);
+      u2(constantPool.type(internalName));
+    }
+
+    void field(int opcode,int field,String descriptor) {
+      op(opcode);
+      u2(constantPool.member(9,CLASS_NAME,fieldName(field),descriptor));
+    }
+
+    void method(int opcode,String owner,String name,String descriptor) {
+      op(opcode);
+      u2(constantPool.member(10,owner,name,descriptor));
+    }
+
+    void label(int index) {
+      labels[index] = bytes.size();
+    }
+
+    /*
+     * Branches to the instructions of the token at the given index, which are
+     * only known once all tokens have been translated.
+     */
+    void branch(int opcode,int index) {
+      branches.add(new int [] { bytes.size(), index });
+      op(opcode);
+      u2(0);
+    }
+
+    /*
+     * Jumps are forward only, but may be too far for a branch instruction.
+     */
+    boolean isInReach() {
+      for (int [] branch:branches) {
+        if (labels[branch[1]] - branch[0] > Short.MAX_VALUE) return false;
+      }
+      return true;
+    }
+
+    byte [] toByteArray() {
+      byte [] instructions = bytes.toByteArray();
+      for (int [] branch:branches) {
+        int offset = labels[branch[1]] - branch[0];
+        instructions[branch[0] + 1] = (byte)(offset >>> 8);
+        instructions[branch[0] + 2] = (byte)offset;
+      }
+      return instructions;
+    }
+  }
+
+  /*
+   * Constant Pool of the generated class, equal entries are shared.
+   */
+  private static final class ConstantPool {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final Map<String,Integer> entries = new HashMap<>();
+    private int count = 1;
+
+    int utf8(String value) {
+      Integer index = entries.get("U"+value);
+      if (index != null) return index;
+      try {
+        out.writeByte(1);
+        out.writeUTF(value);
+      } catch (IOException x) {
+        throw new IllegalExpressionStateException(-1,"Failed to generate bytecode",x);
+      }
+      return register("U"+value);
+    }
+
+    int type(String internalName) {
+      return reference("C"+internalName,7,utf8(internalName),-1);
+    }
+
+    int string(String value) {
+      return reference("S"+value,8,utf8(value),-1);
+    }
+
+    int member(int tag,String owner,String name,String descriptor) {
+      int nameAndType = reference("N"+name+":"+descriptor,12,utf8(name),utf8(descriptor));
+      return reference(tag+owner+"."+name+":"+descriptor,tag,type(owner),nameAndType);
+    }
+
+    private int reference(String key,int tag,int first,int second) {
+      Integer index = entries.get(key);
+      if (index != null) return index;
+      try {
+        out.writeByte(tag);
+        out.writeShort(first);
+        if (second >= 0) out.writeShort(second);
+      } catch (IOException x) {
+        throw new IllegalExpressionStateException(-1,"Failed to generate bytecode",x);
+      }
+      return register(key);
+    }
+
+    private int register(String key) {
+      entries.put(key,count);
+      return count++;
+    }
+  }
+}
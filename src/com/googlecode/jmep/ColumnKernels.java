@@ -0,0 +1,108 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+/**
+ * Loops over whole columns for the default Double operators and functions, as
+ * used by the BatchEvaluator. This class holds the plain scalar loops. When the
+ * optional vector kernels (built from the src-vector source root) are on the
+ * class path and the <code>jdk.incubator.vector</code> module is available,
+ * those are used instead, using the widest SIMD registers of the processor.
+ * Setting the system property <code>jmep.vector</code> to <code>false</code>
+ * keeps the scalar loops.<p>
+ *
+ * The kernels hard-code the arithmetic, so they must only be applied to the
+ * default implementations of the Environment.
+ * @author Jo Desmet
+ * @see Environment#isDefault(Object)
+ */
+class ColumnKernels {
+  private static final String VECTOR_KERNELS = "com.googlecode.jmep.VectorKernels";
+  static final ColumnKernels INSTANCE = load();
+
+  ColumnKernels() {
+  }
+
+  private static ColumnKernels load() {
+    if (Boolean.parseBoolean(System.getProperty("jmep.vector","true"))) {
+      try {
+        Class<?> vectorKernels = Class.forName(VECTOR_KERNELS);
+        ColumnKernels kernels = (ColumnKernels)vectorKernels.getDeclaredConstructor().newInstance();
+        if (kernels.isAccelerated()) return kernels;
+      } catch (ReflectiveOperationException | LinkageError | RuntimeException x) {
+        /* Not on the class path, or the incubator module was not added: stay scalar */
+      }
+    }
+    return new ColumnKernels();
+  }
+
+  /*
+   * Tells if the kernels make use of SIMD instructions.
+   */
+  boolean isAccelerated() {
+    return false;
+  }
+
+  /*
+   * Applies a default arithmetic operator. Returns false when there is no
+   * kernel for the operator.
+   */
+  boolean apply(BinaryOperatorType type,double [] left,double [] right,double [] result,int rows) {
+    switch (type) {
+      case ADD: for (int i = 0; i < rows; i++) result[i] = left[i] + right[i]; return true;
+      case SUB: for (int i = 0; i < rows; i++) result[i] = left[i] - right[i]; return true;
+      case MUL: for (int i = 0; i < rows; i++) result[i] = left[i] * right[i]; return true;
+      case DIV: for (int i = 0; i < rows; i++) result[i] = left[i] / right[i]; return true;
+      default: return false;
+    }
+  }
+
+  /*
+   * Applies a default comparison, with 1 for true and 0 for false. Returns
+   * false when there is no kernel for the operator.
+   */
+  boolean test(BinaryOperatorType type,double [] left,double [] right,long [] result,int rows) {
+    switch (type) {
+      case LT: for (int i = 0; i < rows; i++) result[i] = left[i] < right[i] ? 1L : 0L; return true;
+      case GT: for (int i = 0; i < rows; i++) result[i] = left[i] > right[i] ? 1L : 0L; return true;
+      case LE: for (int i = 0; i < rows; i++) result[i] = left[i] <= right[i] ? 1L : 0L; return true;
+      case GE: for (int i = 0; i < rows; i++) result[i] = left[i] >= right[i] ? 1L : 0L; return true;
+      default: return false;
+    }
+  }
+
+  /*
+   * Applies one of the default single argument functions. Returns false when
+   * there is no kernel for the function.
+   */
+  boolean apply(String function,double [] operand,double [] result,int rows) {
+    switch (function) {
+      case "abs": for (int i = 0; i < rows; i++) result[i] = Math.abs(operand[i]); return true;
+      case "floor": for (int i = 0; i < rows; i++) result[i] = Math.floor(operand[i]); return true;
+      case "ceil": for (int i = 0; i < rows; i++) result[i] = Math.ceil(operand[i]); return true;
+      default: return false;
+    }
+  }
+}
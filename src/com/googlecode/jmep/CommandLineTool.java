@@ -1,7 +1,11 @@
 package com.googlecode.jmep;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import com.googlecode.jmep.function.Function;
 import com.googlecode.jmep.function.Variable;
@@ -14,6 +18,11 @@ import com.googlecode.jmep.function.Variable;
  * As an example there is an environment defined with one function (sin), one unit (mm)
  * some constants (pi, e, name) and one variable (time).
  *
+ * With arguments it runs in batch mode, evaluating one expression for every line of
+ * a CSV or TSV file whose first line names the columns:
+ *   CommandLineTool <expression> <input file> [<output file>]
+ * Results go to the output file, or to the standard output, one per line. Progress
+ * is reported on the standard error.
  */
 
 public class CommandLineTool {
@@ -36,6 +45,11 @@ public class CommandLineTool {
     env.addVariable("time",()->System.currentTimeMillis()/1000.0);
     financial.addVariable("time",()->System.currentTimeMillis()/1000.0);
     
+    if (args.length >= 2) {
+      batch(env,args);
+      return;
+    }
+
     System.out.println("Starting up Command Line example of jmep.");
     System.out.println("You can use mm as unit and sin as function.");
     LOOP:
@@ -70,4 +84,24 @@ public class CommandLineTool {
       }
     } while (true);
   }
+
+  private static void batch(Environment env,String [] args) {
+    DelimitedFileEvaluator evaluator = new DelimitedFileEvaluator(env,args[0],System.err);
+    try (OutputStream out = new BufferedOutputStream(
+            args.length > 2 ? Files.newOutputStream(Paths.get(args[2])) : System.out, 1 << 20)) {
+      evaluator.evaluate(Paths.get(args[1]),out);
+    } catch (ExpressionException x) {
+      System.err.println(x.getMessage());
+      System.err.println(args[0]);
+      int iPos = x.getPosition();
+      if (iPos >= 0) {
+        for (; iPos != 0; iPos--) System.err.print(" ");
+        System.err.println("^");
+      }
+      System.exit(1);
+    } catch (Exception x) {
+      x.printStackTrace(System.err);
+      System.exit(1);
+    }
+  }
 }
@@ -0,0 +1,354 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.DoubleVariable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates an expression for every line of a CSV or TSV file. The first line
+ * holds the names of the columns, which become variables of the Environment.
+ * The file is memory mapped and the fields are parsed straight from the mapped
+ * bytes, so no String is created per line or per field. Only the columns that
+ * the expression uses are parsed. Lines are collected in blocks, and every
+ * block is evaluated as one batch.<p>
+ *
+ * The results are written one per line. Blank lines are skipped, whether they
+ * end in LF or CRLF, so that every other line gives exactly one result. A
+ * missing or empty field is NaN. Throughput is reported periodically.
+ * @author Jo Desmet
+ * @see Expression#evaluateBatch(Map, double[])
+ */
+final class DelimitedFileEvaluator {
+  private static final long WINDOW_SIZE = 1L << 28;
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final long REPORT_INTERVAL = 1000000000L;
+  private static final double [] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+  private final Environment environment;
+  private final String text;
+  private final PrintStream report;
+  private FileChannel channel;
+  private long size;
+  private MappedByteBuffer window;
+  private long windowStart;
+  private byte separator;
+  private long lineNumber;
+
+  // Per used column: the field it comes from, and the values of the current block.
+  private String [] names;
+  private int [] fieldColumns;
+  private long [][] longs;
+  private double [][] doubles;
+  private boolean [] integral;
+  private boolean parsedIntegral;
+  private long parsedLong;
+
+  private final byte [] line = new byte[32];
+
+  /**
+   * @param environment the Environment receiving the columns as variables.
+   * @param text the expression.
+   * @param report receives the throughput reports, can be <code>null</code>.
+   */
+  DelimitedFileEvaluator(Environment environment,String text,PrintStream report) {
+    this.environment = environment;
+    this.text = text;
+    this.report = report;
+  }
+
+  /**
+   * Evaluates every line of the input, writing the results to the output.
+   * @return the number of lines evaluated, not counting the header.
+   */
+  long evaluate(Path input,OutputStream output) throws IOException, ExpressionException {
+    try (FileChannel fileChannel = FileChannel.open(input, StandardOpenOption.READ)) {
+      this.channel = fileChannel;
+      this.size = channel.size();
+      map(0);
+      long position = 0;
+      long lineEnd = findLineEnd(position);
+      if (lineEnd < 0) throw new IOException("No header in "+input);
+      Expression expression = readHeader(position,lineEnd);
+      position = next(lineEnd);
+
+      long started = System.nanoTime();
+      long reported = started;
+      long rows = 0;
+      double [] results = new double[BLOCK_SIZE];
+      Map<String,Object> columns = new HashMap<>();
+      while (true) {
+        int block = 0;
+        Arrays.fill(integral, true);
+        while (block < BLOCK_SIZE && (lineEnd = findLineEnd(position)) >= 0) {
+          lineNumber++;
+          if (!isBlank(position,lineEnd)) readLine(position,lineEnd,block++);
+          position = next(lineEnd);
+        }
+        if (block == 0) break;
+        for (int c = 0; c < names.length; c++) columns.put(names[c], integral[c] ? longs[c] : doubles[c]);
+        expression.evaluateBatch(columns, block == BLOCK_SIZE ? results : (results = Arrays.copyOf(results, block)));
+        for (int i = 0; i < block; i++) write(output,results[i]);
+        rows += block;
+        long now = System.nanoTime();
+        if (report != null && now - reported >= REPORT_INTERVAL) {
+          report(rows,position,now - started);
+          reported = now;
+        }
+      }
+      output.flush();
+      if (report != null) report(rows,size,System.nanoTime() - started);
+      return rows;
+    } finally {
+      this.channel = null;
+      this.window = null;
+    }
+  }
+
+  private void report(long rows,long bytes,long nanos) {
+    double seconds = Math.max(nanos, 1L) / 1e9;
+    report.printf("%d rows, %.0f rows/s, %.1f MB/s%n", rows, rows / seconds, bytes / seconds / (1024 * 1024));
+  }
+
+  /*
+   * Reads the column names, adds them to the Environment and compiles the
+   * expression. Only the header is turned into Strings. A UTF-8 byte order
+   * mark in front of it is skipped.
+   */
+  private Expression readHeader(long position,long lineEnd) throws ExpressionException {
+    int length = (int)(lineEnd - position);
+    byte [] bytes = new byte[length];
+    for (int i = 0; i < length; i++) bytes[i] = window.get((int)(position - windowStart) + i);
+    String header = new String(bytes, StandardCharsets.UTF_8);
+    if (header.startsWith("\uFEFF")) header = header.substring(1);
+    separator = header.indexOf('\t') >= 0 ? (byte)'\t' : (byte)',';
+    List<String> fields = new ArrayList<>();
+    int start = 0;
+    boolean quoted = false;
+    for (int i = 0; i <= header.length(); i++) {
+      char c = i < header.length() ? header.charAt(i) : (char)separator;
+      if (c == '"') quoted = !quoted;
+      else if (c == separator && !quoted) {
+        fields.add(header.substring(start, i).replace("\"", "").trim());
+        start = i + 1;
+      }
+    }
+    for (String field:fields) environment.addVariable(field, (DoubleVariable)() -> Double.NaN);
+    Expression expression = new Expression(text, environment);
+
+    List<String> used = new ArrayList<>(expression.getVariableNames());
+    used.retainAll(fields);
+    names = used.toArray(new String[used.size()]);
+    fieldColumns = new int[fields.size()];
+    Arrays.fill(fieldColumns, -1);
+    for (int c = 0; c < names.length; c++) fieldColumns[fields.indexOf(names[c])] = c;
+    longs = new long[names.length][BLOCK_SIZE];
+    doubles = new double[names.length][BLOCK_SIZE];
+    integral = new boolean[names.length];
+    return expression;
+  }
+
+  private boolean isBlank(long position,long lineEnd) {
+    return lineEnd == position || (lineEnd == position + 1 && window.get((int)(position - windowStart)) == '\r');
+  }
+
+  /*
+   * Splits the line into fields, parsing those of the used columns.
+   */
+  private void readLine(long position,long lineEnd,int row) {
+    int start = (int)(position - windowStart);
+    int end = (int)(lineEnd - windowStart);
+    if (window.get(end - 1) == '\r') end--;
+    int field = 0;
+    int fieldStart = start;
+    boolean quoted = false;
+    for (int i = start; i <= end; i++) {
+      byte b = i < end ? window.get(i) : separator;
+      if (b == '"') quoted = !quoted;
+      else if (b == separator && !quoted) {
+        if (field < fieldColumns.length && fieldColumns[field] >= 0) {
+          int column = fieldColumns[field];
+          double value = parse(fieldStart, i, field);
+          doubles[column][row] = value;
+          if (parsedIntegral) longs[column][row] = parsedLong;
+          else integral[column] = false;
+        }
+        field++;
+        fieldStart = i + 1;
+      }
+    }
+    for (int c = 0; c < fieldColumns.length; c++) {
+      if (c >= field && fieldColumns[c] >= 0) {
+        doubles[fieldColumns[c]][row] = Double.NaN;
+        integral[fieldColumns[c]] = false;
+      }
+    }
+  }
+
+  /*
+   * Parses a number from the mapped bytes. Whole numbers of up to 18 digits
+   * are taken as a Long. Other numbers of up to 15 digits with a small exponent
+   * are converted exactly with a single multiplication or division. Anything
+   * else goes through Double.parseDouble(). Empty fields are NaN.
+   */
+  private double parse(int from,int to,int field) {
+    while (from < to && (window.get(from) == ' ' || window.get(from) == '"')) from++;
+    while (to > from && (window.get(to - 1) == ' ' || window.get(to - 1) == '"')) to--;
+    parsedIntegral = false;
+    if (from == to) return Double.NaN;
+    int i = from;
+    boolean negative = false;
+    byte b = window.get(i);
+    if (b == '-' || b == '+') {
+      negative = b == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean fraction = false;
+    boolean fast = true;
+    boolean seenDigit = false;
+    for (; i < to; i++) {
+      b = window.get(i);
+      if (b >= '0' && b <= '9') {
+        seenDigit = true;
+        if (digits < 18) {
+          mantissa = mantissa * 10 + (b - '0');
+          if (mantissa != 0) digits++;
+          if (fraction) exponent--;
+        } else {
+          fast = false;
+          if (!fraction) exponent++;
+        }
+      } else if (b == '.' && !fraction) {
+        fraction = true;
+      } else if (b == 'e' || b == 'E') {
+        fraction = true;
+        exponent += parseExponent(i + 1, to, field);
+        break;
+      } else {
+        throw notANumber(from, to, field);
+      }
+    }
+    if (!seenDigit) throw notANumber(from, to, field);
+    if (fast && !fraction) {
+      parsedLong = negative ? -mantissa : mantissa;
+      parsedIntegral = true;
+      return parsedLong;
+    }
+    if (fast && digits <= 15 && exponent >= -22 && exponent <= 22) {
+      double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+      return negative ? -value : value;
+    }
+    return Double.parseDouble(text(from, to));
+  }
+
+  private int parseExponent(int from,int to,int field) {
+    int i = from;
+    boolean negative = false;
+    if (i < to && (window.get(i) == '-' || window.get(i) == '+')) negative = window.get(i++) == '-';
+    if (i == to) throw notANumber(from, to, field);
+    int exponent = 0;
+    for (; i < to; i++) {
+      byte b = window.get(i);
+      if (b < '0' || b > '9') throw notANumber(from, to, field);
+      exponent = Math.min(exponent * 10 + (b - '0'), 9999);
+    }
+    return negative ? -exponent : exponent;
+  }
+
+  private NumberFormatException notANumber(int from,int to,int field) {
+    return new NumberFormatException("Line "+(lineNumber + 1)+", field "+(field + 1)+": not a number: "+text(from, to));
+  }
+
+  private String text(int from,int to) {
+    byte [] bytes = new byte[to - from];
+    for (int i = 0; i < bytes.length; i++) bytes[i] = window.get(from + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /*
+   * Returns the file position of the end of the line starting at the given
+   * position, remapping the window when the line crosses its end, or -1 at the
+   * end of the file. A last line without line feed ends at the end of the file.
+   */
+  private long findLineEnd(long position) throws IOException {
+    if (position >= size) return -1;
+    while (true) {
+      int limit = window.limit();
+      for (int i = (int)(position - windowStart); i < limit; i++) {
+        if (window.get(i) == '\n') return windowStart + i;
+      }
+      if (windowStart + limit >= size) return size;
+      if (position == windowStart) throw new IOException("Line at byte "+position+" is longer than "+WINDOW_SIZE+" bytes");
+      map(position);
+    }
+  }
+
+  private long next(long lineEnd) {
+    return lineEnd + 1;
+  }
+
+  private void map(long position) throws IOException {
+    windowStart = position;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+  }
+
+  /*
+   * Writes the result as a line, whole numbers without a fraction.
+   */
+  private void write(OutputStream output,double value) throws IOException {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      long whole = (long)value;
+      int i = line.length;
+      line[--i] = '\n';
+      long rest = Math.abs(whole);
+      do {
+        line[--i] = (byte)('0' + rest % 10);
+        rest /= 10;
+      } while (rest != 0);
+      if (whole < 0) line[--i] = '-';
+      output.write(line, i, line.length - i);
+    } else {
+      output.write(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+      output.write('\n');
+    }
+  }
+}
@@ -1 +1,768 @@
-/* * JMEP - Java Mathematical Expression Parser. * Copyright (C) 1999  Jo Desmet *  * This library is free software; you can redistribute it and/or * modify it under the terms of the GNU Lesser General Public * License as published by the Free Software Foundation; either * version 2.1 of the License, or any later version. *  * This library is distributed in the hope that it will be useful, * but WITHOUT ANY WARRANTY; without even the implied warranty of * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU * Lesser General Public License for more details. *  * You should have received a copy of the GNU Lesser General Public * License along with this library; if not, write to the Free Software * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA *  * You can contact the Original submitter of this library by * email at: Jo_Desmet@yahoo.com. *  */ package com.googlecode.jmep;import com.googlecode.jmep.function.Constant;import com.googlecode.jmep.function.Variable;import com.googlecode.jmep.function.Function;import com.googlecode.jmep.function.BinaryOperator;import com.googlecode.jmep.function.UnaryOperator;import java.util.EnumMap;import java.util.Map;import java.util.HashMap;/** * The container for operators, functions, variables and units. The Environment * allows for operators to be customized to introduce new value types, or to take * into account how numbers should be constraint for a specific domain (Engineering vs Financial). * @author Jo Desmet */public class Environment {  private final Map<String,Variable> variables;  private final Map<String,Function> functions;  private final Map<String,Map<Class, UnaryOperator>> foundingUnits;  private final Map<String,Map<Class, UnaryOperator>> units;  private final Map<BinaryOperatorType,Map<SimpleClassPair, BinaryOperator>> foundingBinaryOperators;  private final Map<BinaryOperatorType,Map<SimpleClassPair, BinaryOperator>> binaryOperators;  private final Map<UnaryOperatorType,Map<Class, UnaryOperator>> foundingUnaryOperators;  private final Map<UnaryOperatorType,Map<Class, UnaryOperator>> unaryOperators;  private final Expression.OperationalMode operationalMode;  private final Map<SimpleClassPair,UpgradeConversion> upgrades;  private boolean resolved;  /**   * Allocates the Expression Environment.   * @param operationalMode   */  protected Environment(Expression.OperationalMode operationalMode) {    this.operationalMode = operationalMode;    variables = new HashMap<>();    functions = new HashMap<>();    units = new HashMap<>();    foundingUnits = new HashMap<>();    foundingBinaryOperators = new EnumMap<>(BinaryOperatorType.class);    foundingUnaryOperators = new EnumMap<>(UnaryOperatorType.class);    binaryOperators = new EnumMap<>(BinaryOperatorType.class);    unaryOperators = new EnumMap<>(UnaryOperatorType.class);    upgrades = new HashMap<>();    resolved = false;  }  /**   * Adds a labeled String constant to the environment.   * @param <T> The type of the constant   * @param name the label attached to the constant.   * @param value the string value of the labeled constant.   */  public <T> void addConstant(String name,final T value) {    variables.put(name,new Constant(value));  }    /**   * Adds a labeled variable to the environment. This is done by   * using an adapter class. You can either use an inner class or   * an anonymous class for this purpose.   * @param name the label attached to the variable.   * @param variable the variable call-back instance.   * @see Variable   */  public void addVariable(String name,Variable variable) {    variables.put(name,variable);  }  /**   * Returns a map containing all the variables and constants. The   * contents will be of type: String, Double, Integer or Variable.   * Note that you can interact directly with this map.   * @see Environment#addConstant   * @see Environment#addVariable   */  Map<String,Variable> getVariables() {    return variables;  }    /**   * Returns a map containing all the functions. The contents will be   * only of type Function.   * Note that you can interact directly with this map.   * @see Environment#addFunction   */  Map<String,Function> getFunctions() {    return functions;  }    /**   * Returns the labeled variable. Depending how the variable was   * added, this could be: String, Double, Integer or Variable.   * @see Environment#addConstant   * @see Environment#addVariable   */  Variable getVariable(String name) {    return variables.get(name);  }    /**   * Returns the labeled function.   * @see Environment#addFunction   */  Function getFunction(String name) {    return (Function)functions.get(name);  }    /**   * Adds a Function to the environment through means of a functional interface   * or a lambda expression.   * @param name the label attached to the added function.   * @param function the function represented by an implementation of a functional   * interface, or by a lambda expression.   * @see Function   */  final public void addFunction(String name,Function function) {    functions.put(name,function);    resolved = false;  }    /**   * Adds a Unit (Unit of Measure) to the environment through means of a functional interface   * or a lambda expression.   * @param <T> the type of the operand used for applying the unit. The type can be   * inferred by the type of the parameter <code>t</code>.   * @param name the label attached to the added unit   * @param t The Class of the base that will be operated on   * @param unit the unit represented by an implementation of a functional   * interface, or by a lambda expression   * @see UnaryOperator   */  final public <T,R> void registerUnit(String name,Class<T> t,UnaryOperator<T,R> unit) {    Map<Class,UnaryOperator> implementations = foundingUnits.get(name);    if (implementations == null) {      implementations = new HashMap<>();      foundingUnits.put(name, implementations);    }    resolved = false;    implementations.put(t,unit);  }  /**   * Adds a Unary Operator to the environment through means of a functional interface   * or a lambda expression.   * @param <T> the type of the operand used for applying the unit. The type can be   * inferred by the type of the parameter <code>t</code>.   * @param operatorType one of the predefined unary operators where the implementation   * will be attached to.   * @param t The Class of the operator where the operator be operated on   * @param operator the unary operator represented by an implementation of a functional   * interface, or by a lambda expression   * @see UnaryOperator   */  final public <T,R> void register(UnaryOperatorType operatorType,Class<T> t,final UnaryOperator<T,R> operator) {    Map<Class,UnaryOperator> implementations = foundingUnaryOperators.get(operatorType);    if (implementations == null) {      implementations = new HashMap<>();      foundingUnaryOperators.put(operatorType, implementations);    }    resolved = false;    implementations.put(t,operator);  }  /**   * Adds a Binary Operator to the environment through means of a functional interface   * or a lambda expression.   * @param <T> the type of the left operand used for applying the unit. The type can be   * inferred by the type of the parameter <code>t</code>.   * @param <U> the type of the right operand used for applying the unit. The type can be   * inferred by the type of the parameter <code>u</code>.   * @param operatorType one of the predefined binary operators where the implementation   * will be attached to.   * @param t The Class of the left operand where the operator will be applied on.   * @param u The Class of the left operand where the operator will be applied on.   * @param operator the binary operator represented by an implementation of a functional   * interface, or by a lambda expression   * @see BinaryOperator   */  final public <T,U,R> void register(BinaryOperatorType operatorType,Class<T> t,Class<U> u,final BinaryOperator<T,U,R> operator) {    Map<SimpleClassPair,BinaryOperator> implementations = foundingBinaryOperators.get(operatorType);    if (implementations == null) {      implementations = new HashMap<>();      foundingBinaryOperators.put(operatorType, implementations);    }    resolved = false;    implementations.put(SimpleClassPair.of(t,u),operator);    if (t != u && operatorType.isCommutative())  {      // If operator is Commutative, then automatically store the commutative version if not already exists.      SimpleClassPair<U,T> p = SimpleClassPair.of(u, t);      if (!implementations.containsKey(p)) {        implementations.put(p, (BinaryOperator<U,T,R>) (U uu, T tt) -> operator.apply(tt,uu));      }    }  }      final public <T,U> void register(Class<T> t,Class<U> u,final UpgradeConversion<T,U> upgrade) {    resolved = false;    upgrades.put(SimpleClassPair.of(t,u),upgrade);  }      final Map<String,Map<Class, UnaryOperator>> getUnits() {    if (!resolved) resolve();    return this.units;  }    final Map<UnaryOperatorType,Map<Class, UnaryOperator>> getUnaryOperators() {    if (!resolved) resolve();    return this.unaryOperators;  }    final Map<BinaryOperatorType,Map<SimpleClassPair, BinaryOperator>> getBinaryOperators() {    if (!resolved) resolve();    return this.binaryOperators;  }    /**   * provides a default implementation based on the provided Operational Mode. The returned   * Environment can be further customized after retrieving.   * @param operationalMode indicates how operators will be evaluated, and typically has an effect on   * how rounding and internal storage of numbers take place.   * @return an instance of a default Environment.   */  static public Environment getInstance(Expression.OperationalMode operationalMode) {    switch (operationalMode) {      case BASIC: return new BasicEnvironment();      case FINANCIAL: return new FinancialEnvironment();    }    return new Environment(operationalMode);  }    public Expression.OperationalMode getOperationalMode() {    return this.operationalMode;  }    static private class UpgradedBinaryOperator implements BinaryOperator {    private final UpgradeConversion upgradeConversion1;    private final UpgradeConversion upgradeConversion2;    private final BinaryOperator operator;        UpgradedBinaryOperator(UpgradeConversion upgradeConversion,BinaryOperator operator) {      this(upgradeConversion,operator,null);    }    UpgradedBinaryOperator(BinaryOperator operator,UpgradeConversion upgradeConversion) {      this(null,operator,upgradeConversion);    }    UpgradedBinaryOperator(UpgradeConversion upgradeConversion1,BinaryOperator operator,UpgradeConversion upgradeConversion2) {      this.upgradeConversion1 = upgradeConversion1;      this.upgradeConversion2 = upgradeConversion2;      this.operator = operator;    }    @Override    public Object apply(Object t, Object u) {      return operator.apply(upgradeConversion1==null?t:upgradeConversion1.apply(t), upgradeConversion2==null?u:upgradeConversion2.apply(u));    }  }    static private class UpgradedUnaryOperator implements UnaryOperator {    private final UpgradeConversion upgradeConversion;    private final UnaryOperator operator;        UpgradedUnaryOperator(UnaryOperator operator,UpgradeConversion upgradeConversion) {      this.upgradeConversion = upgradeConversion;      this.operator = operator;    }    @Override    public Object apply(Object t) {      return operator.apply(upgradeConversion==null?t:upgradeConversion.apply(t));    }  }    /*   * This function creates extra versions of operators for new Operand Types, using   * the Upgrade Conversions.  */  private void upgradeBinaryOperators(BinaryOperatorType type,Map<SimpleClassPair, BinaryOperator> implementations) {    Map<SimpleClassPair, BinaryOperator> upgradedImplementations = new HashMap<>();    for (Map.Entry<SimpleClassPair,BinaryOperator> e:implementations.entrySet()) {      SimpleClassPair operatorClassPair = e.getKey();      Class operator1Class = operatorClassPair.t;      Class operator2Class = operatorClassPair.u;      BinaryOperator operator = e.getValue();      for (Map.Entry<SimpleClassPair,UpgradeConversion> ee:upgrades.entrySet()) {        SimpleClassPair conversionClassPair = ee.getKey();        Class sourceClass = conversionClassPair.t;        Class targetClass = conversionClassPair.u;        UpgradeConversion conversion = ee.getValue();        if (targetClass.equals(operator1Class)) {          SimpleClassPair pair = SimpleClassPair.of(sourceClass,operator2Class);          if (!this.binaryOperators.get(type).containsKey(pair)) {            BinaryOperator upgradedOperator = new UpgradedBinaryOperator(conversion,operator);            upgradedImplementations.put(pair, upgradedOperator);          }          if (targetClass.equals(operator2Class)) {            pair = SimpleClassPair.of(sourceClass,sourceClass);            if (!this.binaryOperators.get(type).containsKey(pair)) {              BinaryOperator upgradedOperator = new UpgradedBinaryOperator(conversion,operator,conversion);              upgradedImplementations.put(pair, upgradedOperator);            }          }        }        if (targetClass.equals(operator2Class)) {          SimpleClassPair pair = SimpleClassPair.of(operator1Class,sourceClass);          if (!this.binaryOperators.get(type).containsKey(pair)) {            BinaryOperator upgradedOperator = new UpgradedBinaryOperator(operator,conversion);            upgradedImplementations.put(pair, upgradedOperator);          }        }      }    }    if (!upgradedImplementations.isEmpty()) {      this.binaryOperators.get(type).putAll(upgradedImplementations);      upgradeBinaryOperators(type,upgradedImplementations);    }  }  private void upgradeBinaryOperators() {    for (Map.Entry<BinaryOperatorType,Map<SimpleClassPair,BinaryOperator>> e:this.binaryOperators.entrySet()) {      BinaryOperatorType type = e.getKey();      Map<SimpleClassPair,BinaryOperator> implementations = e.getValue();      upgradeBinaryOperators(type,implementations);    }  }  private void upgradeUnaryOperators(UnaryOperatorType type,Map<Class, UnaryOperator> implementations) {    Map<Class, UnaryOperator> upgradedImplementations = new HashMap<>();    for (Map.Entry<Class,UnaryOperator> e:implementations.entrySet()) {      Class operandClass = e.getKey();      UnaryOperator operator = e.getValue();      for (Map.Entry<SimpleClassPair,UpgradeConversion> ee:upgrades.entrySet()) {        SimpleClassPair conversionClassPair = ee.getKey();        Class sourceClass = conversionClassPair.t;        Class targetClass = conversionClassPair.u;        UpgradeConversion conversion = ee.getValue();        if (targetClass.equals(operandClass)) {          if (!this.unaryOperators.get(type).containsKey(targetClass)) {            UnaryOperator upgradedOperator = new UpgradedUnaryOperator(operator,conversion);            upgradedImplementations.put(sourceClass, upgradedOperator);          }        }      }    }    if (!upgradedImplementations.isEmpty()) {      this.unaryOperators.get(type).putAll(upgradedImplementations);      upgradeUnaryOperators(type,upgradedImplementations);    }  }  private void upgradeUnits(String name,Map<Class, UnaryOperator> implementations) {    Map<Class, UnaryOperator> upgradedImplementations = new HashMap<>();    for (Map.Entry<Class,UnaryOperator> e:implementations.entrySet()) {      Class operandClass = e.getKey();      UnaryOperator operator = e.getValue();      for (Map.Entry<SimpleClassPair,UpgradeConversion> ee:upgrades.entrySet()) {        SimpleClassPair conversionClassPair = ee.getKey();        Class sourceClass = conversionClassPair.t;        Class targetClass = conversionClassPair.u;        UpgradeConversion conversion = ee.getValue();        if (targetClass.equals(operandClass)) {          if (!this.units.get(name).containsKey(targetClass)) {            UnaryOperator upgradedOperator = new UpgradedUnaryOperator(operator,conversion);            upgradedImplementations.put(sourceClass, upgradedOperator);          }        }      }    }    if (!upgradedImplementations.isEmpty()) {      this.units.get(name).putAll(upgradedImplementations);      upgradeUnits(name,upgradedImplementations);    }  }  private void upgradeUnaryOperators() {    for (Map.Entry<UnaryOperatorType,Map<Class,UnaryOperator>> e:this.unaryOperators.entrySet()) {      UnaryOperatorType type = e.getKey();      Map<Class,UnaryOperator> implementations = e.getValue();      upgradeUnaryOperators(type,implementations);    }  }    private void upgradeUnits() {    for (Map.Entry<String,Map<Class,UnaryOperator>> e:this.units.entrySet()) {      String name = e.getKey();      Map<Class,UnaryOperator> implementations = e.getValue();      upgradeUnits(name,implementations);    }  }    final public void resolve() {    binaryOperators.clear();    binaryOperators.putAll(foundingBinaryOperators);    unaryOperators.clear();    unaryOperators.putAll(foundingUnaryOperators);    units.clear();    units.putAll(foundingUnits);    upgradeUnaryOperators();    upgradeBinaryOperators();    upgradeUnits();    resolved = true;  }  }
\ No newline at end of file
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+ 
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.Constant;
+import com.googlecode.jmep.function.Variable;
+import com.googlecode.jmep.function.Function;
+import com.googlecode.jmep.function.FunctionTraits;
+import com.googlecode.jmep.function.BinaryOperator;
+import com.googlecode.jmep.function.UnaryOperator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The container for operators, functions, variables and units. The Environment
+ * allows for operators to be customized to introduce new value types, or to take
+ * into account how numbers should be constraint for a specific domain (Engineering vs Financial).<p>
+ *
+ * Registration is synchronized, and resolving publishes an immutable snapshot of
+ * all operators and units. Expressions evaluate against such a snapshot without
+ * locking, so an Environment can be shared by many threads, and operators can
+ * even be registered while other threads keep evaluating.
+ * @author Jo Desmet
+ */
+public class Environment {
+  private final Map<String,Variable> variables;
+  private final Map<String,Function> functions;
+  private final Map<String,Class> variableTypes;
+  private final Map<String,Class> functionTypes;
+  private final Map<String,FunctionTraits> functionTraits;
+  private final Map<String,Map<Class, UnaryOperator>> foundingUnits;
+  private final Map<BinaryOperatorType,Map<SimpleClassPair, BinaryOperator>> foundingBinaryOperators;
+  private final Map<UnaryOperatorType,Map<Class, UnaryOperator>> foundingUnaryOperators;
+  private final Expression.OperationalMode operationalMode;
+  private final Map<SimpleClassPair,UpgradeConversion> upgrades;
+  private final Set<Object> defaultImplementations;
+  private final Map<BinaryOperatorType,Map<SimpleClassPair,BinaryOperator>> resolvedBinaryOperators;
+  private final Map<UnaryOperatorType,Map<Class,UnaryOperator>> resolvedUnaryOperators;
+  private final Map<String,Map<Class,UnaryOperator>> resolvedUnits;
+  private Map<Class,Map<Class,UpgradeConversion>> conversions;
+  private volatile ResolvedOperators resolvedOperators;
+  private final AtomicInteger version = new AtomicInteger();
+  private volatile long [] fingerprint;
+  /* Expressions cached by an ExpressionCache, which only holds this Environment weakly */
+  final Set<Expression> cachedExpressions = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Allocates the Expression Environment.
+   * @param operationalMode
+   */
+  protected Environment(Expression.OperationalMode operationalMode) {
+    this.operationalMode = operationalMode;
+    variables = new ConcurrentHashMap<>();
+    functions = new ConcurrentHashMap<>();
+    variableTypes = new ConcurrentHashMap<>();
+    functionTypes = new ConcurrentHashMap<>();
+    functionTraits = new ConcurrentHashMap<>();
+    foundingUnits = new HashMap<>();
+    foundingBinaryOperators = new EnumMap<>(BinaryOperatorType.class);
+    foundingUnaryOperators = new EnumMap<>(UnaryOperatorType.class);
+    upgrades = new LinkedHashMap<>();
+    defaultImplementations = Collections.newSetFromMap(new IdentityHashMap<>());
+    resolvedBinaryOperators = new EnumMap<>(BinaryOperatorType.class);
+    resolvedUnaryOperators = new EnumMap<>(UnaryOperatorType.class);
+    resolvedUnits = new HashMap<>();
+    resolvedOperators = null;
+  }
+
+  /*
+   * Marks all operators, units, functions and upgrade conversions registered so
+   * far as the defaults of the operational mode. The optimizer and the batch
+   * kernels assume that the default implementations follow the usual arithmetic
+   * rules.
+   */
+  final synchronized void markDefaults() {
+    for (Map<SimpleClassPair,BinaryOperator> implementations:foundingBinaryOperators.values()) {
+      defaultImplementations.addAll(implementations.values());
+    }
+    for (Map<Class,UnaryOperator> implementations:foundingUnaryOperators.values()) {
+      defaultImplementations.addAll(implementations.values());
+    }
+    defaultImplementations.addAll(upgrades.values());
+    defaultImplementations.addAll(functions.values());
+  }
+
+  /*
+   * Tells if the implementation is one of the defaults, or an upgraded version
+   * of a default using default upgrade conversions.
+   */
+  final boolean isDefault(Object implementation) {
+    if (implementation instanceof UpgradedBinaryOperator) {
+      UpgradedBinaryOperator upgraded = (UpgradedBinaryOperator)implementation;
+      return isDefault(upgraded.getOperator())
+              && (upgraded.getLeftConversion() == null || isDefault(upgraded.getLeftConversion()))
+              && (upgraded.getRightConversion() == null || isDefault(upgraded.getRightConversion()));
+    }
+    if (implementation instanceof UpgradedUnaryOperator) {
+      UpgradedUnaryOperator upgraded = (UpgradedUnaryOperator)implementation;
+      return isDefault(upgraded.getOperator())
+              && (upgraded.getConversion() == null || isDefault(upgraded.getConversion()));
+    }
+    if (implementation instanceof ComposedConversion) {
+      ComposedConversion composed = (ComposedConversion)implementation;
+      for (int step = 0; step < composed.getSteps(); step++) {
+        if (!isDefault(composed.getConversion(step))) return false;
+      }
+      return true;
+    }
+    return defaultImplementations.contains(implementation);
+  }
+
+  /**
+   * Adds a labeled String constant to the environment.
+   * @param <T> The type of the constant
+   * @param name the label attached to the constant.
+   * @param value the string value of the labeled constant.
+   */
+  public <T> void addConstant(String name,final T value) {
+    variableTypes.remove(name);
+    variables.put(name,new Constant(value));
+    version.incrementAndGet();
+  }
+  
+  /**
+   * Adds a labeled variable to the environment. This is done by
+   * using an adapter class. You can either use an inner class or
+   * an anonymous class for this purpose.
+   * @param name the label attached to the variable.
+   * @param variable the variable call-back instance.
+   * @see Variable
+   */
+  public void addVariable(String name,Variable variable) {
+    variableTypes.remove(name);
+    variables.put(name,variable);
+    version.incrementAndGet();
+  }
+
+  /**
+   * Adds a labeled variable that always produces values of the given class.
+   * Knowing the type, expressions pick the implementation of the operators
+   * applied on the variable when they are compiled. Operators that are not
+   * defined for it are reported when compiled, unless they are in a branch
+   * that may not be evaluated, such as one of <code>if</code>; those fail when
+   * evaluated.
+   * @param <T> The type of the variable
+   * @param name the label attached to the variable.
+   * @param type the class of every value produced by the variable.
+   * @param variable the variable call-back instance.
+   * @see Variable
+   */
+  public <T> void addVariable(String name,Class<T> type,Variable<T> variable) {
+    variables.put(name,variable);
+    variableTypes.put(name,normalize(type));
+    version.incrementAndGet();
+  }
+
+  /**
+   * Returns a map containing all the variables and constants. The
+   * contents will be of type: String, Double, Integer or Variable.
+   * Note that you can interact directly with this map.
+   * @see Environment#addConstant
+   * @see Environment#addVariable
+   */
+  Map<String,Variable> getVariables() {
+    return variables;
+  }
+  
+  /**
+   * Returns a map containing all the functions. The contents will be
+   * only of type Function.
+   * Note that you can interact directly with this map.
+   * @see Environment#addFunction
+   */
+  Map<String,Function> getFunctions() {
+    return functions;
+  }
+  
+  /**
+   * Returns the labeled variable. Depending how the variable was
+   * added, this could be: String, Double, Integer or Variable.
+   * @see Environment#addConstant
+   * @see Environment#addVariable
+   */
+  Variable getVariable(String name) {
+    return variables.get(name);
+  }
+  
+  /**
+   * Returns the labeled function.
+   * @see Environment#addFunction
+   */
+  Function getFunction(String name) {
+    return (Function)functions.get(name);
+  }
+  
+  /**
+   * Adds a Function to the environment through means of a functional interface
+   * or a lambda expression.
+   * @param name the label attached to the added function.
+   * @param function the function represented by an implementation of a functional
+   * interface, or by a lambda expression.
+   * @see Function
+   */
+  final public void addFunction(String name,Function function) {
+    functionTypes.remove(name);
+    functionTraits.remove(name);
+    functions.put(name,function);
+    version.incrementAndGet();
+  }
+
+  /**
+   * Adds a Function that always returns values of the given class, allowing
+   * operators applied on its result to be checked when compiled, like those
+   * applied on a variable of a known type.
+   * @param <R> the type of the result of the function.
+   * @param name the label attached to the added function.
+   * @param type the class of every value returned by the function.
+   * @param function the function represented by an implementation of a functional
+   * interface, or by a lambda expression.
+   * @see Function
+   */
+  final public <R> void addFunction(String name,Class<R> type,Function function) {
+    functionTraits.remove(name);
+    functions.put(name,function);
+    functionTypes.put(name,normalize(type));
+    version.incrementAndGet();
+  }
+
+  /**
+   * Adds a Function with traits describing its behaviour. A pure function is
+   * evaluated when compiling if all its arguments are constant, and a memoized
+   * function keeps its recent results in a bounded cache shared by all
+   * expressions using this environment.
+   * @param name the label attached to the added function.
+   * @param function the function represented by an implementation of a functional
+   * interface, or by a lambda expression.
+   * @param traits the traits of the function.
+   * @see FunctionTraits
+   * @see Environment#getFunctionStatistics
+   */
+  final public void addFunction(String name,Function function,FunctionTraits traits) {
+    functionTypes.remove(name);
+    functionTraits.put(name,traits);
+    functions.put(name,(traits.getMemoSize() > 0) ? new MemoizedFunction(function,traits.getMemoSize()) : function);
+    version.incrementAndGet();
+  }
+
+  /*
+   * True when the function was added as a pure function.
+   */
+  final boolean isPure(String name) {
+    FunctionTraits traits = functionTraits.get(name);
+    return traits != null && traits.isPure() && functions.containsKey(name);
+  }
+
+  /**
+   * Returns the statistics of the cache of a memoized function.
+   * @param name the label of the function.
+   * @return a snapshot of the statistics, or null when the function is not
+   * memoized.
+   * @see FunctionTraits#memoize(int)
+   */
+  final public FunctionStatistics getFunctionStatistics(String name) {
+    Function function = functions.get(name);
+    return (function instanceof MemoizedFunction) ? ((MemoizedFunction)function).getStatistics() : null;
+  }
+
+  /* Integers are always presented as Long to the operators */
+  private static Class normalize(Class type) {
+    return (type == Integer.class) ? Long.class : type;
+  }
+
+  /*
+   * The class of the values produced by the variable, or null when not known
+   * at compile time.
+   */
+  final Class getVariableType(String name) {
+    Class type = variableTypes.get(name);
+    return (type != null) ? type : Optimizer.typeOf(variables.get(name));
+  }
+
+  /*
+   * The class of the values returned by the function, or null when not known
+   * at compile time.
+   */
+  final Class getFunctionType(String name) {
+    return functionTypes.get(name);
+  }
+  
+  /**
+   * Adds a Unit (Unit of Measure) to the environment through means of a functional interface
+   * or a lambda expression.
+   * @param <T> the type of the operand used for applying the unit. The type can be
+   * inferred by the type of the parameter <code>t</code>.
+   * @param name the label attached to the added unit
+   * @param t The Class of the base that will be operated on
+   * @param unit the unit represented by an implementation of a functional
+   * interface, or by a lambda expression
+   * @see UnaryOperator
+   */
+  final synchronized public <T,R> void registerUnit(String name,Class<T> t,UnaryOperator<T,R> unit) {
+    Map<Class,UnaryOperator> implementations = foundingUnits.get(name);
+    if (implementations == null) {
+      implementations = new LinkedHashMap<>();
+      foundingUnits.put(name, implementations);
+    }
+    resolvedUnits.remove(name);
+    resolvedOperators = null;
+    version.incrementAndGet();
+    implementations.put(t,unit);
+  }
+
+  /**
+   * Adds a Unary Operator to the environment through means of a functional interface
+   * or a lambda expression.
+   * @param <T> the type of the operand used for applying the unit. The type can be
+   * inferred by the type of the parameter <code>t</code>.
+   * @param operatorType one of the predefined unary operators where the implementation
+   * will be attached to.
+   * @param t The Class of the operator where the operator be operated on
+   * @param operator the unary operator represented by an implementation of a functional
+   * interface, or by a lambda expression
+   * @see UnaryOperator
+   */
+  final synchronized public <T,R> void register(UnaryOperatorType operatorType,Class<T> t,final UnaryOperator<T,R> operator) {
+    Map<Class,UnaryOperator> implementations = foundingUnaryOperators.get(operatorType);
+    if (implementations == null) {
+      implementations = new LinkedHashMap<>();
+      foundingUnaryOperators.put(operatorType, implementations);
+    }
+    resolvedUnaryOperators.remove(operatorType);
+    resolvedOperators = null;
+    version.incrementAndGet();
+    implementations.put(t,operator);
+  }
+
+  /**
+   * Adds a Binary Operator to the environment through means of a functional interface
+   * or a lambda expression.
+   * @param <T> the type of the left operand used for applying the unit. The type can be
+   * inferred by the type of the parameter <code>t</code>.
+   * @param <U> the type of the right operand used for applying the unit. The type can be
+   * inferred by the type of the parameter <code>u</code>.
+   * @param operatorType one of the predefined binary operators where the implementation
+   * will be attached to.
+   * @param t The Class of the left operand where the operator will be applied on.
+   * @param u The Class of the left operand where the operator will be applied on.
+   * @param operator the binary operator represented by an implementation of a functional
+   * interface, or by a lambda expression
+   * @see BinaryOperator
+   */
+  final synchronized public <T,U,R> void register(BinaryOperatorType operatorType,Class<T> t,Class<U> u,final BinaryOperator<T,U,R> operator) {
+    Map<SimpleClassPair,BinaryOperator> implementations = foundingBinaryOperators.get(operatorType);
+    if (implementations == null) {
+      implementations = new LinkedHashMap<>();
+      foundingBinaryOperators.put(operatorType, implementations);
+    }
+    resolvedBinaryOperators.remove(operatorType);
+    resolvedOperators = null;
+    version.incrementAndGet();
+    implementations.put(SimpleClassPair.of(t,u),operator);
+    if (t != u && operatorType.isCommutative())  {
+      // If operator is Commutative, then automatically store the commutative version if not already exists.
+      SimpleClassPair<U,T> p = SimpleClassPair.of(u, t);
+      if (!implementations.containsKey(p)) {
+        implementations.put(p, (BinaryOperator<U,T,R>) (U uu, T tt) -> operator.apply(tt,uu));
+      }
+    }
+  }
+    
+  final synchronized public <T,U> void register(Class<T> t,Class<U> u,final UpgradeConversion<T,U> upgrade) {
+    /* An upgrade conversion can affect any operator */
+    conversions = null;
+    resolvedBinaryOperators.clear();
+    resolvedUnaryOperators.clear();
+    resolvedUnits.clear();
+    resolvedOperators = null;
+    version.incrementAndGet();
+    upgrades.put(SimpleClassPair.of(t,u),upgrade);
+  }
+    
+  /*
+   * Returns the current snapshot of the resolved operators, resolving first when
+   * something has been registered since. Once published, reading the snapshot
+   * takes no lock.
+   */
+  final ResolvedOperators getResolvedOperators() {
+    ResolvedOperators resolved = this.resolvedOperators;
+    if (resolved == null) {
+      synchronized (this) {
+        resolved = this.resolvedOperators;
+        if (resolved == null) resolved = resolveOperators();
+      }
+    }
+    return resolved;
+  }
+  
+  /*
+   * Changes every time something gets added to the environment. Expressions
+   * compiled against an older version may no longer be accurate.
+   */
+  final int getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Returns a fingerprint of everything that compiling an expression depends
+   * on: the names and declared types of the variables and functions, the values
+   * of the constants, the operand classes of the operators, units and upgrade
+   * conversions, and which of them are the defaults. How implementations behave
+   * is not covered. A compiled expression can only be loaded into an Environment
+   * with the same fingerprint.
+   * @return the fingerprint, which is the same for equally set up Environments.
+   * @see Expression#writeTo(java.io.OutputStream)
+   */
+  public long getFingerprint() {
+    long [] fingerprint = this.fingerprint;
+    if (fingerprint != null && fingerprint[0] == version.get()) return fingerprint[1];
+    synchronized (this) {
+      int current = version.get();
+      List<String> entries = new ArrayList<>();
+      entries.add("mode "+operationalMode);
+      for (Map.Entry<String,Variable> e:variables.entrySet()) {
+        Variable variable = e.getValue();
+        if (variable.isDeferrable()) entries.add("variable "+e.getKey()+" "+describe(getVariableType(e.getKey())));
+        else {
+          Object value = variable.get();
+          entries.add("constant "+e.getKey()+" "+describe(value == null ? null : value.getClass())+" "+value);
+        }
+      }
+      for (Map.Entry<String,Function> e:functions.entrySet()) {
+        entries.add("function "+e.getKey()+" "+describe(getFunctionType(e.getKey()))+" "+isPure(e.getKey())+" "+isDefault(e.getValue()));
+      }
+      for (Map.Entry<BinaryOperatorType,Map<SimpleClassPair,BinaryOperator>> e:foundingBinaryOperators.entrySet()) {
+        for (Map.Entry<SimpleClassPair,BinaryOperator> ee:e.getValue().entrySet()) {
+          entries.add("binary "+e.getKey()+" "+describe(ee.getKey().t)+" "+describe(ee.getKey().u)+" "+isDefault(ee.getValue()));
+        }
+      }
+      for (Map.Entry<UnaryOperatorType,Map<Class,UnaryOperator>> e:foundingUnaryOperators.entrySet()) {
+        for (Map.Entry<Class,UnaryOperator> ee:e.getValue().entrySet()) {
+          entries.add("unary "+e.getKey()+" "+describe(ee.getKey())+" "+isDefault(ee.getValue()));
+        }
+      }
+      for (Map.Entry<String,Map<Class,UnaryOperator>> e:foundingUnits.entrySet()) {
+        for (Map.Entry<Class,UnaryOperator> ee:e.getValue().entrySet()) {
+          entries.add("unit "+e.getKey()+" "+describe(ee.getKey())+" "+isDefault(ee.getValue()));
+        }
+      }
+      for (Map.Entry<SimpleClassPair,UpgradeConversion> e:upgrades.entrySet()) {
+        entries.add("upgrade "+describe(e.getKey().t)+" "+describe(e.getKey().u)+" "+isDefault(e.getValue()));
+      }
+      Collections.sort(entries);
+      /* 64-bit FNV-1a */
+      long hash = 0xcbf29ce484222325L;
+      for (String entry:entries) {
+        for (int i = 0; i < entry.length(); i++) {
+          hash = (hash ^ entry.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ '\n') * 0x100000001b3L;
+      }
+      this.fingerprint = new long [] {current,hash};
+      return hash;
+    }
+  }
+
+  private static String describe(Class type) {
+    return (type == null) ? "?" : type.getName();
+  }
+  
+  /**
+   * provides a default implementation based on the provided Operational Mode. The returned
+   * Environment can be further customized after retrieving.
+   * @param operationalMode indicates how operators will be evaluated, and typically has an effect on
+   * how rounding and internal storage of numbers take place.
+   * @return an instance of a default Environment.
+   */
+  static public Environment getInstance(Expression.OperationalMode operationalMode) {
+    switch (operationalMode) {
+      case BASIC: return new BasicEnvironment();
+      case FINANCIAL: return new FinancialEnvironment();
+    }
+    return new Environment(operationalMode);
+  }
+  
+  public Expression.OperationalMode getOperationalMode() {
+    return this.operationalMode;
+  }
+  
+  static final class UpgradedBinaryOperator implements BinaryOperator {
+    private final UpgradeConversion upgradeConversion1;
+    private final UpgradeConversion upgradeConversion2;
+    private final BinaryOperator operator;
+    
+    UpgradedBinaryOperator(UpgradeConversion upgradeConversion,BinaryOperator operator) {
+      this(upgradeConversion,operator,null);
+    }
+
+    UpgradedBinaryOperator(BinaryOperator operator,UpgradeConversion upgradeConversion) {
+      this(null,operator,upgradeConversion);
+    }
+
+    UpgradedBinaryOperator(UpgradeConversion upgradeConversion1,BinaryOperator operator,UpgradeConversion upgradeConversion2) {
+      this.upgradeConversion1 = upgradeConversion1;
+      this.upgradeConversion2 = upgradeConversion2;
+      this.operator = operator;
+    }
+
+    @Override
+    public Object apply(Object t, Object u) {
+      return operator.apply(upgradeConversion1==null?t:upgradeConversion1.apply(t), upgradeConversion2==null?u:upgradeConversion2.apply(u));
+    }
+
+    UpgradeConversion getLeftConversion() {
+      return upgradeConversion1;
+    }
+
+    UpgradeConversion getRightConversion() {
+      return upgradeConversion2;
+    }
+
+    BinaryOperator getOperator() {
+      return operator;
+    }
+  }
+  
+  static final class UpgradedUnaryOperator implements UnaryOperator {
+    private final UpgradeConversion upgradeConversion;
+    private final UnaryOperator operator;
+    
+    UpgradedUnaryOperator(UnaryOperator operator,UpgradeConversion upgradeConversion) {
+      this.upgradeConversion = upgradeConversion;
+      this.operator = operator;
+    }
+
+    @Override
+    public Object apply(Object t) {
+      return operator.apply(upgradeConversion==null?t:upgradeConversion.apply(t));
+    }
+
+    UpgradeConversion getConversion() {
+      return upgradeConversion;
+    }
+
+    UnaryOperator getOperator() {
+      return operator;
+    }
+  }
+  
+  /*
+   * A chain of upgrade conversions collapsed into one, so that an upgraded
+   * operator never has to call through more than one level of wrapping.
+   */
+  static final class ComposedConversion implements UpgradeConversion {
+    private final UpgradeConversion [] conversions;
+
+    ComposedConversion(UpgradeConversion [] conversions) {
+      this.conversions = conversions;
+    }
+
+    @Override
+    public Object apply(Object t) {
+      Object value = t;
+      for (UpgradeConversion conversion:conversions) value = conversion.apply(value);
+      return value;
+    }
+
+    int getSteps() {
+      return conversions.length;
+    }
+
+    UpgradeConversion getConversion(int step) {
+      return conversions[step];
+    }
+  }
+
+  private static int getSteps(UpgradeConversion conversion) {
+    if (conversion == null) return 0;
+    if (conversion instanceof ComposedConversion) return ((ComposedConversion)conversion).getSteps();
+    return 1;
+  }
+
+  /*
+   * For every class that operands can be upgraded to, the classes that can be
+   * upgraded to it, each with the conversion along the shortest chain of upgrade
+   * conversions. Only recalculated after registering an upgrade conversion.
+   */
+  private Map<Class,Map<Class,UpgradeConversion>> getConversions() {
+    if (conversions != null) return conversions;
+    Map<Class,Map<Class,UpgradeConversion>> result = new HashMap<>();
+    Set<Class> sources = new LinkedHashSet<>();
+    for (SimpleClassPair pair:upgrades.keySet()) sources.add(pair.t);
+    for (Class source:sources) {
+      /* Breadth first, so the first chain reaching a class is the shortest one */
+      Map<Class,List<UpgradeConversion>> chains = new LinkedHashMap<>();
+      chains.put(source,Collections.emptyList());
+      Deque<Class> pending = new ArrayDeque<>();
+      pending.add(source);
+      while (!pending.isEmpty()) {
+        Class from = pending.poll();
+        for (Map.Entry<SimpleClassPair,UpgradeConversion> e:upgrades.entrySet()) {
+          Class to = e.getKey().u;
+          if (e.getKey().t.equals(from) && !chains.containsKey(to)) {
+            List<UpgradeConversion> chain = new ArrayList<>(chains.get(from));
+            chain.add(e.getValue());
+            chains.put(to,chain);
+            pending.add(to);
+          }
+        }
+      }
+      for (Map.Entry<Class,List<UpgradeConversion>> e:chains.entrySet()) {
+        List<UpgradeConversion> chain = e.getValue();
+        if (chain.isEmpty()) continue;
+        Map<Class,UpgradeConversion> upgradable = result.get(e.getKey());
+        if (upgradable == null) {
+          upgradable = new LinkedHashMap<>();
+          result.put(e.getKey(),upgradable);
+        }
+        upgradable.put(source,chain.size() == 1 ? chain.get(0) : new ComposedConversion(chain.toArray(new UpgradeConversion[chain.size()])));
+      }
+    }
+    conversions = result;
+    return result;
+  }
+
+  /*
+   * The classes that can be used for an operand of the given class, including
+   * the class itself without conversion.
+   */
+  private Map<Class,UpgradeConversion> getUpgradable(Class operandClass) {
+    Map<Class,UpgradeConversion> upgradable = new LinkedHashMap<>();
+    upgradable.put(operandClass,null);
+    Map<Class,UpgradeConversion> conversions = getConversions().get(operandClass);
+    if (conversions != null) upgradable.putAll(conversions);
+    return upgradable;
+  }
+
+  /*
+   * This function creates extra versions of operators for new Operand Types, using
+   * the Upgrade Conversions. Registered implementations always win, otherwise the
+   * version that needs the fewest upgrades.
+   */
+  private Map<SimpleClassPair,BinaryOperator> upgradeBinaryOperators(Map<SimpleClassPair,BinaryOperator> implementations) {
+    Map<SimpleClassPair,BinaryOperator> resolved = new HashMap<>(implementations);
+    Map<SimpleClassPair,Integer> steps = new HashMap<>();
+    for (Map.Entry<SimpleClassPair,BinaryOperator> e:implementations.entrySet()) {
+      Map<Class,UpgradeConversion> lefts = getUpgradable(e.getKey().t);
+      Map<Class,UpgradeConversion> rights = getUpgradable(e.getKey().u);
+      for (Map.Entry<Class,UpgradeConversion> left:lefts.entrySet()) {
+        for (Map.Entry<Class,UpgradeConversion> right:rights.entrySet()) {
+          SimpleClassPair pair = SimpleClassPair.of(left.getKey(),right.getKey());
+          if (implementations.containsKey(pair)) continue;
+          int upgradeSteps = getSteps(left.getValue()) + getSteps(right.getValue());
+          Integer best = steps.get(pair);
+          if (best == null || upgradeSteps < best) {
+            resolved.put(pair,new UpgradedBinaryOperator(left.getValue(),e.getValue(),right.getValue()));
+            steps.put(pair,upgradeSteps);
+          }
+        }
+      }
+    }
+    return resolved;
+  }
+
+  private Map<Class,UnaryOperator> upgradeUnaryOperators(Map<Class,UnaryOperator> implementations) {
+    Map<Class,UnaryOperator> resolved = new HashMap<>(implementations);
+    Map<Class,Integer> steps = new HashMap<>();
+    for (Map.Entry<Class,UnaryOperator> e:implementations.entrySet()) {
+      for (Map.Entry<Class,UpgradeConversion> operand:getUpgradable(e.getKey()).entrySet()) {
+        if (implementations.containsKey(operand.getKey())) continue;
+        int upgradeSteps = getSteps(operand.getValue());
+        Integer best = steps.get(operand.getKey());
+        if (best == null || upgradeSteps < best) {
+          resolved.put(operand.getKey(),new UpgradedUnaryOperator(e.getValue(),operand.getValue()));
+          steps.put(operand.getKey(),upgradeSteps);
+        }
+      }
+    }
+    return resolved;
+  }
+
+  /*
+   * Only resolves what has not been resolved since the last registration that
+   * affected it. The implementations resolved now are collected in added,
+   * unless null.
+   */
+  private Map<BinaryOperatorType,Map<SimpleClassPair,BinaryOperator>> resolveBinaryOperators(List<Map<?,?>> added) {
+    for (Map.Entry<BinaryOperatorType,Map<SimpleClassPair,BinaryOperator>> e:foundingBinaryOperators.entrySet()) {
+      if (!resolvedBinaryOperators.containsKey(e.getKey())) {
+        Map<SimpleClassPair,BinaryOperator> implementations = upgradeBinaryOperators(e.getValue());
+        resolvedBinaryOperators.put(e.getKey(),implementations);
+        if (added != null) added.add(implementations);
+      }
+    }
+    return resolvedBinaryOperators;
+  }
+
+  private <K> Map<K,Map<Class,UnaryOperator>> resolveUnaryOperators(Map<K,Map<Class,UnaryOperator>> founding,
+          Map<K,Map<Class,UnaryOperator>> resolved,List<Map<?,?>> added) {
+    for (Map.Entry<K,Map<Class,UnaryOperator>> e:founding.entrySet()) {
+      if (!resolved.containsKey(e.getKey())) {
+        Map<Class,UnaryOperator> implementations = upgradeUnaryOperators(e.getValue());
+        resolved.put(e.getKey(),implementations);
+        if (added != null) added.add(implementations);
+      }
+    }
+    return resolved;
+  }
+
+  /**
+   * Resolves all operators and units, adding the versions that become available
+   * through the upgrade conversions, and publishes the result as a new immutable
+   * snapshot. Evaluations in progress keep using the snapshot they started with.
+   * Nothing is done when nothing has been registered since the last time.
+   */
+  final synchronized public void resolve() {
+    if (resolvedOperators == null) resolveOperators();
+  }
+
+  /*
+   * The founding maps are copied, so that the upgraded versions never leak back
+   * into what was registered. Must be called while holding the lock.
+   */
+  private ResolvedOperators resolveOperators() {
+    Object event = FlightEvents.beginResolve();
+    List<Map<?,?>> added = (event == null) ? null : new ArrayList<>();
+    ResolvedOperators resolved = new ResolvedOperators(
+            resolveBinaryOperators(added),
+            resolveUnaryOperators(foundingUnaryOperators,resolvedUnaryOperators,added),
+            resolveUnaryOperators(foundingUnits,resolvedUnits,added));
+    FlightEvents.endResolve(event,added);
+    this.resolvedOperators = resolved;
+    return resolved;
+  }
+  
+}
@@ -27,16 +27,29 @@ import com.googlecode.jmep.function.Constant;
 import com.googlecode.jmep.function.Variable;
 import com.googlecode.jmep.function.Function;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.text.StringCharacterIterator;
 
 import static com.googlecode.jmep.BinaryOperatorType.*;
 import static com.googlecode.jmep.UnaryOperatorType.*;
-import java.math.BigDecimal;
 
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -51,7 +64,12 @@ import java.util.Deque;
  *
  * Supported operators are: <code>( ) + - * / ^ and or xor &amp; |
  * &lt; &lt;= &gt; &gt;= = &lt;&gt; % not inv</code>
- * and follows mostly the rules as in most programming languages.<p>
+ * and follows mostly the rules as in most programming languages.
+ * As such <code>and</code> and <code>or</code> only evaluate their right
+ * operand when the left operand does not decide the result, and the conditional
+ * <code>if(cond, a, b)</code> only evaluates one of <code>a</code> and
+ * <code>b</code>, unless the Environment defines a function of its own named
+ * <code>if</code>.<p>
  *
  * Be careful with the use of the division parameter (<code>/</code>), when
  * both operands are of the type Integer, then the result will also be an
@@ -65,6 +83,19 @@ public class Expression {
   public static enum OperationalMode {
     BASIC, SCIENTIFIC, ENGINEERING, FINANCIAL
   }
+
+  /**
+   * Indicates how a compiled expression gets evaluated.
+   * @see Expression#compile(CompileMode)
+   */
+  public static enum CompileMode {
+    /** Walks the RPN Stack on every evaluation (default). */
+    INTERPRETED,
+    /** Translates the RPN Stack into a generated class, allowing the JIT to inline the complete formula. */
+    BYTECODE,
+    /** Builds a tree of nodes calling each other directly, without generating classes. */
+    TREE
+  }
     private static final int D_TokenToOS   = 0x0001; /* Move current token to BinaryOperatorType Stack, next token is taken as current */
     private static final int D_TokenToRS   = 0x0002; /* Move current token to Result (RPN) Stack, next token is taken as current */
     private static final int D_NextToken   = 0x0004; /* Skip Current Token and take next as current */
@@ -210,6 +241,12 @@ public class Expression {
     private Environment environment;
     private Deque<com.googlecode.jmep.Token> tokenList;
     private Deque<com.googlecode.jmep.Token> rpnStack;
+    private Token [] program;
+    private String [] slotNames;
+    private int [] slots;
+    private Evaluator evaluator;
+    private final ThreadLocal<PrimitiveEvaluator> primitiveEvaluator = new ThreadLocal<>();
+    private int maximumDepth;
     
     /**
      * Constructs a mathematical expression from a String. This will do all
@@ -237,155 +274,111 @@ public class Expression {
     public Expression(String expression,Environment environment) throws ExpressionException {
         this.expression = expression;
         this.environment = environment;
-        environment.resolve();
+        environment.getResolvedOperators();
+        Object event = FlightEvents.beginCompile();
         tokenize();
-        compile();
-        /* optimize(); */
-        /*
-         * TODO:
-         *  - implement a method to optimize the resultint RPNStack.
-         *    call this method 'optimize()'. This can wait, and should have
-         *    low priority because JMEP can work without it.
-         */
-    }
-    
-    private static String parseIdentifier(StringCharacterIterator iterString) {
-        StringBuilder identifier = new StringBuilder();
-        char cc = iterString.current();
-        
-        if (!Character.isUnicodeIdentifierStart(cc)) return null;
-        identifier.append(cc);
-        cc = iterString.next();
-        while (Character.isIdentifierIgnorable(cc)) cc = iterString.next();
-        while (Character.isUnicodeIdentifierPart(cc) || cc == '.') {
-            identifier.append(cc);
-            cc = iterString.next();
-            while (Character.isIdentifierIgnorable(cc)) cc = iterString.next();
-        }
-        return identifier.toString();
+        prepare();
+        FlightEvents.endCompile(event,expression,tokenList.size());
     }
     
-    private Number parseNumber(StringCharacterIterator iterString) throws ExpressionException {
-        char cc = iterString.current();
-        StringBuilder sb = new StringBuilder();
-        
-        if (Character.isDigit(cc) || cc == '.') {
-            while (Character.isDigit(cc)) {
-              sb.append(cc);
-              cc = iterString.next();
-            }
-            if (cc == '.' || cc == 'e' || cc == 'E') {
-                if (cc == '.') {
-                  // Fractional Part
-                  sb.append(cc);
-                  cc = iterString.next();
-                  while (Character.isDigit(cc)) {
-                    sb.append(cc);
-                    cc = iterString.next();
-                  }
-                }
-                if (cc == 'e' || cc == 'E') {
-                  // Exponent
-                  sb.append(cc);
-                  cc = iterString.next();
-                  if (!Character.isDigit(cc)) {
-                    if (cc == '+' || cc == '-') {
-                      // Exponent Sign
-                      sb.append(cc);
-                      cc = iterString.next();
-                    } else {
-                      throw new ExpressionException(iterString.getIndex(),"Invalid Number Syntax: Unexpected Character in Exponent.");
-                    }
-                  }
-                  while (Character.isDigit(cc)) {
-                    sb.append(cc);
-                    cc = iterString.next();
-                  }
-                }
-            }
-        }
-        if (cc == '.') {
-          throw new ExpressionException(iterString.getIndex(),"Invalid Number Syntax: Unexpected Character.");
-        }
-        BigDecimal bd = new BigDecimal(sb.toString()).stripTrailingZeros();
-        if (bd.scale() <= 0 && bd.compareTo(BigDecimal.valueOf((long)Long.MAX_VALUE)) <= 0 && bd.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) >= 0) {
-          return bd.longValueExact();
-        }
-        /*
-         * It is important to depend on BigDecimal to do the string-to-number conversion for you. It is smarter
-         * than trying to manually build up the number as 0.01 would have been built up as 0.1 * 0.1, introducing
-         * an error of 2.22E-16. When directly converting using BigDecimal, 0.01*100-1 will give an exact result of 0.0.
-         * You will note that when you calculate this using Excpression - when all numbers are represente as a double - 
-         * 0.1*0.1*100-1 will again evaluate to 2.22E-16 due to the same introduced roundings. Use of BigDecimal for
-         * representing the numbers will cause this to be zero as well.
-        */
-        if (environment.getOperationalMode() == OperationalMode.FINANCIAL) {
-          return bd;
+    /*
+     * Constructs the specialization of an expression.
+     * @see #specialize(Map)
+     */
+    private Expression(Expression expression,Map<String,?> fixedBindings) throws ExpressionException {
+        this.expression = expression.expression;
+        this.environment = expression.environment;
+        environment.getResolvedOperators();
+        if (expression.tokenList == null) {
+            /* Loaded in its compiled form, so the RPN Stack is specialized instead */
+            this.rpnStack = new LinkedList<>();
+            for (Token token:expression.rpnStack) this.rpnStack.add(specialize(token,fixedBindings));
+            optimize();
+            link();
+            return;
         }
-        return bd.doubleValue();
+        this.tokenList = new LinkedList<>();
+        for (Token token:expression.tokenList) this.tokenList.add(specialize(token,fixedBindings));
+        prepare();
     }
     
-    private String parseString(StringCharacterIterator iterString) throws ExpressionException {
-        char cc = iterString.current();
-        StringBuilder string = new StringBuilder();
-        
-        if (cc == '"') {
-            cc = iterString.next();
-            while (cc != '"') {
-              if (cc == StringCharacterIterator.DONE) {
-                throw new ExpressionException(iterString.getEndIndex()-1, "Invalid Syntax: String not terminated properly." );
-              }
-              if (cc == '\\') {
-                  int iSavePos = iterString.getIndex();
-                  char nc = iterString.next();
-                  iterString.setIndex(iSavePos);
-                  if (nc == '"') cc = iterString.next();
-                  else if (nc == '\\') cc = iterString.next();
-              }
-              string.append(cc);
-              cc = iterString.next();
-            }
-            if (cc == '"') iterString.next(); // Ignore Return-Value
-            return string.toString();
+    private static Token specialize(Token token,Map<String,?> fixedBindings) {
+        if (token.getType() == Token.Type.VAR && fixedBindings.containsKey(((VariableToken)token).getName())) {
+            Object value = fixedBindings.get(((VariableToken)token).getName());
+            if (value == null) throw new IllegalArgumentException("No value for variable "+((VariableToken)token).getName());
+            return new ValueToken(value,token.getPosition());
         }
-        return null;
+        return token;
     }
-
+    
+    /*
+     * Constructs an expression from its compiled form.
+     * @see ExpressionCodec
+     */
+    Expression(String expression,Environment environment,Deque<Token> rpnStack) {
+        this.expression = expression;
+        this.environment = environment;
+        this.rpnStack = rpnStack;
+        link();
+    }
+    
+    /*
+     * Compiles the tokens into the RPN Stack, ready for evaluation.
+     */
+    private void prepare() throws ExpressionException {
+        compile();
+        optimize();
+        link();
+    }
+    
+    /*
+     * Specializes functions called with constant arguments, then binds the RPN
+     * Stack and lays it out for evaluation.
+     */
+    private void link() {
+        rpnStack = Optimizer.specializeFunctions(rpnStack);
+        bind();
+        program = rpnStack.toArray(new Token[rpnStack.size()]);
+        slotNames = getVariableNames().toArray(new String[0]);
+        slots = PrimitiveEvaluator.slotsOf(program,slotNames);
+        maximumDepth = getMaximumDepth(rpnStack);
+    }
+    
     private void tokenize() throws ExpressionException {
         char cc;
-        StringCharacterIterator iterString = new StringCharacterIterator(this.expression);
+        Lexer lexer = new Lexer(this.expression);
         
         this.tokenList = new java.util.LinkedList<>();
         this.tokenList.add(new Token(Token.Type.MRK,0));
         
-        cc = iterString.first();
+        cc = lexer.current();
         
         
         while (true) {
-            while (Character.isWhitespace(cc)) cc = iterString.next();
+            while (Character.isWhitespace(cc)) cc = lexer.next();
             
             switch (cc) {
-	            case StringCharacterIterator.DONE:
-	                this.tokenList.add(new Token(Token.Type.MRK,iterString.getIndex()));
+	            case Lexer.DONE:
+	                this.tokenList.add(new Token(Token.Type.MRK,lexer.getIndex()));
 	                return;
 	            case '(':
-	                this.tokenList.add(new Token(Token.Type.OPA,iterString.getIndex()));
-	                cc = iterString.next();
+	                this.tokenList.add(new Token(Token.Type.OPA,lexer.getIndex()));
+	                cc = lexer.next();
 	                continue;
 	            case ')':
-	                this.tokenList.add(new Token(Token.Type.CPA,iterString.getIndex()));
-	                cc = iterString.next();
+	                this.tokenList.add(new Token(Token.Type.CPA,lexer.getIndex()));
+	                cc = lexer.next();
 	                continue;
 	            case ',':
-	                this.tokenList.add(new Token(Token.Type.CMA,iterString.getIndex()));
-	                cc = iterString.next();
+	                this.tokenList.add(new Token(Token.Type.CMA,lexer.getIndex()));
+	                cc = lexer.next();
 	                continue;
             }
             
             if (Character.isUnicodeIdentifierStart(cc)) {
-                int identifierPosition = iterString.getIndex();
-                String identifier = parseIdentifier(iterString);
-                cc = iterString.current();
+                int identifierPosition = lexer.getIndex();
+                String identifier = lexer.parseIdentifier();
+                cc = lexer.current();
                 
                 if (identifier == null) throw new IllegalExpressionStateException(identifierPosition);
                 Token lastToken = tokenList.peekLast();
@@ -423,11 +416,11 @@ public class Expression {
                         continue;
                     }
                 }
-                while (Character.isWhitespace(cc)) cc = iterString.next();
+                while (Character.isWhitespace(cc)) cc = lexer.next();
                 if (cc == '(') {
                     /* it is a function */
                     Function oFunction = (Function)this.environment.getFunction(identifier);
-                    cc = iterString.next();
+                    cc = lexer.next();
                     if (oFunction == null)
                         this.tokenList.add(new FunctionToken(identifier,identifierPosition));
                     else
@@ -449,19 +442,19 @@ public class Expression {
             if (Character.isDigit(cc) || cc == '.') { 
                 /* is numerical */
                 Number number;
-                int iNumberPos = iterString.getIndex();
+                int iNumberPos = lexer.getIndex();
                 
-                number = parseNumber(iterString);
-                cc = iterString.current();
+                number = lexer.parseNumber(environment.getOperationalMode() == OperationalMode.FINANCIAL);
+                cc = lexer.current();
                 if (number == null) throw new IllegalExpressionStateException(iNumberPos);
                 this.tokenList.add(new ValueToken(number,iNumberPos));
                 continue;
             }
             
             if (cc == '"') {
-                int iStringPos = iterString.getIndex();
-                String sValue = parseString(iterString);
-                cc = iterString.current();
+                int iStringPos = lexer.getIndex();
+                String sValue = lexer.parseString();
+                cc = lexer.current();
                 if (sValue == null) throw new IllegalExpressionStateException(iStringPos);
                 this.tokenList.add(new ValueToken(sValue,iStringPos));
                 continue;
@@ -469,32 +462,32 @@ public class Expression {
             
             switch (cc) {
             case '^':
-                this.tokenList.add(new BinaryOperatorToken(POW,iterString.getIndex()));
-                cc = iterString.next();
+                this.tokenList.add(new BinaryOperatorToken(POW,lexer.getIndex()));
+                cc = lexer.next();
                 continue;
             case '*':
-                this.tokenList.add(new BinaryOperatorToken(MUL,iterString.getIndex()));
-                cc = iterString.next();
+                this.tokenList.add(new BinaryOperatorToken(MUL,lexer.getIndex()));
+                cc = lexer.next();
                 continue;
             case '/':
-                this.tokenList.add(new BinaryOperatorToken(DIV,iterString.getIndex()));
-                cc = iterString.next();
+                this.tokenList.add(new BinaryOperatorToken(DIV,lexer.getIndex()));
+                cc = lexer.next();
                 continue;
             case '&':
-                this.tokenList.add(new BinaryOperatorToken(AND,iterString.getIndex()));
-                cc = iterString.next();
+                this.tokenList.add(new BinaryOperatorToken(AND,lexer.getIndex()));
+                cc = lexer.next();
                 continue;
             case '%':
-                this.tokenList.add(new BinaryOperatorToken(MOD,iterString.getIndex()));
-                cc = iterString.next();
+                this.tokenList.add(new BinaryOperatorToken(MOD,lexer.getIndex()));
+                cc = lexer.next();
                 continue;
             case '|':
-                this.tokenList.add(new BinaryOperatorToken(OR,iterString.getIndex()));
-                cc = iterString.next();
+                this.tokenList.add(new BinaryOperatorToken(OR,lexer.getIndex()));
+                cc = lexer.next();
                 continue;
             case '=':
-                this.tokenList.add(new BinaryOperatorToken(EQ,iterString.getIndex()));
-                cc = iterString.next();
+                this.tokenList.add(new BinaryOperatorToken(EQ,lexer.getIndex()));
+                cc = lexer.next();
                 continue;
             case '+': {
                 Token lastToken = tokenList.peekLast();
@@ -504,13 +497,13 @@ public class Expression {
                         lastToken.getType() == Token.Type.UNI ||
                         lastToken.getType() == Token.Type.CPA
                 ) {
-                    this.tokenList.add(new BinaryOperatorToken(ADD,iterString.getIndex()));
-                    cc = iterString.next();
+                    this.tokenList.add(new BinaryOperatorToken(ADD,lexer.getIndex()));
+                    cc = lexer.next();
                     continue;
                 }
                 else {
-                    this.tokenList.add(new UnaryOperatorToken(PLS,iterString.getIndex()));
-                    cc = iterString.next();
+                    this.tokenList.add(new UnaryOperatorToken(PLS,lexer.getIndex()));
+                    cc = lexer.next();
                     continue;
                 }
             }
@@ -522,58 +515,58 @@ public class Expression {
                         lastToken.getType() == Token.Type.UNI ||
                         lastToken.getType() == Token.Type.CPA
                 ) {
-                    this.tokenList.add(new BinaryOperatorToken(SUB,iterString.getIndex()));
-                    cc = iterString.next();
+                    this.tokenList.add(new BinaryOperatorToken(SUB,lexer.getIndex()));
+                    cc = lexer.next();
                     continue;
                 }
                 else {
-                    this.tokenList.add(new UnaryOperatorToken(MIN,iterString.getIndex()));
-                    cc = iterString.next();
+                    this.tokenList.add(new UnaryOperatorToken(MIN,lexer.getIndex()));
+                    cc = lexer.next();
                     continue;
                 }
             }
             case '<': {
-                int iPos = iterString.getIndex();
-                cc = iterString.next();
+                int iPos = lexer.getIndex();
+                cc = lexer.next();
                 if (cc == '>') {
                     this.tokenList.add(new BinaryOperatorToken(NE,iPos));
-                    cc = iterString.next();
+                    cc = lexer.next();
                 } /* BUGFIX 9/30/2005 by Graham; Add 'else'. */
                 else if (cc == '=') {
                     this.tokenList.add(new BinaryOperatorToken(LE,iPos));
-                    cc = iterString.next();
+                    cc = lexer.next();
                 }
                 else
                     this.tokenList.add(new BinaryOperatorToken(LT,iPos));
                 continue;
             }
             case '>': {
-                int iPos = iterString.getIndex();
-                cc = iterString.next();
+                int iPos = lexer.getIndex();
+                cc = lexer.next();
                 if (cc == '=') {
                     this.tokenList.add(new BinaryOperatorToken(GE,iPos));
-                    cc = iterString.next();
+                    cc = lexer.next();
                 }
                 else
                     this.tokenList.add(new BinaryOperatorToken(GT,iPos));
                 continue;
             }
             case '!': {
-                int iPos = iterString.getIndex();
-                cc = iterString.next();
+                int iPos = lexer.getIndex();
+                cc = lexer.next();
                 if (cc == '=') {
                     this.tokenList.add(new BinaryOperatorToken(NE,iPos));
-                    cc = iterString.next();
+                    cc = lexer.next();
                 }
                 else
                     this.tokenList.add(new UnaryOperatorToken(NOT,iPos));
                 continue;
             }
             default: {
-                throw new ExpressionException(iterString.getIndex(),"Unknown Symbol '"+cc+"'");
+                throw new ExpressionException(lexer.getIndex(),"Unknown Symbol '"+cc+"'");
             }
             }
-            /* throw new IllegalExpressionStateException(iterString.getIndex()); */
+            /* throw new IllegalExpressionStateException(lexer.getIndex()); */
         } /* while() */
     }
     
@@ -581,6 +574,8 @@ public class Expression {
         int parameterCount = 0;
         Deque<Token> operatorStack = new LinkedList<>();
         Deque<Integer> parameterCountStack = new LinkedList<>();
+        /* Size of the RPN Stack when the function started, nothing added means no parameters */
+        Deque<Integer> parameterStartStack = new LinkedList<>();
         Iterator<Token> iToken;
         Token topTokenOnOperatorStack;
         Token token;
@@ -614,10 +609,12 @@ public class Expression {
             
             if ((action & D_PushParCount) != 0) {
                 parameterCountStack.addLast(parameterCount);
+                parameterStartStack.addLast(this.rpnStack.size());
                 parameterCount = 0;
             }
             
             if ((action & D_PopParCount) != 0) {
+                if (parameterStartStack.removeLast() == this.rpnStack.size()) parameterCount = 0;
                 ((FunctionToken)topTokenOnOperatorStack).setArity(parameterCount);
                 parameterCount = parameterCountStack.removeLast();
             }
@@ -688,15 +685,197 @@ public class Expression {
         }
     }
     
-    @SuppressWarnings("unused")
-	private void optimize() {
-        /*
-         * TODO:
-         *  - implement a method to optimize the resultint RPNStack.
-         *    call this method 'optimize()'. This can wait, and should have
-         *    low priority because the MEP can work without it at
-         *    reasonable speed.
-         */
+    /**
+     * Selects how this expression gets evaluated. Expressions are interpreted by
+     * default, which is the cheapest option for expressions evaluated only a
+     * few times. Expressions that are evaluated very often benefit from being
+     * compiled to bytecode. The results are the same for each mode.
+     * @param mode the way this expression should be evaluated.
+     * @return this expression.
+     */
+    public Expression compile(CompileMode mode) {
+        switch (mode) {
+        case BYTECODE:
+            this.evaluator = BytecodeCompiler.compile(this.rpnStack,this.environment);
+            break;
+        case TREE:
+            this.evaluator = TreeCompiler.compile(this.rpnStack,this.environment);
+            break;
+        default:
+            this.evaluator = null;
+        }
+        return this;
+    }
+    
+    /**
+     * Returns a new expression in which the given variables have a fixed value.
+     * All parts of the expression that only depend on constants and the fixed
+     * variables are evaluated once, while compiling the new expression, so
+     * that evaluating it only leaves the computation on the other variables.
+     * This suits parameters that change far less often than the other inputs,
+     * the expression being specialized again when they change.<p>
+     * 
+     * The new expression is interpreted, and can be compiled to another
+     * {@link CompileMode} independent of this expression.
+     * @param fixedBindings the values by variable name. Names of variables
+     * that are not used by this expression are ignored.
+     * @return the specialized expression.
+     * @throws ExpressionException
+     * @throws IllegalArgumentException when a value is <code>null</code>.
+     */
+    public Expression specialize(Map<String,?> fixedBindings) throws ExpressionException {
+        return new Expression(this,fixedBindings);
+    }
+    
+    /**
+     * Writes the compiled form of this expression, so that it can be loaded
+     * again without being parsed. The compiled form records the fingerprint
+     * of the Environment, and can only be loaded into an Environment with the
+     * same fingerprint. The {@link CompileMode} is not recorded.
+     * @param out the stream to write to.
+     * @throws IOException when writing fails, or a NotSerializableException
+     * when a constant is not a Long, Double, BigDecimal or String.
+     * @see #readFrom(InputStream, Environment)
+     * @see ExpressionLibrary
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeRecord(new DataOutputStream(payload));
+        DataOutputStream data = new DataOutputStream(out);
+        ExpressionCodec.writeHeader(ExpressionCodec.MAGIC,environment.getFingerprint(),data);
+        data.writeInt(payload.size());
+        payload.writeTo(data);
+        data.flush();
+    }
+    
+    /*
+     * Writes the compiled form without header, as stored in a library.
+     */
+    void writeRecord(DataOutput out) throws IOException {
+        ExpressionCodec.write(expression,rpnStack,out);
+    }
+    
+    Environment getEnvironment() {
+        return environment;
+    }
+    
+    /**
+     * Loads an expression written by {@link #writeTo(OutputStream)}.
+     * @param in the stream to read from.
+     * @param environment the Environment to load the expression into.
+     * @return the expression, to be evaluated as interpreted.
+     * @throws IOException when reading fails, or an InvalidObjectException when
+     * the data is corrupt or the Environment does not have the fingerprint it
+     * was compiled for.
+     * @throws ExpressionException when a variable no longer exists.
+     */
+    public static Expression readFrom(InputStream in,Environment environment) throws IOException, ExpressionException {
+        DataInputStream data = new DataInputStream(in);
+        ExpressionCodec.checkHeader(ExpressionCodec.MAGIC,data.readInt(),data.readShort(),data.readLong(),environment);
+        int size = data.readInt();
+        if (size < 0) throw new InvalidObjectException("Corrupt compiled expression");
+        byte [] payload = new byte[size];
+        data.readFully(payload);
+        return ExpressionCodec.read(ByteBuffer.wrap(payload),environment);
+    }
+    
+    /*
+     * Simulates the evaluation of the RPN Stack, and returns the maximum depth
+     * of the result stack. Returns -1 if the RPN Stack is not well-formed: an
+     * operator or function missing operands, not exactly one result remaining,
+     * or jumps arriving with different depths.
+     */
+    static int getMaximumDepth(Deque<Token> rpnStack) {
+        Token [] program = rpnStack.toArray(new Token[rpnStack.size()]);
+        /* Depth expected at the targets of jumps, -1 when not a target */
+        int [] targetDepth = new int[program.length + 1];
+        Arrays.fill(targetDepth,-1);
+        boolean reachable = true;
+        int depth = 0;
+        int maximumDepth = 0;
+        for (int t = 0; t <= program.length; t++) {
+            if (targetDepth[t] >= 0) {
+                if (reachable && depth != targetDepth[t]) return -1;
+                depth = targetDepth[t];
+                reachable = true;
+            }
+            if (!reachable) return -1;
+            if (t == program.length) break;
+            Token token = program[t];
+            switch (token.getType()) {
+            case VAL: case VAR:
+                depth++;
+                break;
+            case UNA: case UNI:
+                if (depth < 1) return -1;
+                break;
+            case DUP:
+                if (depth < 1) return -1;
+                depth++;
+                break;
+            case BIN:
+                if (depth < 2) return -1;
+                depth--;
+                break;
+            case FNC:
+                int arity = ((FunctionToken)token).getArity();
+                if (depth < arity) return -1;
+                depth += 1 - arity;
+                break;
+            case JMP: {
+                JumpToken jumpToken = (JumpToken)token;
+                int target = jumpToken.getTarget();
+                if (jumpToken.getCondition() != JumpToken.Condition.ALWAYS && depth < 1) return -1;
+                if (jumpToken.getCondition() == JumpToken.Condition.FALSE) depth--;
+                if (target <= t || target > program.length) return -1;
+                if (targetDepth[target] >= 0 && targetDepth[target] != depth) return -1;
+                targetDepth[target] = depth;
+                reachable = jumpToken.getCondition() != JumpToken.Condition.ALWAYS;
+                break;
+            }
+            default:
+                return -1;
+            }
+            maximumDepth = Math.max(maximumDepth, depth);
+        }
+        return depth == 1 ? maximumDepth : -1;
+    }
+    
+    /*
+     * Folds constants and simplifies the RPN Stack.
+     * @see Optimizer
+     */
+    private void optimize() throws ExpressionException {
+        this.rpnStack = Optimizer.optimize(this.rpnStack,this.environment);
+    }
+    
+    /*
+     * Returns the names of the variables that remain in the compiled expression.
+     */
+    Set<String> getVariableNames() {
+        Set<String> names = new LinkedHashSet<>();
+        if (this.rpnStack == null) return names;
+        for (Token token:rpnStack) {
+            if (token.getType() == Token.Type.VAR) names.add(((VariableToken)token).getName());
+        }
+        return names;
+    }
+    
+    /*
+     * Returns the compiled RPN Stack, or null when it is not well-formed.
+     */
+    Token [] getProgram() {
+        return (maximumDepth < 0) ? null : program;
+    }
+    
+    /*
+     * Binds the operators and units to the dispatch tables of the current
+     * snapshot, so that evaluation only needs to index into them.
+     */
+    private void bind() {
+        if (this.rpnStack == null) return;
+        ResolvedOperators operators = environment.getResolvedOperators();
+        for (Token token:rpnStack) token.bind(operators);
     }
     
     /**
@@ -705,11 +884,29 @@ public class Expression {
      * @throws com.googlecode.jmep.ExpressionException
      */
     public Object evaluate() throws ExpressionException {
+        long start = startMeasuring();
+        try {
+            return interpret();
+        } catch (ExpressionException x) {
+            start = stopMeasuring(start,x);
+            throw x;
+        } finally {
+            stopMeasuring(start,null);
+        }
+    }
+    
+    /*
+     * Evaluates the expression, without measuring.
+     */
+    private Object interpret() throws ExpressionException {
+        if (evaluator != null) return evaluator.evaluate();
         //Token token;
         //Need a proper Value Wrapper in stead of Object
         Deque<Object> resultStack = new LinkedList<>();
+        ResolvedOperators operators = environment.getResolvedOperators();
         
-        for (Token token:rpnStack) {
+        for (int t = 0; t < program.length; t++) {
+            Token token = program[t];
             switch (token.getType()) {
             case MRK: case OPA: case CMA: case CPA:
                 /* Should never occur */
@@ -738,7 +935,7 @@ public class Expression {
             case UNI:
                 try {
                     Object value = resultStack.pop();
-                    value = ((UnitToken)token).evaluate(this.environment,value);
+                    value = ((UnitToken)token).evaluate(operators,value);
                     resultStack.push(value);
                 }
             catch (NoSuchElementException x) {
@@ -756,7 +953,7 @@ public class Expression {
             case UNA:
               try {
                 Object value = resultStack.pop();
-                resultStack.push(((UnaryOperatorToken)token).evaluate(this.environment,value));
+                resultStack.push(((UnaryOperatorToken)token).evaluate(operators,value));
               } catch (NoSuchElementException x) {
                 throw new OperatorException((UnaryOperatorToken)token, null, "Wrong number of arguments");
               }
@@ -766,7 +963,7 @@ public class Expression {
                   Object rightOperand = resultStack.pop();
                   Object leftOperand = resultStack.pop();
                   Object result;
-                  result = ((BinaryOperatorToken)token).evaluate(this.environment,leftOperand,rightOperand);
+                  result = ((BinaryOperatorToken)token).evaluate(operators,leftOperand,rightOperand);
                   resultStack.push(result);
               } catch (NoSuchElementException x) {
                 /* Wrong number of arguments */
@@ -776,6 +973,27 @@ public class Expression {
             case VAL:
                 resultStack.push(((ValueToken)token).getValue());
             break;
+            case DUP:
+                resultStack.push(resultStack.peek());
+            break;
+            case JMP: {
+                JumpToken jumpToken = (JumpToken)token;
+                switch (jumpToken.getCondition()) {
+                case ALWAYS:
+                    t = jumpToken.getTarget() - 1;
+                    break;
+                case FALSE:
+                    if (jumpToken.isTaken(resultStack.pop())) t = jumpToken.getTarget() - 1;
+                    break;
+                default:
+                    if (jumpToken.isTaken(resultStack.peek())) {
+                        resultStack.pop();
+                        resultStack.push(jumpToken.getResult());
+                        t = jumpToken.getTarget() - 1;
+                    }
+                }
+            break;
+            }
             }
         }
         
@@ -790,4 +1008,321 @@ public class Expression {
             throw new ExpressionException(0,"Wrong number of arguments");
         }
     }
+    
+    /**
+     * Evaluates the expression to a <code>double</code>. Long and Double values
+     * are kept unboxed for all operators that have a primitive implementation
+     * in the Environment, and for variables implementing DoubleVariable or
+     * LongVariable, so that numeric formulas evaluate without allocating.
+     * @return the evaluated expression.
+     * @throws ExpressionException also when the result is not a Number.
+     * @see com.googlecode.jmep.function.DoubleVariable
+     * @see com.googlecode.jmep.function.DoubleBinaryOperator
+     */
+    public double evaluateAsDouble() throws ExpressionException {
+        long start = startMeasuring();
+        try {
+            if (maximumDepth < 0) return PrimitiveEvaluator.toDouble(interpret());
+            PrimitiveEvaluator lane = acquirePrimitiveEvaluator();
+            try {
+                return lane.evaluateAsDouble(null);
+            } finally {
+                releasePrimitiveEvaluator(lane);
+            }
+        } catch (ExpressionException x) {
+            start = stopMeasuring(start,x);
+            throw x;
+        } finally {
+            stopMeasuring(start,null);
+        }
+    }
+    
+    /**
+     * Evaluates the expression to a <code>long</code>, without boxing
+     * intermediate results where possible.
+     * @return the evaluated expression.
+     * @throws ExpressionException also when the result is not a Long.
+     * @see #evaluateAsDouble()
+     */
+    public long evaluateAsLong() throws ExpressionException {
+        long start = startMeasuring();
+        try {
+            if (maximumDepth < 0) return PrimitiveEvaluator.toLong(interpret());
+            PrimitiveEvaluator lane = acquirePrimitiveEvaluator();
+            try {
+                return lane.evaluateAsLong(null);
+            } finally {
+                releasePrimitiveEvaluator(lane);
+            }
+        } catch (ExpressionException x) {
+            start = stopMeasuring(start,x);
+            throw x;
+        } finally {
+            stopMeasuring(start,null);
+        }
+    }
+    
+    /**
+     * Evaluates the expression to a <code>boolean</code>, without boxing
+     * intermediate results where possible. Any non-zero Long is true.
+     * @return the evaluated expression.
+     * @throws ExpressionException also when the result is not a Long.
+     * @see #evaluateAsDouble()
+     */
+    public boolean evaluateAsBoolean() throws ExpressionException {
+        long start = startMeasuring();
+        try {
+            if (maximumDepth < 0) return PrimitiveEvaluator.toBoolean(interpret());
+            PrimitiveEvaluator lane = acquirePrimitiveEvaluator();
+            try {
+                return lane.evaluateAsBoolean(null);
+            } finally {
+                releasePrimitiveEvaluator(lane);
+            }
+        } catch (ExpressionException x) {
+            start = stopMeasuring(start,x);
+            throw x;
+        } finally {
+            stopMeasuring(start,null);
+        }
+    }
+    
+    /**
+     * Creates a frame holding the values of the variables of this expression,
+     * for use with {@link #evaluate(Frame)}. The slots of the frame are the
+     * variables that remain in the compiled expression, in order of appearance.
+     * @return a new frame, with all slots unset.
+     */
+    public Frame newFrame() {
+        return new Frame(slotNames);
+    }
+    
+    /**
+     * Evaluates the expression with the values of the variables taken from the
+     * frame, unboxed where possible. Many threads can evaluate the expression at
+     * the same time, each with its own frame, without the need for Variables
+     * reading shared state. The Environment still provides the operators and
+     * functions, and the variables that are not set in the frame.<p>
+     * 
+     * An expression that is not well-formed, such as one with missing operands,
+     * is evaluated as by {@link #evaluate()} without looking at the frame, so
+     * that it reports the same error.
+     * @param frame the frame, created by this expression.
+     * @return the evaluated expression.
+     * @throws ExpressionException
+     * @throws IllegalArgumentException when the frame has other variables than
+     * this expression.
+     */
+    public Object evaluate(Frame frame) throws ExpressionException {
+        checkFrame(frame);
+        long start = startMeasuring();
+        try {
+            if (maximumDepth < 0) return interpret();
+            PrimitiveEvaluator lane = acquirePrimitiveEvaluator();
+            try {
+                return lane.evaluate(frame);
+            } finally {
+                releasePrimitiveEvaluator(lane);
+            }
+        } catch (ExpressionException x) {
+            start = stopMeasuring(start,x);
+            throw x;
+        } finally {
+            stopMeasuring(start,null);
+        }
+    }
+    
+    /**
+     * Evaluates the expression to a <code>double</code> with the values of the
+     * variables taken from the frame.
+     * @param frame the frame, created by this expression.
+     * @return the evaluated expression.
+     * @throws ExpressionException also when the result is not a Number.
+     * @see #evaluate(Frame)
+     */
+    public double evaluateAsDouble(Frame frame) throws ExpressionException {
+        checkFrame(frame);
+        long start = startMeasuring();
+        try {
+            if (maximumDepth < 0) return PrimitiveEvaluator.toDouble(interpret());
+            PrimitiveEvaluator lane = acquirePrimitiveEvaluator();
+            try {
+                return lane.evaluateAsDouble(frame);
+            } finally {
+                releasePrimitiveEvaluator(lane);
+            }
+        } catch (ExpressionException x) {
+            start = stopMeasuring(start,x);
+            throw x;
+        } finally {
+            stopMeasuring(start,null);
+        }
+    }
+    
+    /**
+     * Evaluates the expression to a <code>long</code> with the values of the
+     * variables taken from the frame.
+     * @param frame the frame, created by this expression.
+     * @return the evaluated expression.
+     * @throws ExpressionException also when the result is not a Long.
+     * @see #evaluate(Frame)
+     */
+    public long evaluateAsLong(Frame frame) throws ExpressionException {
+        checkFrame(frame);
+        long start = startMeasuring();
+        try {
+            if (maximumDepth < 0) return PrimitiveEvaluator.toLong(interpret());
+            PrimitiveEvaluator lane = acquirePrimitiveEvaluator();
+            try {
+                return lane.evaluateAsLong(frame);
+            } finally {
+                releasePrimitiveEvaluator(lane);
+            }
+        } catch (ExpressionException x) {
+            start = stopMeasuring(start,x);
+            throw x;
+        } finally {
+            stopMeasuring(start,null);
+        }
+    }
+    
+    private void checkFrame(Frame frame) {
+        if (frame.getNames() != slotNames && !Arrays.equals(frame.getNames(),slotNames)) {
+            throw new IllegalArgumentException("Frame does not belong to this expression");
+        }
+    }
+    
+    /**
+     * Evaluates the expression for a batch of rows at once. Variables of the
+     * Environment can be bound to columns holding a value for every row, given
+     * as either <code>double[]</code> or <code>long[]</code>. Rows are processed
+     * in chunks, applying every operator to the whole chunk, which for numeric
+     * formulas is considerably faster than evaluating row by row.<p>
+     * 
+     * Variables without a column are read once per chunk of rows. Only variables
+     * that are not constant can be bound, since constants are folded into the
+     * expression when it is compiled.
+     * @param columns the columns by variable name.
+     * @param out receives the result for every row, its length is the number of rows.
+     * @throws ExpressionException also when a result is not a Number. Results of the
+     * rows before the failing chunk are already written.
+     * @throws IllegalArgumentException when a column is not a <code>double[]</code>
+     * or <code>long[]</code>, or has fewer rows than <code>out</code>.
+     * @see #evaluateAsDouble()
+     */
+    public void evaluateBatch(Map<String,?> columns,double [] out) throws ExpressionException {
+        if (out.length == 0) return;
+        if (maximumDepth < 0) {
+            Arrays.fill(out,PrimitiveEvaluator.toDouble(evaluate()));
+            return;
+        }
+        new BatchEvaluator(rpnStack,maximumDepth,environment,columns,out.length).evaluate(out);
+    }
+    
+    /**
+     * Evaluates the expression for many rows, using all threads of the common
+     * ForkJoinPool.
+     * @param source provides the rows.
+     * @param sink receives the results, in order of the rows.
+     * @throws ExpressionException the first failure of any of the threads.
+     * @see #evaluateParallel(RowSource, ResultSink, Executor)
+     */
+    public void evaluateParallel(RowSource source,ResultSink sink) throws ExpressionException {
+        evaluateParallel(source,sink,ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Evaluates the expression for many rows, spreading them over the threads of
+     * the executor. The rows are evaluated in chunks as with
+     * {@link #evaluateBatch(Map, double[])}, every thread using its own evaluation
+     * state, and the calling thread taking part. The results are delivered to the
+     * sink in order of the rows.<p>
+     * 
+     * Variables that are not provided by the source are read by several threads
+     * at the same time, so they need to be thread-safe.
+     * @param source provides the rows.
+     * @param sink receives the results, in order of the rows.
+     * @param executor runs the evaluation, typically a ForkJoinPool.
+     * @throws ExpressionException the first failure of any of the threads. The
+     * results of the rows before the failing chunk may have been delivered.
+     */
+    public void evaluateParallel(RowSource source,ResultSink sink,Executor executor) throws ExpressionException {
+        int rows = source.getRowCount();
+        if (rows == 0) return;
+        if (maximumDepth < 0) {
+            double [] results = new double[rows];
+            Arrays.fill(results,PrimitiveEvaluator.toDouble(evaluate()));
+            sink.accept(0,results,rows);
+            return;
+        }
+        new ParallelEvaluator(rpnStack,maximumDepth,environment,source,sink,executor).evaluate();
+    }
+    
+    /*
+     * Measures an evaluation when metrics are enabled or slow evaluations are
+     * recorded, returning 0 as the start when not measuring. Stopping returns 0
+     * as well, so that an evaluation stopped on its failure is not stopped
+     * again.
+     */
+    private long startMeasuring() {
+        boolean traced = FlightEvents.slowEvaluations;
+        if (Metrics.active == null && !traced) return 0;
+        if (traced) FlightEvents.beginEvaluation();
+        return System.nanoTime();
+    }
+    
+    private long stopMeasuring(long start,ExpressionException failure) {
+        if (start == 0) return 0;
+        Metrics metrics = Metrics.active;
+        if (metrics != null) metrics.evaluated(expression,start,failure);
+        FlightEvents.endEvaluation(expression);
+        return 0;
+    }
+    
+    /*
+     * Takes the primitive evaluator of the current thread, creating it on first
+     * use. The program and its slots are shared, so an evaluator only adds its
+     * own result stack. Every thread evaluating the expression keeps its
+     * evaluator for as long as the expression is reachable. Only used for
+     * well-formed RPN Stacks, other expressions are left to evaluate() so that
+     * they report the same errors.
+     */
+    private PrimitiveEvaluator acquirePrimitiveEvaluator() {
+        PrimitiveEvaluator lane = primitiveEvaluator.get();
+        if (lane == null) {
+            lane = new PrimitiveEvaluator(program,slots,maximumDepth,environment);
+            primitiveEvaluator.set(lane);
+        } else if (lane.inUse) {
+            /* Nested evaluation, for example through a function */
+            lane = new PrimitiveEvaluator(program,slots,maximumDepth,environment);
+        }
+        lane.inUse = true;
+        return lane;
+    }
+    
+    private void releasePrimitiveEvaluator(PrimitiveEvaluator lane) {
+        lane.inUse = false;
+    }
+    
+    /*
+     * Creates an evaluator reading the variables from frames with the given
+     * slots, or returns null when the RPN Stack is not well-formed.
+     */
+    PrimitiveEvaluator newPrimitiveEvaluator(String [] slotNames) {
+        if (maximumDepth < 0) return null;
+        return new PrimitiveEvaluator(program,PrimitiveEvaluator.slotsOf(program,slotNames),maximumDepth,environment);
+    }
+    
+    /*
+     * Returns the variable read by the compiled expression, or null when the
+     * expression does not use it.
+     */
+    Variable getVariable(String name) {
+        for (Token token:program) {
+            if (token.getType() == Token.Type.VAR && ((VariableToken)token).getName().equals(name)) {
+                return ((VariableToken)token).getVariable();
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,288 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A bounded cache of compiled expressions, shared by all threads. Expressions
+ * are looked up by their text and the Environment they were compiled against,
+ * so that the same formula only gets tokenized and compiled once. The least
+ * recently used expressions are evicted once the cache is full.<p>
+ *
+ * An entry is invalidated as soon as its Environment changes (adding a
+ * constant, variable or function, or registering an operator, unit or upgrade
+ * conversion), the expression is then compiled again on next use.<p>
+ *
+ * The cache does not keep an Environment from being garbage collected: the
+ * expressions compiled against an Environment are dropped together with it.<p>
+ *
+ * The returned expressions are shared, and should not be compiled to another
+ * {@link Expression.CompileMode} by the caller.
+ * <pre><code>ExpressionCache cache = new ExpressionCache(10000);
+ *Object result = cache.get("price*qty",env).evaluate();</code></pre>
+ * @author Jo Desmet
+ * @see Expression
+ */
+public class ExpressionCache {
+  private final long maximumWeight;
+  private final ToLongFunction<String> weigher;
+  private final LinkedHashMap<Key,Entry> entries;
+  private final ReferenceQueue<Environment> collected = new ReferenceQueue<>();
+  private long weight;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private long invalidationCount;
+
+  /**
+   * Allocates a cache holding a maximum number of expressions.
+   * @param maximumSize the maximum number of cached expressions.
+   */
+  public ExpressionCache(int maximumSize) {
+    this(maximumSize,(String expression) -> 1L);
+  }
+
+  /**
+   * Allocates a cache with a maximum total weight, where the weight of every
+   * expression is determined by the weigher. To bound the memory used by the
+   * cache, the length of the expression is a reasonable estimate:
+   * <code>new ExpressionCache(1000000L,String::length)</code>.
+   * @param maximumWeight the maximum total weight of the cached expressions.
+   * @param weigher returns the weight of an expression given its text.
+   */
+  public ExpressionCache(long maximumWeight,ToLongFunction<String> weigher) {
+    if (maximumWeight < 0) throw new IllegalArgumentException("Maximum weight cannot be negative");
+    this.maximumWeight = maximumWeight;
+    this.weigher = weigher;
+    this.entries = new LinkedHashMap<>(16,0.75f,true);
+  }
+
+  /**
+   * Returns the compiled expression, compiling and caching it when not found.
+   * @param expression the string containing the mathematical expression.
+   * @param environment the environment to compile the expression against.
+   * @return the compiled expression.
+   * @throws ExpressionException when the expression cannot be compiled. Failures
+   * are not cached.
+   */
+  public Expression get(String expression,Environment environment) throws ExpressionException {
+    Key key = new Key(expression,environment,collected);
+    int version = environment.getVersion();
+    synchronized (this) {
+      purge();
+      Entry entry = entries.get(key);
+      if (entry != null && entry.version == version) {
+        hitCount++;
+        return entry.expression.get();
+      }
+      missCount++;
+    }
+    // Compile outside of the lock, so other lookups are not held up.
+    Expression compiled = new Expression(expression,environment);
+    Entry entry = new Entry(compiled,version,weigher.applyAsLong(expression));
+    synchronized (this) {
+      Entry existing = entries.get(key);
+      if (existing != null) {
+        if (existing.version == version) return existing.expression.get();
+        if (existing.version - version > 0) return compiled; // Compiled against an older version
+        remove(key,existing);
+        invalidationCount++;
+      }
+      if (entry.weight <= maximumWeight) {
+        environment.cachedExpressions.add(compiled);
+        entries.put(key,entry);
+        weight += entry.weight;
+        evict();
+      }
+    }
+    return compiled;
+  }
+
+  /**
+   * Removes all cached expressions compiled against the Environment.
+   * @param environment the environment.
+   */
+  public synchronized void invalidate(Environment environment) {
+    Iterator<Map.Entry<Key,Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Key,Entry> e = iterator.next();
+      if (e.getKey().get() == environment) {
+        release(e.getKey(),e.getValue());
+        invalidationCount++;
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Removes all cached expressions.
+   */
+  public synchronized void invalidateAll() {
+    for (Map.Entry<Key,Entry> e:entries.entrySet()) release(e.getKey(),e.getValue());
+    invalidationCount += entries.size();
+    entries.clear();
+    weight = 0;
+  }
+
+  /**
+   * @return the number of cached expressions.
+   */
+  public synchronized int size() {
+    purge();
+    return entries.size();
+  }
+
+  /**
+   * @return a snapshot of the statistics of this cache.
+   */
+  public synchronized Statistics getStatistics() {
+    return new Statistics(hitCount,missCount,evictionCount,invalidationCount);
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<Key,Entry>> iterator = entries.entrySet().iterator();
+    while (weight > maximumWeight && iterator.hasNext()) {
+      Map.Entry<Key,Entry> e = iterator.next();
+      release(e.getKey(),e.getValue());
+      evictionCount++;
+      iterator.remove();
+    }
+  }
+
+  private void remove(Key key,Entry entry) {
+    entries.remove(key);
+    release(key,entry);
+  }
+
+  /*
+   * Lets go of an entry that is being removed.
+   */
+  private void release(Key key,Entry entry) {
+    weight -= entry.weight;
+    Environment environment = key.get();
+    Expression expression = entry.expression.get();
+    if (environment != null && expression != null) environment.cachedExpressions.remove(expression);
+  }
+
+  /*
+   * Removes the entries of Environments that were garbage collected.
+   */
+  private void purge() {
+    for (Object key; (key = collected.poll()) != null;) {
+      Entry entry = entries.remove(key);
+      if (entry != null) weight -= entry.weight;
+    }
+  }
+
+  /**
+   * Statistics of an ExpressionCache at a given time.
+   */
+  public static final class Statistics {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long invalidationCount;
+
+    Statistics(long hitCount,long missCount,long evictionCount,long invalidationCount) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.evictionCount = evictionCount;
+      this.invalidationCount = invalidationCount;
+    }
+
+    /** @return the number of lookups that found a valid compiled expression. */
+    public long getHitCount() { return hitCount; }
+
+    /** @return the number of lookups that needed to compile the expression. */
+    public long getMissCount() { return missCount; }
+
+    /** @return the number of expressions removed to stay within the maximum size or weight. */
+    public long getEvictionCount() { return evictionCount; }
+
+    /** @return the number of expressions removed because their Environment changed. */
+    public long getInvalidationCount() { return invalidationCount; }
+
+    /** @return the ratio of lookups that were hits, or 1.0 when there were no lookups. */
+    public double getHitRate() {
+      long requestCount = hitCount + missCount;
+      return requestCount == 0 ? 1.0 : (double)hitCount / requestCount;
+    }
+
+    @Override
+    public String toString() {
+      return "hits="+hitCount+", misses="+missCount+", evictions="+evictionCount+", invalidations="+invalidationCount;
+    }
+  }
+
+  /*
+   * Environments are compared on identity, and only referenced weakly. A key
+   * whose Environment was collected is only equal to itself.
+   */
+  private static final class Key extends WeakReference<Environment> {
+    final String expression;
+    final int hash;
+
+    Key(String expression,Environment environment,ReferenceQueue<Environment> queue) {
+      super(environment,queue);
+      this.expression = expression;
+      this.hash = 31 * expression.hashCode() + System.identityHashCode(environment);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) return true;
+      if (!(obj instanceof Key)) return false;
+      Key other = (Key)obj;
+      Environment environment = get();
+      return environment != null && environment == other.get() && expression.equals(other.expression);
+    }
+  }
+
+  /*
+   * The expression is held by its Environment, so that it does not keep the
+   * Environment reachable from the cache.
+   */
+  private static final class Entry {
+    final WeakReference<Expression> expression;
+    final int version;
+    final long weight;
+
+    Entry(Expression expression,int version,long weight) {
+      this.expression = new WeakReference<>(expression);
+      this.version = version;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.Variable;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary format of a compiled expression. An expression is stored as its
+ * RPN Stack, after optimizing, so that loading it needs no parsing at all:<ul>
+ * <li>the text of the expression, for reporting;</li>
+ * <li>the constant pool, holding Long, Double, BigDecimal and String values;</li>
+ * <li>the name pool, holding the names of variables, functions and units;</li>
+ * <li>the tokens, each having its type, position and the operands of that type
+ * of token, referring to the pools by index.</li></ul>
+ * Counts, indexes and positions are stored as variable length integers, seven
+ * bits per byte, constants as big-endian, and strings as their length followed
+ * by their UTF-8 encoding. Operators and the conditions of jumps are stored as the
+ * ordinal of their type, so changing those enumerations requires another
+ * FORMAT_VERSION.
+ * @author Jo Desmet
+ */
+final class ExpressionCodec {
+  /* "JMEP" */
+  static final int MAGIC = 0x4A4D4550;
+  static final short FORMAT_VERSION = 1;
+
+  private static final byte LONG = 'L';
+  private static final byte DOUBLE = 'D';
+  private static final byte DECIMAL = 'B';
+  private static final byte STRING = 'S';
+  private static final UnaryOperatorType [] UNARY_OPERATORS = UnaryOperatorType.values();
+  private static final BinaryOperatorType [] BINARY_OPERATORS = BinaryOperatorType.values();
+  private static final JumpToken.Condition [] CONDITIONS = JumpToken.Condition.values();
+
+  private ExpressionCodec() {
+  }
+
+  static void writeHeader(int magic,long fingerprint,DataOutput out) throws IOException {
+    out.writeInt(magic);
+    out.writeShort(FORMAT_VERSION);
+    out.writeLong(fingerprint);
+  }
+
+  /*
+   * Fails before anything gets loaded if the data is not what was expected, or
+   * was compiled for an Environment that is set up differently.
+   */
+  static void checkHeader(int magic,int foundMagic,short foundVersion,long foundFingerprint,Environment environment) throws IOException {
+    if (foundMagic != magic) throw new InvalidObjectException("Not compiled by Expression");
+    if (foundVersion != FORMAT_VERSION) throw new InvalidObjectException("Unsupported format version "+foundVersion);
+    if (foundFingerprint != environment.getFingerprint()) {
+      throw new InvalidObjectException("Compiled for another Environment (fingerprint "+Long.toHexString(foundFingerprint)
+              +" instead of "+Long.toHexString(environment.getFingerprint())+")");
+    }
+  }
+
+  /*
+   * Writes the expression without the header, the RPN Stack being the one
+   * returned by Expression.getRpnStack().
+   */
+  static void write(String text,Deque<Token> rpnStack,DataOutput out) throws IOException {
+    List<Object> constants = new ArrayList<>();
+    Map<Object,Integer> constantIndex = new HashMap<>();
+    List<String> names = new ArrayList<>();
+    Map<String,Integer> nameIndex = new HashMap<>();
+    for (Token token:rpnStack) {
+      switch (token.getType()) {
+        case VAL: {
+          Object value = ((ValueToken)token).getValue();
+          if (!(value instanceof Long || value instanceof Double || value instanceof BigDecimal || value instanceof String)) {
+            throw new NotSerializableException(value.getClass().getName());
+          }
+          if (!constantIndex.containsKey(value)) {
+            constantIndex.put(value,constants.size());
+            constants.add(value);
+          }
+          break;
+        }
+        case VAR: index(((VariableToken)token).getName(),names,nameIndex); break;
+        case FNC: index(((FunctionToken)token).getName(),names,nameIndex); break;
+        case UNI: index(((UnitToken)token).getName(),names,nameIndex); break;
+      }
+    }
+    writeString(text,out);
+    writeCount(constants.size(),out);
+    for (Object constant:constants) {
+      if (constant instanceof Long) {
+        out.writeByte(LONG);
+        out.writeLong((Long)constant);
+      } else if (constant instanceof Double) {
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double)constant);
+      } else if (constant instanceof BigDecimal) {
+        out.writeByte(DECIMAL);
+        writeString(constant.toString(),out);
+      } else {
+        out.writeByte(STRING);
+        writeString((String)constant,out);
+      }
+    }
+    writeCount(names.size(),out);
+    for (String name:names) writeString(name,out);
+    writeCount(rpnStack.size(),out);
+    for (Token token:rpnStack) {
+      out.writeByte(token.getType().index);
+      /* Positions start at -1 */
+      writeCount(token.getPosition() + 1,out);
+      switch (token.getType()) {
+        case VAL: writeCount(constantIndex.get(((ValueToken)token).getValue()),out); break;
+        case VAR: writeCount(nameIndex.get(((VariableToken)token).getName()),out); break;
+        case UNI: writeCount(nameIndex.get(((UnitToken)token).getName()),out); break;
+        case FNC:
+          writeCount(nameIndex.get(((FunctionToken)token).getName()),out);
+          writeCount(((FunctionToken)token).getArity(),out);
+          break;
+        case UNA: out.writeByte(((UnaryOperatorToken)token).getUnaryOperatorType().ordinal()); break;
+        case BIN: out.writeByte(((BinaryOperatorToken)token).getBinaryOperatorType().ordinal()); break;
+        case JMP:
+          out.writeByte(((JumpToken)token).getCondition().ordinal());
+          writeCount(((JumpToken)token).getTarget(),out);
+          break;
+      }
+    }
+  }
+
+  /*
+   * Reads an expression written by write(...), starting at the position of the
+   * buffer. Variables and functions are looked up in the environment.
+   */
+  static Expression read(ByteBuffer in,Environment environment) throws IOException, ExpressionException {
+    try {
+      String text = readString(in);
+      Object [] constants = new Object[count(in)];
+      for (int i = 0; i < constants.length; i++) {
+        byte tag = in.get();
+        switch (tag) {
+          case LONG: constants[i] = in.getLong(); break;
+          case DOUBLE: constants[i] = in.getDouble(); break;
+          case DECIMAL: constants[i] = new BigDecimal(readString(in)); break;
+          case STRING: constants[i] = readString(in); break;
+          default: throw new InvalidObjectException("Unknown constant type "+tag);
+        }
+      }
+      String [] names = new String[count(in)];
+      for (int i = 0; i < names.length; i++) names[i] = readString(in);
+      int size = count(in);
+      Deque<Token> rpnStack = new LinkedList<>();
+      for (int t = 0; t < size; t++) {
+        int type = in.get();
+        int position = readCount(in) - 1;
+        Token token;
+        if (type == Token.Type.VAL.index) token = new ValueToken(constants[readCount(in)],position);
+        else if (type == Token.Type.VAR.index) {
+          String name = names[readCount(in)];
+          Variable variable = environment.getVariable(name);
+          if (variable == null) throw new UndefinedVariableException(position,name);
+          token = new VariableToken(name,variable,position);
+        }
+        else if (type == Token.Type.UNI.index) token = new UnitToken(names[readCount(in)],position);
+        else if (type == Token.Type.FNC.index) {
+          String name = names[readCount(in)];
+          FunctionToken function = new FunctionToken(name,environment.getFunction(name),position);
+          function.setArity(readCount(in));
+          token = function;
+        }
+        else if (type == Token.Type.UNA.index) token = new UnaryOperatorToken(UNARY_OPERATORS[in.get()],position);
+        else if (type == Token.Type.BIN.index) token = new BinaryOperatorToken(BINARY_OPERATORS[in.get()],position);
+        else if (type == Token.Type.JMP.index) {
+          JumpToken jump = new JumpToken(CONDITIONS[in.get()],position);
+          int target = readCount(in);
+          if (target <= t || target > size) throw new InvalidObjectException("Jump target out of range: "+target);
+          jump.setTarget(target);
+          token = jump;
+        }
+        else token = new Token(typeOf(type),position);
+        rpnStack.addLast(token);
+      }
+      return new Expression(text,environment,rpnStack);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException x) {
+      InvalidObjectException invalid = new InvalidObjectException("Corrupt compiled expression");
+      invalid.initCause(x);
+      throw invalid;
+    }
+  }
+
+  private static Token.Type typeOf(int index) throws InvalidObjectException {
+    for (Token.Type type:Token.Type.values()) {
+      if (type.index == index) return type;
+    }
+    throw new InvalidObjectException("Unknown token type "+index);
+  }
+
+  private static void index(String name,List<String> names,Map<String,Integer> nameIndex) {
+    if (!nameIndex.containsKey(name)) {
+      nameIndex.put(name,names.size());
+      names.add(name);
+    }
+  }
+
+  static void writeString(String value,DataOutput out) throws IOException {
+    byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeCount(bytes.length,out);
+    out.write(bytes);
+  }
+
+  static void writeCount(int count,DataOutput out) throws IOException {
+    while ((count & ~0x7F) != 0) {
+      out.writeByte((count & 0x7F) | 0x80);
+      count >>>= 7;
+    }
+    out.writeByte(count);
+  }
+
+  static int readCount(ByteBuffer in) {
+    int count = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.get();
+      count |= (b & 0x7F) << shift;
+      if (b >= 0) return count;
+    }
+    throw new IllegalArgumentException("Count too large");
+  }
+
+  /* Every element takes at least one byte, which keeps corrupt counts in check */
+  private static int count(ByteBuffer in) {
+    int count = readCount(in);
+    if (count < 0 || count > in.remaining()) throw new BufferUnderflowException();
+    return count;
+  }
+
+  static String readString(ByteBuffer in) {
+    byte [] bytes = new byte[count(in)];
+    in.get(bytes);
+    return new String(bytes,StandardCharsets.UTF_8);
+  }
+}
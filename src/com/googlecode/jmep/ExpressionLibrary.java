@@ -0,0 +1,219 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A library of compiled expressions by name, stored in a single file. Opening
+ * a library maps the file into memory and only reads the index; an expression
+ * is loaded the first time it is asked for, and kept from then on. This makes
+ * opening a library of many thousands of expressions almost instantaneous,
+ * compared to parsing all of them.<p>
+ *
+ * All expressions of a library are compiled in equally set up Environments,
+ * and the library can only be opened with an Environment having the same
+ * fingerprint:<ul><pre><code>ExpressionLibrary.write(expressions,out);
+ *...
+ *ExpressionLibrary library = ExpressionLibrary.open(path,env);
+ *Object result = library.get("discount").evaluate();</code></pre></ul>
+ * A library is safe to use by any number of threads.
+ * @see Expression#writeTo(OutputStream)
+ * @see Environment#getFingerprint()
+ * @author Jo Desmet
+ */
+public final class ExpressionLibrary {
+  /* "JMEL" */
+  static final int MAGIC = 0x4A4D454C;
+
+  private final Environment environment;
+  private final long fingerprint;
+  private final ByteBuffer data;
+  private final Map<String,Integer> index;
+  private final int [] offsets;
+  private final AtomicReferenceArray<Expression> expressions;
+
+  private ExpressionLibrary(Environment environment,long fingerprint,ByteBuffer data,Map<String,Integer> index,int [] offsets) {
+    this.environment = environment;
+    this.fingerprint = fingerprint;
+    this.data = data;
+    this.index = index;
+    this.offsets = offsets;
+    this.expressions = new AtomicReferenceArray<>(offsets.length);
+  }
+
+  /**
+   * Writes the compiled form of the expressions as a library.
+   * @param expressions the expressions by name, all compiled in Environments
+   * with the same fingerprint.
+   * @param out the stream to write to.
+   * @throws IOException when writing fails, or a NotSerializableException
+   * when a constant is not a Long, Double, BigDecimal or String.
+   * @throws IllegalArgumentException when there are no expressions, as the
+   * library would not know its Environment, or when the expressions are
+   * compiled in Environments with a different fingerprint.
+   */
+  public static void write(Map<String,Expression> expressions,OutputStream out) throws IOException {
+    if (expressions.isEmpty()) throw new IllegalArgumentException("No expressions to write");
+    long fingerprint = 0;
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordData = new DataOutputStream(records);
+    int [] offsets = new int[expressions.size()];
+    int e = 0;
+    for (Expression expression:expressions.values()) {
+      long expressionFingerprint = expression.getEnvironment().getFingerprint();
+      if (e > 0 && expressionFingerprint != fingerprint) {
+        throw new IllegalArgumentException("Expressions are compiled for different Environments");
+      }
+      fingerprint = expressionFingerprint;
+      offsets[e++] = records.size();
+      expression.writeRecord(recordData);
+    }
+    recordData.flush();
+    DataOutputStream data = new DataOutputStream(out);
+    ExpressionCodec.writeHeader(MAGIC,fingerprint,data);
+    data.writeInt(expressions.size());
+    e = 0;
+    for (String name:expressions.keySet()) {
+      ExpressionCodec.writeString(name,data);
+      data.writeInt(offsets[e++]);
+    }
+    data.writeInt(records.size());
+    records.writeTo(data);
+    data.flush();
+  }
+
+  /**
+   * Opens a library by mapping the file into memory.
+   * @param file the library written by {@link #write(Map, OutputStream)}.
+   * @param environment the Environment to load the expressions into.
+   * @return the library.
+   * @throws IOException when reading fails, or an InvalidObjectException when
+   * the file is corrupt or the Environment does not have the fingerprint the
+   * library was compiled for.
+   */
+  public static ExpressionLibrary open(Path file,Environment environment) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file,StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+    }
+    return open(buffer,environment);
+  }
+
+  /**
+   * Opens a library that is already in memory.
+   * @param buffer the library written by {@link #write(Map, OutputStream)},
+   * from the position of the buffer on.
+   * @param environment the Environment to load the expressions into.
+   * @return the library.
+   * @throws IOException when the library is corrupt or the Environment does
+   * not have the fingerprint the library was compiled for.
+   */
+  public static ExpressionLibrary open(ByteBuffer buffer,Environment environment) throws IOException {
+    ByteBuffer in = buffer.slice();
+    try {
+      int magic = in.getInt();
+      short version = in.getShort();
+      long fingerprint = in.getLong();
+      ExpressionCodec.checkHeader(MAGIC,magic,version,fingerprint,environment);
+      int size = in.getInt();
+      if (size < 0 || size > in.remaining()) throw new InvalidObjectException("Corrupt library");
+      Map<String,Integer> index = new LinkedHashMap<>();
+      int [] offsets = new int[size];
+      for (int e = 0; e < size; e++) {
+        index.put(ExpressionCodec.readString(in),e);
+        offsets[e] = in.getInt();
+      }
+      int length = in.getInt();
+      if (length < 0 || length > in.remaining()) throw new InvalidObjectException("Corrupt library");
+      in.limit(in.position() + length);
+      return new ExpressionLibrary(environment,fingerprint,in.slice(),index,offsets);
+    } catch (BufferUnderflowException x) {
+      InvalidObjectException invalid = new InvalidObjectException("Corrupt library");
+      invalid.initCause(x);
+      throw invalid;
+    }
+  }
+
+  /**
+   * Returns the expression, loading it the first time.
+   * @param name the name of the expression.
+   * @return the expression, or <code>null</code> when the library has no
+   * expression by that name.
+   * @throws ExpressionException when a variable of the expression no longer
+   * exists.
+   * @throws IllegalStateException when the Environment has changed since
+   * opening the library, so that the expression may no longer be accurate.
+   */
+  public Expression get(String name) throws ExpressionException {
+    Integer e = index.get(name);
+    if (e == null) return null;
+    Expression expression = expressions.get(e);
+    if (expression != null) return expression;
+    if (environment.getFingerprint() != fingerprint) {
+      throw new IllegalStateException("The Environment has changed since opening the library");
+    }
+    ByteBuffer in = data.duplicate();
+    try {
+      if (offsets[e] < 0 || offsets[e] > in.limit()) throw new InvalidObjectException("Corrupt library");
+      in.position(offsets[e]);
+      expression = ExpressionCodec.read(in,environment);
+    } catch (IOException x) {
+      throw new IllegalStateException("Corrupt expression "+name,x);
+    }
+    /* When loaded concurrently, everyone gets the first one */
+    return expressions.compareAndSet(e,null,expression) ? expression : expressions.get(e);
+  }
+
+  /**
+   * Returns the names of the expressions, in the order they were written.
+   * @return an unmodifiable set of the names.
+   */
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(index.keySet());
+  }
+
+  /**
+   * Returns the number of expressions in the library.
+   * @return the number of expressions.
+   */
+  public int size() {
+    return offsets.length;
+  }
+}
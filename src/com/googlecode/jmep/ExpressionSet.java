@@ -0,0 +1,344 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.BinaryOperator;
+import com.googlecode.jmep.function.UnaryOperator;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of named expressions, evaluated together. The expressions are merged
+ * into one graph in which equal subexpressions are shared: a subexpression such
+ * as <code>price*qty</code> or <code>rate^2</code> is evaluated only once per
+ * evaluation of the set, however many of the expressions use it. Every variable
+ * is read only once as well.<p>
+ *
+ * Operands of commutative operators are matched in either order, so that
+ * <code>a*b</code> and <code>b*a</code> are shared, when both are known to be
+ * Long or Double (for example through a DoubleVariable) and the Environment has
+ * the default implementation. Other operands are matched in order only, as for
+ * example the addition of Strings is not commutative. Function calls are only
+ * shared when the function was added as pure. The operands of <code>and</code>,
+ * <code>or</code> and <code>if(...)</code> remain lazily evaluated.<p>
+ *
+ * Expressions are added by a single thread. Once all are added, the set can
+ * be evaluated by several threads at the same time.
+ * <pre><code>ExpressionSet rules = new ExpressionSet(env);
+ *rules.add("total","price*qty");
+ *rules.add("tax","qty*price*rate");
+ *Map&lt;String,Object&gt; results = rules.evaluate();</code></pre>
+ * @author Jo Desmet
+ * @see Expression
+ */
+public class ExpressionSet {
+  private final Environment environment;
+  private final Map<String,Formula> formulas = new LinkedHashMap<>();
+  private final Map<String,Node> nodes = new HashMap<>();
+  private int nodeCount;
+  private int tokenCount;
+
+  /**
+   * Allocates an empty set.
+   * @param environment the environment to compile the expressions against.
+   */
+  public ExpressionSet(Environment environment) {
+    this.environment = environment;
+  }
+
+  /**
+   * Compiles an expression and adds it to the set.
+   * @param name the name of the result of the expression.
+   * @param expression the string containing the mathematical expression.
+   * @throws ExpressionException when the expression cannot be compiled.
+   * @throws IllegalArgumentException when the name is already used.
+   */
+  public void add(String name,String expression) throws ExpressionException {
+    if (formulas.containsKey(name)) throw new IllegalArgumentException("Expression "+name+" already added");
+    Expression compiled = new Expression(expression,environment);
+    Token [] program = compiled.getProgram();
+    Node root = null;
+    if (program != null) {
+      root = build(program,0,program.length,environment.getResolvedOperators());
+      tokenCount += program.length;
+    }
+    formulas.put(name,new Formula(compiled,root));
+  }
+
+  /**
+   * @return the names of the expressions, in the order they were added.
+   */
+  public Set<String> getNames() {
+    return formulas.keySet();
+  }
+
+  /**
+   * @return the number of expressions.
+   */
+  public int size() {
+    return formulas.size();
+  }
+
+  /**
+   * @return the number of distinct operations, constants and variables in the
+   * merged graph, each evaluated at most once per evaluation.
+   * @see #getTokenCount()
+   */
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * @return the number of operations, constants and variables when each
+   * expression would be evaluated on its own.
+   */
+  public int getTokenCount() {
+    return tokenCount;
+  }
+
+  /**
+   * Evaluates all expressions.
+   * @return the results by name, in the order the expressions were added.
+   * @throws ExpressionException the failure of the first failing expression.
+   */
+  public Map<String,Object> evaluate() throws ExpressionException {
+    ResolvedOperators operators = environment.getResolvedOperators();
+    Object [] values = new Object[nodeCount];
+    Map<String,Object> results = new LinkedHashMap<>();
+    for (Map.Entry<String,Formula> formula:formulas.entrySet()) {
+      Node root = formula.getValue().root;
+      Object result = (root == null) ? formula.getValue().expression.evaluate() : evaluate(root,values,operators);
+      results.put(formula.getKey(),result);
+    }
+    return results;
+  }
+
+  /*
+   * Evaluates a node, unless it already has been evaluated during this
+   * evaluation of the set.
+   */
+  private static Object evaluate(Node node,Object [] values,ResolvedOperators operators) throws ExpressionException {
+    Object value = values[node.id];
+    if (value != null) return value;
+    Token token = node.token;
+    switch (token.getType()) {
+      case VAL:
+        value = ((ValueToken)token).getValue();
+        break;
+      case VAR:
+        value = ((VariableToken)token).evaluate();
+        break;
+      case UNA:
+        value = ((UnaryOperatorToken)token).evaluate(operators,evaluate(node.operands[0],values,operators));
+        break;
+      case UNI:
+        value = ((UnitToken)token).evaluate(operators,evaluate(node.operands[0],values,operators));
+        break;
+      case BIN: {
+        Object left = evaluate(node.operands[0],values,operators);
+        if (node.jump != null && node.jump.isTaken(left)) {
+          value = node.jump.getResult();
+          break;
+        }
+        Object right = (node.operands.length == 1) ? left : evaluate(node.operands[1],values,operators);
+        value = ((BinaryOperatorToken)token).evaluate(operators,left,right);
+        break;
+      }
+      case FNC: {
+        Object [] parameters = new Object [node.operands.length];
+        for (int p = 0; p < parameters.length; p++) parameters[p] = evaluate(node.operands[p],values,operators);
+        value = ((FunctionToken)token).evaluate(parameters);
+        break;
+      }
+      case JMP:
+        value = ((JumpToken)token).isTaken(evaluate(node.operands[0],values,operators))
+                ? evaluate(node.operands[2],values,operators) : evaluate(node.operands[1],values,operators);
+        break;
+      default:
+        throw new IllegalExpressionStateException(token.getPosition());
+    }
+    values[node.id] = value;
+    return value;
+  }
+
+  /*
+   * Builds the graph for the tokens from first up to last, which form a single
+   * operand. The jumps are as emitted by the Optimizer.
+   */
+  private Node build(Token [] program,int first,int last,ResolvedOperators operators) {
+    Deque<Node> stack = new ArrayDeque<>();
+    for (int t = first; t < last; t++) {
+      Token token = program[t];
+      switch (token.getType()) {
+        case VAL: {
+          Object value = ((ValueToken)token).getValue();
+          stack.push(share("V"+value.getClass().getName()+":"+value,token,value.getClass()));
+          break;
+        }
+        case VAR:
+          stack.push(share("R"+((VariableToken)token).getName(),token,
+                  environment.getVariableType(((VariableToken)token).getName())));
+          break;
+        case UNA: case UNI: {
+          Node operand = stack.pop();
+          UnaryOperator implementation = (operand.type == null) ? null : (token instanceof UnitToken)
+                  ? ((UnitToken)token).getImplementation(operators,operand.type)
+                  : ((UnaryOperatorToken)token).getImplementation(operators,operand.type);
+          String name = (token instanceof UnitToken)
+                  ? "N"+((UnitToken)token).getName() : "U"+((UnaryOperatorToken)token).getUnaryOperatorType();
+          stack.push(share(name+":"+operand.id,token,Optimizer.typeOf(implementation),operand));
+          break;
+        }
+        case DUP: {
+          // Only emitted for x^2 as x*x
+          BinaryOperatorToken square = (BinaryOperatorToken)program[++t];
+          Node operand = stack.pop();
+          stack.push(share(binaryKey(square,operand,operand,operators),square,
+                  typeOf(square,operand,operand,operators),operand));
+          break;
+        }
+        case BIN: {
+          Node right = stack.pop();
+          Node left = stack.pop();
+          BinaryOperatorToken binary = (BinaryOperatorToken)token;
+          stack.push(share(binaryKey(binary,left,right,operators),binary,
+                  typeOf(binary,left,right,operators),left,right));
+          break;
+        }
+        case FNC: {
+          Node [] operands = new Node[((FunctionToken)token).getArity()];
+          for (int p = operands.length - 1; p >= 0; p--) operands[p] = stack.pop();
+          String name = ((FunctionToken)token).getName();
+          StringBuilder key = null;
+          if (environment.isPure(name)) {
+            key = new StringBuilder("F").append(name).append(':');
+            for (int p = 0; p < operands.length; p++) key.append(p == 0 ? "" : ",").append(operands[p].id);
+          }
+          stack.push(share(key == null ? null : key.toString(),token,environment.getFunctionType(name),operands));
+          break;
+        }
+        case JMP: {
+          JumpToken jump = (JumpToken)token;
+          Node condition = stack.pop();
+          if (jump.getCondition() == JumpToken.Condition.FALSE) {
+            // cond FALSE(else) a ALWAYS(end) else: b end:
+            int end = ((JumpToken)program[jump.getTarget() - 1]).getTarget();
+            Node branch = build(program,t + 1,jump.getTarget() - 1,operators);
+            Node otherwise = build(program,jump.getTarget(),end,operators);
+            Class type = (branch.type == otherwise.type) ? branch.type : null;
+            stack.push(share("C"+condition.id+","+branch.id+","+otherwise.id,jump,type,condition,branch,otherwise));
+            t = end - 1;
+          } else {
+            // left AND/OR(end) right operator end:
+            BinaryOperatorToken operator = (BinaryOperatorToken)program[jump.getTarget() - 1];
+            Node right = build(program,t + 1,jump.getTarget() - 1,operators);
+            stack.push(share("L"+operator.getBinaryOperatorType()+":"+condition.id+","+right.id,operator,jump,
+                    typeOf(operator,condition,right,operators),condition,right));
+            t = jump.getTarget() - 1;
+          }
+          break;
+        }
+        default:
+          throw new IllegalExpressionStateException(token.getPosition());
+      }
+    }
+    return stack.pop();
+  }
+
+  /*
+   * Operands of commutative operators are keyed in the order of their nodes,
+   * when their types make the operator commutative.
+   */
+  private String binaryKey(BinaryOperatorToken token,Node left,Node right,ResolvedOperators operators) {
+    if (left.id > right.id && token.getBinaryOperatorType().isCommutative()
+            && Optimizer.isNumeric(left.type) && Optimizer.isNumeric(right.type)
+            && isDefault(token.getImplementation(operators,left.type,right.type))
+            && isDefault(token.getImplementation(operators,right.type,left.type))) {
+      Node swap = left;
+      left = right;
+      right = swap;
+    }
+    return "B"+token.getBinaryOperatorType()+":"+left.id+","+right.id;
+  }
+
+  private boolean isDefault(BinaryOperator implementation) {
+    return implementation != null && environment.isDefault(implementation);
+  }
+
+  private static Class typeOf(BinaryOperatorToken token,Node left,Node right,ResolvedOperators operators) {
+    if (left.type == null || right.type == null) return null;
+    return Optimizer.typeOf(token.getImplementation(operators,left.type,right.type));
+  }
+
+  /*
+   * Returns the node for the key, creating it when it is new. Nodes without
+   * a key are never shared.
+   */
+  private Node share(String key,Token token,Class type,Node... operands) {
+    return share(key,token,null,type,operands);
+  }
+
+  private Node share(String key,Token token,JumpToken jump,Class type,Node... operands) {
+    Node node = (key == null) ? null : nodes.get(key);
+    if (node != null) return node;
+    node = new Node(nodeCount++,token,jump,type,operands);
+    if (key != null) nodes.put(key,node);
+    return node;
+  }
+
+  private static final class Formula {
+    final Expression expression;
+    final Node root;
+
+    Formula(Expression expression,Node root) {
+      this.expression = expression;
+      this.root = root;
+    }
+  }
+
+  /*
+   * Node of the graph. A binary operator having a single operand is applied
+   * on it twice (x^2 as x*x), one having a jump is the short-circuited and/or.
+   * The conditional has its jump as token.
+   */
+  private static final class Node {
+    final int id;
+    final Token token;
+    final JumpToken jump;
+    final Class type;
+    final Node [] operands;
+
+    Node(int id,Token token,JumpToken jump,Class type,Node [] operands) {
+      this.id = id;
+      this.token = token;
+      this.jump = jump;
+      this.type = type;
+      this.operands = operands;
+    }
+  }
+}
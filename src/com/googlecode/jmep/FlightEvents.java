@@ -0,0 +1,246 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events of JMEP:<ul>
+ * <li><code>com.googlecode.jmep.ExpressionCompile</code> for every expression
+ * compiled from its text,</li>
+ * <li><code>com.googlecode.jmep.EnvironmentResolve</code> for every snapshot of
+ * the operators an Environment resolves,</li>
+ * <li><code>com.googlecode.jmep.SlowEvaluation</code> for evaluations taking
+ * longer than the threshold, 10 ms by default, naming the slowest function
+ * called.</li></ul>
+ * Without a recording, compiling and resolving only create an event to find
+ * it disabled, and evaluating only reads a volatile field. That flag follows
+ * the recordings running when the class is loaded, such as one started at
+ * launch, and is kept up to date as recordings start and stop. When evaluations are nested, through a
+ * function evaluating another expression, only the outermost is recorded.
+ * When the JVM has no Flight Recorder, no events are created at all.
+ * @author Jo Desmet
+ */
+final class FlightEvents {
+  static final boolean AVAILABLE = isAvailable();
+  /* True while a recording has slow evaluations enabled */
+  static volatile boolean slowEvaluations;
+  private static final ThreadLocal<Trace> TRACE = ThreadLocal.withInitial(Trace::new);
+
+  static {
+    if (AVAILABLE) {
+      FlightRecorder.addListener(new FlightRecorderListener() {
+        @Override
+        public void recorderInitialized(FlightRecorder recorder) {
+          update();
+        }
+
+        @Override
+        public void recordingStateChanged(Recording recording) {
+          update();
+        }
+      });
+      /* Recordings started before, for example at launch, are not replayed */
+      if (FlightRecorder.isInitialized()) update();
+    }
+  }
+
+  private static void update() {
+    slowEvaluations = EventType.getEventType(SlowEvaluationEvent.class).isEnabled();
+  }
+
+  private FlightEvents() {
+  }
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+      return FlightRecorder.isAvailable();
+    } catch (ClassNotFoundException | LinkageError | SecurityException x) {
+      return false;
+    }
+  }
+
+  /*
+   * Returns the started compile event, or null when not recorded.
+   */
+  static Object beginCompile() {
+    if (!AVAILABLE) return null;
+    ExpressionCompileEvent event = new ExpressionCompileEvent();
+    if (!event.isEnabled()) return null;
+    event.begin();
+    return event;
+  }
+
+  static void endCompile(Object started,String expression,int tokenCount) {
+    if (started == null) return;
+    ExpressionCompileEvent event = (ExpressionCompileEvent)started;
+    event.end();
+    if (event.shouldCommit()) {
+      event.expression = expression;
+      event.textLength = expression.length();
+      event.tokenCount = tokenCount;
+      event.commit();
+    }
+  }
+
+  /*
+   * Returns the started resolve event, or null when not recorded.
+   */
+  static Object beginResolve() {
+    if (!AVAILABLE) return null;
+    EnvironmentResolveEvent event = new EnvironmentResolveEvent();
+    if (!event.isEnabled()) return null;
+    event.begin();
+    return event;
+  }
+
+  /*
+   * Ends the resolve event, counting the implementations resolved by it. As
+   * resolving is incremental, these are only the operators and units affected
+   * by the registrations since the previous resolve.
+   */
+  static void endResolve(Object started,List<Map<?,?>> added) {
+    if (started == null) return;
+    EnvironmentResolveEvent event = (EnvironmentResolveEvent)started;
+    event.end();
+    if (event.shouldCommit()) {
+      for (Map<?,?> implementations:added) {
+        for (Object operator:implementations.values()) {
+          event.operators++;
+          if (operator instanceof Environment.UpgradedBinaryOperator
+                  || operator instanceof Environment.UpgradedUnaryOperator) event.upgradedOperators++;
+        }
+      }
+      event.commit();
+    }
+  }
+
+  /*
+   * Starts tracing an evaluation on this thread, only called while slow
+   * evaluations are recorded.
+   */
+  static void beginEvaluation() {
+    Trace trace = TRACE.get();
+    if (trace.depth++ > 0) return;
+    trace.slowestFunction = null;
+    trace.slowestNanos = 0;
+    trace.event = new SlowEvaluationEvent();
+    trace.event.begin();
+  }
+
+  /*
+   * Stops tracing an evaluation, doing nothing when it was not traced.
+   */
+  static void endEvaluation(String expression) {
+    Trace trace = TRACE.get();
+    if (trace.depth == 0 || --trace.depth > 0) return;
+    SlowEvaluationEvent event = trace.event;
+    trace.event = null;
+    event.end();
+    if (event.shouldCommit()) {
+      event.expression = expression;
+      event.slowestFunction = trace.slowestFunction;
+      event.slowestFunctionDuration = trace.slowestNanos;
+      event.commit();
+    }
+  }
+
+  static void functionCalled(String name,long start) {
+    long nanos = System.nanoTime() - start;
+    Trace trace = TRACE.get();
+    if (trace.depth > 0 && (trace.slowestFunction == null || nanos > trace.slowestNanos)) {
+      trace.slowestFunction = name;
+      trace.slowestNanos = nanos;
+    }
+  }
+
+  private static final class Trace {
+    SlowEvaluationEvent event;
+    int depth;
+    String slowestFunction;
+    long slowestNanos;
+  }
+
+  @Name("com.googlecode.jmep.ExpressionCompile")
+  @Label("Expression Compile")
+  @Category("JMEP")
+  @Description("Tokenizing, compiling and optimizing an expression")
+  @StackTrace(false)
+  static final class ExpressionCompileEvent extends Event {
+    @Label("Expression")
+    String expression;
+
+    @Label("Text Length")
+    int textLength;
+
+    @Label("Token Count")
+    int tokenCount;
+  }
+
+  @Name("com.googlecode.jmep.EnvironmentResolve")
+  @Label("Environment Resolve")
+  @Category("JMEP")
+  @Description("Resolving the operators of an Environment, including the upgrade conversions")
+  @StackTrace(false)
+  static final class EnvironmentResolveEvent extends Event {
+    @Label("Resolved Operators")
+    @Description("Implementations of the operators and units resolved again since the previous resolve")
+    int operators;
+
+    @Label("Upgraded Operators")
+    @Description("Of the resolved implementations, those generated through upgrade conversions")
+    int upgradedOperators;
+  }
+
+  @Name("com.googlecode.jmep.SlowEvaluation")
+  @Label("Slow Evaluation")
+  @Category("JMEP")
+  @Description("An evaluation of an expression taking longer than the threshold")
+  @Threshold("10 ms")
+  static final class SlowEvaluationEvent extends Event {
+    @Label("Expression")
+    String expression;
+
+    @Label("Slowest Function")
+    String slowestFunction;
+
+    @Label("Slowest Function Duration")
+    @Timespan
+    long slowestFunctionDuration;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.util.Arrays;
+
+/**
+ * The values of the variables of an expression for a single evaluation. Every
+ * variable used by the expression has a numbered slot, holding a Long or Double
+ * value unboxed. A frame is created by the expression it belongs to, and is
+ * used by one thread at a time, so that many threads can evaluate the same
+ * expression each against their own frame.<p>
+ *
+ * A slot that has not been set reads the variable of the Environment.
+ * <pre><code>Frame frame = expression.newFrame();
+ *int price = frame.getSlot("price");
+ *frame.setDouble(price,12.5);
+ *double result = expression.evaluateAsDouble(frame);</code></pre>
+ * @author Jo Desmet
+ * @see Expression#newFrame()
+ */
+public final class Frame {
+  static final byte NONE = -1;
+
+  private final String [] names;
+  final byte [] kinds;
+  final long [] longs;
+  final double [] doubles;
+  final Object [] objects;
+
+  Frame(String [] names) {
+    this.names = names;
+    this.kinds = new byte[names.length];
+    this.longs = new long[names.length];
+    this.doubles = new double[names.length];
+    this.objects = new Object[names.length];
+    Arrays.fill(kinds,NONE);
+  }
+
+  String [] getNames() {
+    return names;
+  }
+
+  /**
+   * @return the number of slots.
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * @param name the name of a variable.
+   * @return the slot of the variable, or -1 if not used by the expression.
+   */
+  public int getSlot(String name) {
+    for (int slot = 0; slot < names.length; slot++) {
+      if (names[slot].equals(name)) return slot;
+    }
+    return -1;
+  }
+
+  /**
+   * @param slot the slot.
+   * @return the name of the variable of the slot.
+   */
+  public String getName(int slot) {
+    return names[slot];
+  }
+
+  /**
+   * Sets a slot to a Double value.
+   * @param slot the slot.
+   * @param value the value.
+   * @return this frame.
+   */
+  public Frame setDouble(int slot,double value) {
+    doubles[slot] = value;
+    kinds[slot] = PrimitiveEvaluator.DOUBLE;
+    return this;
+  }
+
+  /**
+   * Sets a slot to a Long value.
+   * @param slot the slot.
+   * @param value the value.
+   * @return this frame.
+   */
+  public Frame setLong(int slot,long value) {
+    longs[slot] = value;
+    kinds[slot] = PrimitiveEvaluator.LONG;
+    return this;
+  }
+
+  /**
+   * Sets a slot to any value. Integer, Long and Double values are unboxed.
+   * @param slot the slot.
+   * @param value the value, or <code>null</code> to read the variable of the
+   * Environment again.
+   * @return this frame.
+   */
+  public Frame set(int slot,Object value) {
+    if (value == null) {
+      objects[slot] = null;
+      kinds[slot] = NONE;
+    } else if (value instanceof Long || value instanceof Integer) {
+      setLong(slot,((Number)value).longValue());
+    } else if (value instanceof Double) {
+      setDouble(slot,(Double)value);
+    } else {
+      objects[slot] = value;
+      kinds[slot] = PrimitiveEvaluator.OBJECT;
+    }
+    return this;
+  }
+
+  /**
+   * Unsets all slots, so that all variables are read from the Environment.
+   */
+  public void clear() {
+    Arrays.fill(kinds,NONE);
+    Arrays.fill(objects,null);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+/**
+ * A snapshot of the statistics of the cache of a memoized function.
+ * @author Jo Desmet
+ * @see Environment#getFunctionStatistics(String)
+ * @see com.googlecode.jmep.function.FunctionTraits#memoize(int)
+ */
+public final class FunctionStatistics {
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final int size;
+
+  FunctionStatistics(long hits,long misses,long evictions,int size) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.size = size;
+  }
+
+  /**
+   * @return the number of calls answered from the cache.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of calls that called the function.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of results removed to keep the cache within its size.
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return the number of results in the cache.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the fraction of calls answered from the cache, 0 when there were
+   * no calls yet.
+   */
+  public double getHitRate() {
+    long calls = hits + misses;
+    return (calls == 0) ? 0.0 : (double)hits / calls;
+  }
+
+  @Override
+  public String toString() {
+    return "hits="+hits+", misses="+misses+", evictions="+evictions+", size="+size;
+  }
+}
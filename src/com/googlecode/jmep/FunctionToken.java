@@ -1 +1,110 @@
-/* * JMEP - Java Mathematical Expression Parser. * Copyright (C) 1999  Jo Desmet *  * This library is free software; you can redistribute it and/or * modify it under the terms of the GNU Lesser General Public * License as published by the Free Software Foundation; either * version 2.1 of the License, or any later version. *  * This library is distributed in the hope that it will be useful, * but WITHOUT ANY WARRANTY; without even the implied warranty of * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU * Lesser General Public License for more details. *  * You should have received a copy of the GNU Lesser General Public * License along with this library; if not, write to the Free Software * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA *  * You can contact the Original submitter of this library by * email at: Jo_Desmet@yahoo.com. *  */package com.googlecode.jmep;import com.googlecode.jmep.function.Function;class FunctionToken extends Token {  final private Function callback;  final private String name;  private int arity; // Number of Parameters  FunctionToken(String name,Function callback,int position) {    super(Token.Type.FNC,position);    this.callback = callback;    this.name = name;    this.arity = 0;  }  FunctionToken(String name,int position) {    this(name,null,position);  }  void setArity(int arity) {    this.arity = arity;  }  int getArity() {    return arity;  }  Object evaluate(Object [] params) throws UndefinedFunctionException{    if (callback != null) return callback.call(params);    throw new UndefinedFunctionException(getPosition(),name);  }}
\ No newline at end of file
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.Function;
+
+class FunctionToken extends Token {
+  final private Function callback;
+  final private Function target; // The callback, or its specialization
+  final private String name;
+  private int arity; // Number of Parameters
+
+  FunctionToken(String name,Function callback,int position) {
+    this(name,callback,callback,position);
+  }
+
+  private FunctionToken(String name,Function callback,Function target,int position) {
+    super(Token.Type.FNC,position);
+    this.callback = callback;
+    this.target = target;
+    this.name = name;
+    this.arity = 0;
+  }
+
+  FunctionToken(String name,int position) {
+    this(name,null,position);
+  }
+
+  void setArity(int arity) {
+    this.arity = arity;
+  }
+
+  int getArity() {
+    return arity;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  Function getFunction() {
+    return callback;
+  }
+
+  /*
+   * Returns a token calling the specialization of the function for the given
+   * constant arguments, or this token when the function does not specialize.
+   * A failing specialization is left for evaluation time.
+   */
+  FunctionToken specialize(Object [] constants) {
+    if (callback == null) return this;
+    Function specialized;
+    try {
+      specialized = callback.specialize(constants.clone());
+    } catch (RuntimeException x) {
+      return this;
+    }
+    if (specialized == null || specialized == target) return this;
+    FunctionToken token = new FunctionToken(name,callback,specialized,getPosition());
+    token.setArity(arity);
+    return token;
+  }
+
+  Object evaluate(Object [] params) throws UndefinedFunctionException{
+    if (target == null) throw new UndefinedFunctionException(getPosition(),name);
+    Object value;
+    Metrics metrics = Metrics.active;
+    boolean traced = FlightEvents.slowEvaluations;
+    if (metrics == null && !traced) value = target.call(params);
+    else {
+      long start = System.nanoTime();
+      try {
+        value = target.call(params);
+      } finally {
+        if (metrics != null) metrics.functionCalled(name,start);
+        if (traced) FlightEvents.functionCalled(name,start);
+      }
+    }
+    // Trap Integer and rebox as Long, as for variables
+    if (value instanceof Integer) return Long.valueOf((Integer)value);
+    return value;
+  }
+
+}
+
+
+
+
+
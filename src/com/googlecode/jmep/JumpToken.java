@@ -0,0 +1,102 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+/**
+ * Jump in the RPN Stack, so that the right operand of <code>and</code> and
+ * <code>or</code>, and the branches of <code>if(cond, a, b)</code>, are only
+ * evaluated when needed. The target is the index in the RPN Stack of the token
+ * to continue with, the RPN Stack length jumping to the end.
+ * @author Jo Desmet
+ */
+final class JumpToken extends Token {
+  static enum Condition {
+    /** Always jumps. */
+    ALWAYS(null),
+    /** Pops a logical value, and jumps when it is false. */
+    FALSE(null),
+    /** Jumps when the left operand of <code>and</code> is false, which makes 0 the result. */
+    AND(0L),
+    /** Jumps when the left operand of <code>or</code> is true, which makes 1 the result. */
+    OR(1L);
+
+    final Long result;
+
+    private Condition(Long result) {
+      this.result = result;
+    }
+  }
+
+  private final Condition condition;
+  private int target;
+
+  JumpToken(Condition condition,int position) {
+    super(Token.Type.JMP,position);
+    this.condition = condition;
+  }
+
+  Condition getCondition() {
+    return condition;
+  }
+
+  int getTarget() {
+    return target;
+  }
+
+  void setTarget(int target) {
+    this.target = target;
+  }
+
+  /*
+   * The value replacing the top of the result stack when the jump is taken,
+   * or null if it is left as is.
+   */
+  Long getResult() {
+    return condition.result;
+  }
+
+  /*
+   * Tells if the jump is taken for the value on top of the result stack.
+   */
+  boolean isTaken(long value) {
+    switch (condition) {
+      case FALSE: case AND: return value == 0L;
+      case OR: return value != 0L;
+      default: return true;
+    }
+  }
+
+  /*
+   * Boxed version of the above. Only a Long is a logical value: any other
+   * operand of and/or is left to the operator, which reports it.
+   */
+  boolean isTaken(Object value) throws ExpressionException {
+    if (condition == Condition.ALWAYS) return true;
+    if (value instanceof Long || value instanceof Integer) return isTaken(((Number)value).longValue());
+    if (condition == Condition.FALSE) {
+      throw new ExpressionException(getPosition(),"Condition of type "+value.getClass().getSimpleName()+" is not a logical value");
+    }
+    return false;
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.math.BigDecimal;
+import java.text.CharacterIterator;
+
+/**
+ * Scans the text of an expression by index, much like a CharacterIterator but
+ * without copying the text. Identifiers and strings are taken from the text
+ * directly, and numbers are converted without creating a BigDecimal, unless
+ * they cannot be represented exactly as a Long or a correctly rounded Double.
+ * @author Jo Desmet
+ */
+final class Lexer {
+  static final char DONE = CharacterIterator.DONE;
+  private static final long [] POWERS_OF_TEN = new long [19];
+  private static final double [] DOUBLE_POWERS_OF_TEN = new double [23];
+  static {
+    POWERS_OF_TEN[0] = 1L;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+    for (int i = 0; i < DOUBLE_POWERS_OF_TEN.length; i++) DOUBLE_POWERS_OF_TEN[i] = Double.parseDouble("1e"+i);
+  }
+
+  private final CharSequence text;
+  private final int length;
+  private int index;
+
+  Lexer(CharSequence text) {
+    this.text = text;
+    this.length = text.length();
+  }
+
+  char current() {
+    return (index < length) ? text.charAt(index) : DONE;
+  }
+
+  char next() {
+    if (index < length) index++;
+    return current();
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  String parseIdentifier() {
+    int start = index;
+    char cc = current();
+    if (!Character.isUnicodeIdentifierStart(cc)) return null;
+    /* Only needed when ignorable characters have to be left out */
+    StringBuilder identifier = null;
+    cc = next();
+    for (;;) {
+      if (Character.isIdentifierIgnorable(cc)) {
+        if (identifier == null) identifier = new StringBuilder().append(text, start, index);
+      } else if (Character.isUnicodeIdentifierPart(cc) || cc == '.') {
+        if (identifier != null) identifier.append(cc);
+      } else {
+        break;
+      }
+      cc = next();
+    }
+    return (identifier == null) ? text.subSequence(start, index).toString() : identifier.toString();
+  }
+
+  /*
+   * A number without fractional part within the range of a Long results in a
+   * Long, any other number in a Double or, in the financial mode, a BigDecimal.
+   */
+  Number parseNumber(boolean financial) throws ExpressionException {
+    int start = index;
+    char cc = current();
+    long mantissa = 0;
+    int mantissaDigits = 0;
+    int scale = 0;
+    boolean exact = true;
+    
+    while (Character.isDigit(cc)) {
+      if (mantissa < 100000000000000000L) mantissa = mantissa * 10 + Character.digit(cc, 10);
+      else exact = false;
+      mantissaDigits++;
+      cc = next();
+    }
+    if (cc == '.' || cc == 'e' || cc == 'E') {
+      if (cc == '.') {
+        // Fractional Part
+        cc = next();
+        while (Character.isDigit(cc)) {
+          if (mantissa < 100000000000000000L) mantissa = mantissa * 10 + Character.digit(cc, 10);
+          else exact = false;
+          mantissaDigits++;
+          scale--;
+          cc = next();
+        }
+      }
+      if (cc == 'e' || cc == 'E') {
+        // Exponent
+        cc = next();
+        boolean negative = false;
+        if (!Character.isDigit(cc)) {
+          if (cc == '+' || cc == '-') {
+            // Exponent Sign
+            negative = (cc == '-');
+            cc = next();
+          } else {
+            throw new ExpressionException(index,"Invalid Number Syntax: Unexpected Character in Exponent.");
+          }
+        }
+        int exponent = 0;
+        int exponentDigits = 0;
+        while (Character.isDigit(cc)) {
+          if (exponent < 10000) exponent = exponent * 10 + Character.digit(cc, 10);
+          exponentDigits++;
+          cc = next();
+        }
+        if (exponentDigits == 0) exact = false; // Left to BigDecimal to report
+        scale += negative ? -exponent : exponent;
+      }
+    }
+    if (cc == '.') {
+      throw new ExpressionException(index,"Invalid Number Syntax: Unexpected Character.");
+    }
+    if (exact && mantissaDigits > 0) {
+      if (mantissa == 0) return 0L;
+      while (mantissa % 10 == 0) {
+        mantissa /= 10;
+        scale++;
+      }
+      if (scale >= 0) {
+        if (scale < POWERS_OF_TEN.length && mantissa <= Long.MAX_VALUE / POWERS_OF_TEN[scale]) {
+          return mantissa * POWERS_OF_TEN[scale];
+        }
+      } else if (!financial && mantissa < (1L << 53) && -scale < DOUBLE_POWERS_OF_TEN.length) {
+        /* Both are exact, so the division is rounded correctly */
+        return mantissa / DOUBLE_POWERS_OF_TEN[-scale];
+      }
+    }
+    /*
+     * It is important to depend on BigDecimal to do the string-to-number conversion for you. It is smarter
+     * than trying to manually build up the number as 0.01 would have been built up as 0.1 * 0.1, introducing
+     * an error of 2.22E-16. When directly converting using BigDecimal, 0.01*100-1 will give an exact result of 0.0.
+     * You will note that when you calculate this using Excpression - when all numbers are represente as a double - 
+     * 0.1*0.1*100-1 will again evaluate to 2.22E-16 due to the same introduced roundings. Use of BigDecimal for
+     * representing the numbers will cause this to be zero as well.
+     */
+    BigDecimal bd = new BigDecimal(text.subSequence(start, index).toString()).stripTrailingZeros();
+    if (bd.scale() <= 0 && bd.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0 && bd.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) >= 0) {
+      return bd.longValueExact();
+    }
+    if (financial) {
+      return bd;
+    }
+    return bd.doubleValue();
+  }
+
+  String parseString() throws ExpressionException {
+    if (current() != '"') return null;
+    int start = index + 1;
+    /* Only needed when escapes have to be left out */
+    StringBuilder string = null;
+    char cc = next();
+    while (cc != '"') {
+      if (cc == DONE) {
+        throw new ExpressionException(length-1, "Invalid Syntax: String not terminated properly." );
+      }
+      if (cc == '\\') {
+        char nc = (index + 1 < length) ? text.charAt(index + 1) : DONE;
+        if (nc == '"' || nc == '\\') {
+          if (string == null) string = new StringBuilder().append(text, start, index);
+          cc = next();
+        }
+      }
+      if (string != null) string.append(cc);
+      cc = next();
+    }
+    String value = (string == null) ? text.subSequence(start, index).toString() : string.toString();
+    next();
+    return value;
+  }
+}
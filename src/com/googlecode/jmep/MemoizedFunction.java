@@ -0,0 +1,156 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.Function;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pure function keeping its results in a bounded cache. The cache is split
+ * into segments by the hash of the arguments, each holding its least recently
+ * used results under its own lock, so that threads calling with different
+ * arguments rarely wait for each other. The function itself is called outside
+ * of the lock.<p>
+ *
+ * A single argument is its own key. More arguments are copied into a key, as
+ * the array of arguments can be reused by the caller. Missing results
+ * (<code>null</code>) are not cached. A specialized function shares the cache
+ * of the function it was specialized from, as it is called with the same
+ * arguments and gives the same results.
+ * @author Jo Desmet
+ */
+final class MemoizedFunction implements Function {
+  private static final int SEGMENTS = 16;
+  private final Function function;
+  private final Segment [] segments;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+
+  MemoizedFunction(Function function,int size) {
+    this.function = function;
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+    int segmentCount = Math.min(SEGMENTS,size);
+    this.segments = new Segment[segmentCount];
+    for (int s = 0; s < segmentCount; s++) {
+      /* Spread the size, the first segments taking the remainder */
+      segments[s] = new Segment(size / segmentCount + (s < size % segmentCount ? 1 : 0));
+    }
+  }
+
+  private MemoizedFunction(Function function,MemoizedFunction shared) {
+    this.function = function;
+    this.segments = shared.segments;
+    this.hits = shared.hits;
+    this.misses = shared.misses;
+    this.evictions = shared.evictions;
+  }
+
+  Function getFunction() {
+    return function;
+  }
+
+  @Override
+  public Object call(Object [] parameters) {
+    /* A single argument is its own key, and may be null like any result */
+    Object key = (parameters.length == 1) ? parameters[0] : new Key(parameters);
+    int hash = Objects.hashCode(key);
+    Segment segment = segments[((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % segments.length];
+    Object result;
+    synchronized (segment) {
+      result = segment.get(key);
+    }
+    if (result != null) {
+      hits.increment();
+      return result;
+    }
+    misses.increment();
+    result = function.call(parameters);
+    if (result != null) {
+      synchronized (segment) {
+        segment.put(key,result);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Function specialize(Object [] constants) {
+    Function specialized = function.specialize(constants);
+    return (specialized == function) ? this : new MemoizedFunction(specialized,this);
+  }
+
+  FunctionStatistics getStatistics() {
+    int size = 0;
+    for (Segment segment:segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return new FunctionStatistics(hits.sum(),misses.sum(),evictions.sum(),size);
+  }
+
+  private final class Segment extends LinkedHashMap<Object,Object> {
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    Segment(int capacity) {
+      super(16,0.75f,true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Object,Object> eldest) {
+      if (size() <= capacity) return false;
+      evictions.increment();
+      return true;
+    }
+  }
+
+  private static final class Key {
+    private final Object [] values;
+    private final int hash;
+
+    Key(Object [] parameters) {
+      this.values = parameters.clone();
+      this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return (other instanceof Key) && Arrays.equals(values,((Key)other).values);
+    }
+  }
+}
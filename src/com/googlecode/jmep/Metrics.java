@@ -0,0 +1,336 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Measures the evaluation of expressions, the calls of functions and the
+ * reads of variables, counts the failures of operators, and counts for which
+ * classes of operands the binary operators are applied, whether bound to
+ * those classes at compile time or looked up. Metrics are
+ * disabled by default, in which case every measuring point costs a single
+ * read of a volatile field.<p>
+ *
+ * The measurements are kept by expression text and by function and variable
+ * label, for all environments, and passed to the registered listeners. They
+ * can be inspected through the platform MBean server once registered:
+ * <pre><code>Metrics metrics = Metrics.getInstance();
+ *metrics.registerMBean();
+ *metrics.setEnabled(true);
+ *...
+ *Metrics.Timer timer = metrics.getEvaluationTimer("price*qty");</code></pre>
+ * Evaluations are measured for all <code>evaluate</code> methods of
+ * Expression evaluating a single row. Variables read into a Frame, or bound to
+ * columns, are not measured.<p>
+ *
+ * At most 10000 expressions, functions and variables each are measured, to
+ * keep the metrics of an application building expressions from arbitrary text
+ * bounded. Any others are only passed to the listeners.
+ * @author Jo Desmet
+ * @see MetricsListener
+ */
+public final class Metrics implements MetricsMXBean {
+  private static final Metrics INSTANCE = new Metrics();
+  private static final int MAXIMUM_TIMERS = 10000;
+  /* The metrics when enabled, null when disabled */
+  static volatile Metrics active;
+  private final Map<String,Timer> evaluations = new ConcurrentHashMap<>();
+  private final Map<String,Timer> functions = new ConcurrentHashMap<>();
+  private final Map<String,Timer> variables = new ConcurrentHashMap<>();
+  private final Map<BinaryOperatorType,Map<SimpleClassPair,LongAdder>> dispatches = new ConcurrentHashMap<>();
+  private final LongAdder undefinedOperators = new LongAdder();
+  private final LongAdder operatorExceptions = new LongAdder();
+  private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+  private Metrics() {
+  }
+
+  /**
+   * @return the metrics of this JVM.
+   */
+  public static Metrics getInstance() {
+    return INSTANCE;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return active != null;
+  }
+
+  /**
+   * Starts or stops measuring. Stopping keeps the metrics taken so far.
+   * @param enabled true to start measuring.
+   */
+  @Override
+  public void setEnabled(boolean enabled) {
+    active = enabled ? this : null;
+  }
+
+  /**
+   * Adds a listener, receiving the measurements while metrics are enabled.
+   * @param listener the listener.
+   */
+  public void addListener(MetricsListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(MetricsListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, under the name
+   * <code>com.googlecode.jmep:type=Metrics</code>.
+   * @return the name registered.
+   * @throws JMException when the registration fails, for example when already
+   * registered.
+   */
+  public ObjectName registerMBean() throws JMException {
+    ObjectName name = new ObjectName("com.googlecode.jmep:type=Metrics");
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this,name);
+    return name;
+  }
+
+  @Override
+  public void reset() {
+    evaluations.clear();
+    functions.clear();
+    variables.clear();
+    dispatches.clear();
+    undefinedOperators.reset();
+    operatorExceptions.reset();
+  }
+
+  /**
+   * @param expression the text of the expression.
+   * @return the measured evaluations of the expression, or null when none.
+   */
+  public Timer getEvaluationTimer(String expression) {
+    return evaluations.get(expression);
+  }
+
+  /**
+   * @param name the label of the function.
+   * @return the measured calls of the function, or null when none.
+   */
+  public Timer getFunctionTimer(String name) {
+    return functions.get(name);
+  }
+
+  /**
+   * @param name the label of the variable.
+   * @return the measured reads of the variable, or null when none.
+   */
+  public Timer getVariableTimer(String name) {
+    return variables.get(name);
+  }
+
+  /**
+   * @return the number of times the operator was applied on operands of the
+   * given classes.
+   */
+  public long getDispatchCount(BinaryOperatorType operatorType,Class leftClass,Class rightClass) {
+    Map<SimpleClassPair,LongAdder> counts = dispatches.get(operatorType);
+    LongAdder count = (counts == null) ? null : counts.get(SimpleClassPair.of(leftClass,rightClass));
+    return (count == null) ? 0 : count.sum();
+  }
+
+  @Override
+  public Map<String,Long> getEvaluationCounts() {
+    return summarize(evaluations,Timer::getCount);
+  }
+
+  @Override
+  public Map<String,Long> getEvaluationMeanNanos() {
+    return summarize(evaluations,Timer::getMeanNanos);
+  }
+
+  @Override
+  public Map<String,Long> getEvaluation99thPercentileNanos() {
+    return summarize(evaluations,(Timer timer) -> timer.getPercentileNanos(0.99));
+  }
+
+  @Override
+  public Map<String,Long> getEvaluationFailures() {
+    return summarize(evaluations,Timer::getFailures);
+  }
+
+  @Override
+  public Map<String,Long> getFunctionCallCounts() {
+    return summarize(functions,Timer::getCount);
+  }
+
+  @Override
+  public Map<String,Long> getFunctionTotalNanos() {
+    return summarize(functions,Timer::getTotalNanos);
+  }
+
+  @Override
+  public Map<String,Long> getVariableReadCounts() {
+    return summarize(variables,Timer::getCount);
+  }
+
+  @Override
+  public Map<String,Long> getVariableTotalNanos() {
+    return summarize(variables,Timer::getTotalNanos);
+  }
+
+  @Override
+  public long getUndefinedOperatorCount() {
+    return undefinedOperators.sum();
+  }
+
+  @Override
+  public long getOperatorExceptionCount() {
+    return operatorExceptions.sum();
+  }
+
+  @Override
+  public Map<String,Long> getBinaryDispatchCounts() {
+    Map<String,Long> counts = new TreeMap<>();
+    for (Map.Entry<BinaryOperatorType,Map<SimpleClassPair,LongAdder>> e:dispatches.entrySet()) {
+      for (Map.Entry<SimpleClassPair,LongAdder> ee:e.getValue().entrySet()) {
+        counts.put(e.getKey()+"("+ee.getKey().t.getSimpleName()+","+ee.getKey().u.getSimpleName()+")",ee.getValue().sum());
+      }
+    }
+    return counts;
+  }
+
+  private static Map<String,Long> summarize(Map<String,Timer> timers,ToLongFunction<Timer> value) {
+    Map<String,Long> summary = new TreeMap<>();
+    for (Map.Entry<String,Timer> e:timers.entrySet()) summary.put(e.getKey(),value.applyAsLong(e.getValue()));
+    return summary;
+  }
+
+  /*
+   * The measuring points below are only called while enabled, with the start
+   * as taken from System.nanoTime().
+   */
+  void evaluated(String expression,long start,ExpressionException failure) {
+    long nanos = System.nanoTime() - start;
+    Timer timer = timer(evaluations,expression);
+    if (timer != null) timer.record(nanos,failure != null);
+    if (failure instanceof UndefinedOperatorException) undefinedOperators.increment();
+    else if (failure instanceof OperatorException) operatorExceptions.increment();
+    for (MetricsListener listener:listeners) listener.evaluated(expression,nanos,failure);
+  }
+
+  void functionCalled(String name,long start) {
+    long nanos = System.nanoTime() - start;
+    Timer timer = timer(functions,name);
+    if (timer != null) timer.record(nanos,false);
+    for (MetricsListener listener:listeners) listener.functionCalled(name,nanos);
+  }
+
+  void variableRead(String name,long start) {
+    long nanos = System.nanoTime() - start;
+    Timer timer = timer(variables,name);
+    if (timer != null) timer.record(nanos,false);
+    for (MetricsListener listener:listeners) listener.variableRead(name,nanos);
+  }
+
+  /*
+   * Returns the timer by key, adding one unless there are too many already.
+   */
+  private static Timer timer(Map<String,Timer> timers,String key) {
+    Timer timer = timers.get(key);
+    if (timer != null || timers.size() >= MAXIMUM_TIMERS) return timer;
+    return timers.computeIfAbsent(key,(String k) -> new Timer());
+  }
+
+  void dispatched(BinaryOperatorType operatorType,Class leftClass,Class rightClass) {
+    dispatches.computeIfAbsent(operatorType,(BinaryOperatorType key) -> new ConcurrentHashMap<>())
+            .computeIfAbsent(SimpleClassPair.of(leftClass,rightClass),(SimpleClassPair key) -> new LongAdder())
+            .increment();
+    for (MetricsListener listener:listeners) listener.dispatched(operatorType,leftClass,rightClass);
+  }
+
+  /**
+   * Counts and times the occurrences of an event. Durations are kept in a
+   * histogram of power of two buckets, so that percentiles are accurate within
+   * a factor of two.
+   */
+  public static final class Timer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    /* Bucket b counts the durations below 2^b nanoseconds, and at least 2^(b-1) */
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    private Timer() {
+    }
+
+    void record(long nanos,boolean failed) {
+      count.increment();
+      totalNanos.add(nanos);
+      if (failed) failures.increment();
+      buckets.incrementAndGet(nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getTotalNanos() {
+      return totalNanos.sum();
+    }
+
+    public long getFailures() {
+      return failures.sum();
+    }
+
+    public long getMeanNanos() {
+      long count = getCount();
+      return (count == 0) ? 0 : getTotalNanos() / count;
+    }
+
+    /**
+     * @param fraction the fraction of occurrences, for example 0.99.
+     * @return the duration that the given fraction of occurrences did not
+     * exceed, rounded up to a power of two.
+     */
+    public long getPercentileNanos(double fraction) {
+      long total = 0;
+      for (int b = 0; b < 64; b++) total += buckets.get(b);
+      long rank = (long)Math.ceil(fraction * total);
+      long seen = 0;
+      for (int b = 0; b < 64; b++) {
+        seen += buckets.get(b);
+        if (seen >= rank && seen > 0) return (b == 63) ? Long.MAX_VALUE : (1L << b) - 1;
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+/**
+ * Receives the measurements taken while metrics are enabled. All methods do
+ * nothing by default, so that a listener only implements what it needs.
+ * Listeners are called on the evaluating thread, and should return quickly.
+ * <pre><code>Metrics.getInstance().addListener(new MetricsListener() {
+ *  public void evaluated(String expression,long nanos,ExpressionException failure) {
+ *    histogram(expression).record(nanos);
+ *  }
+ *});</code></pre>
+ * @author Jo Desmet
+ * @see Metrics#addListener(MetricsListener)
+ */
+public interface MetricsListener {
+  /**
+   * Called after every evaluation of an expression.
+   * @param expression the text of the expression.
+   * @param nanos the duration of the evaluation.
+   * @param failure the exception thrown by the evaluation, or <code>null</code>.
+   */
+  default void evaluated(String expression,long nanos,ExpressionException failure) {
+  }
+
+  /**
+   * Called after every call of a function.
+   * @param name the label of the function.
+   * @param nanos the duration of the call.
+   */
+  default void functionCalled(String name,long nanos) {
+  }
+
+  /**
+   * Called after every read of a deferrable variable.
+   * @param name the label of the variable.
+   * @param nanos the duration of the read.
+   */
+  default void variableRead(String name,long nanos) {
+  }
+
+  /**
+   * Called whenever a binary operator is dispatched on the classes of its
+   * operands while evaluating, whether to the implementation bound at compile
+   * time or to one looked up.
+   * @param operatorType the operator.
+   * @param leftClass the class of the left operand.
+   * @param rightClass the class of the right operand.
+   */
+  default void dispatched(BinaryOperatorType operatorType,Class leftClass,Class rightClass) {
+  }
+}
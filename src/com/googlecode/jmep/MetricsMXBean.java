@@ -0,0 +1,70 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.util.Map;
+
+/**
+ * The management interface of the metrics, registered by
+ * {@link Metrics#registerMBean()}. Maps are keyed by the text of the
+ * expression, or by the label of the function or variable.
+ * @author Jo Desmet
+ */
+public interface MetricsMXBean {
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  /** Clears all metrics. */
+  void reset();
+
+  Map<String,Long> getEvaluationCounts();
+
+  Map<String,Long> getEvaluationMeanNanos();
+
+  Map<String,Long> getEvaluation99thPercentileNanos();
+
+  /** @return the number of evaluations that failed, by expression. */
+  Map<String,Long> getEvaluationFailures();
+
+  Map<String,Long> getFunctionCallCounts();
+
+  Map<String,Long> getFunctionTotalNanos();
+
+  Map<String,Long> getVariableReadCounts();
+
+  Map<String,Long> getVariableTotalNanos();
+
+  /** @return the number of evaluations failing on an undefined operator. */
+  long getUndefinedOperatorCount();
+
+  /** @return the number of evaluations failing in an operator. */
+  long getOperatorExceptionCount();
+
+  /**
+   * @return the number of dispatches of binary operators by the classes of
+   * their operands, keyed as <code>ADD(Long,Double)</code>.
+   */
+  Map<String,Long> getBinaryDispatchCounts();
+}
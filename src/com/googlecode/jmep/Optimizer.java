@@ -0,0 +1,540 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.BinaryOperator;
+import com.googlecode.jmep.function.DoubleBinaryOperator;
+import com.googlecode.jmep.function.DoubleBinaryPredicate;
+import com.googlecode.jmep.function.DoubleUnaryOperator;
+import com.googlecode.jmep.function.DoubleVariable;
+import com.googlecode.jmep.function.LongBinaryOperator;
+import com.googlecode.jmep.function.LongBinaryPredicate;
+import com.googlecode.jmep.function.LongUnaryOperator;
+import com.googlecode.jmep.function.LongVariable;
+import com.googlecode.jmep.function.UnaryOperator;
+import com.googlecode.jmep.function.Variable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites the RPN Stack of an expression so that less tokens need to be
+ * evaluated:<ul>
+ * <li>Operators and units that only have constant operands are applied once, at
+ * compile time, as are functions added as pure.</li>
+ * <li>Identities <code>x*1</code>, <code>1*x</code>, <code>x+0</code>,
+ * <code>0+x</code>, <code>x-0</code> and <code>x/1</code> are removed.</li>
+ * <li><code>x^2</code> is reduced to <code>x*x</code>, evaluating <code>x</code>
+ * only once.</li>
+ * <li><code>and</code> and <code>or</code> jump over their right operand when
+ * the left operand decides the result, provided the Environment has the default
+ * implementation for Long operands. The conditional <code>if(cond, a, b)</code>
+ * jumps over the branch not taken, when the Environment does not define a
+ * function <code>if</code> of its own. A constant left operand or condition
+ * is decided at compile time.</li></ul>
+ * The latter two are only applied when the type of <code>x</code> is known to
+ * be Long or Double at compile time, the operators involved are the defaults of
+ * the Environment, and the rewritten form produces exactly the same value and
+ * type. For that reason <code>x+0</code> is kept when x is a Double, as it turns
+ * <code>-0.0</code> into <code>0.0</code>.<p>
+ *
+ * Types are known for literals, for variables and functions declared with a
+ * type, and for the results of operators with a primitive specialization.
+ * Operators on operands of known types are bound to their implementation right
+ * away, and reported as undefined when there is none. Only operators that are
+ * always evaluated are reported; in a branch of a conditional, or in the right
+ * operand of <code>and</code> and <code>or</code>, they are left unbound and
+ * only fail when evaluated.<p>
+ *
+ * Functions called with constant arguments are replaced by their
+ * specialization once the expression is linked, which also applies to
+ * expressions loaded in their compiled form.
+ * @author Jo Desmet
+ */
+final class Optimizer {
+  private static final Object NOT_CONSTANT = new Object();
+  private final Environment environment;
+  private final ResolvedOperators operators;
+
+  private Optimizer(Environment environment) {
+    this.environment = environment;
+    this.operators = environment.getResolvedOperators();
+  }
+
+  /**
+   * Returns the optimized RPN Stack. An RPN Stack that is not well-formed is
+   * returned unchanged, so that it still reports its errors at evaluation time.
+   * An RPN Stack that was optimized before, such as the one of an expression
+   * loaded in its compiled form, is optimized again: its jumps and duplicates
+   * are raised back into the nodes they were emitted for.
+   */
+  static Deque<Token> optimize(Deque<Token> rpnStack,Environment environment) throws ExpressionException {
+    if (rpnStack == null || Expression.getMaximumDepth(rpnStack) < 0) return rpnStack;
+    Optimizer optimizer = new Optimizer(environment);
+    Token [] program = rpnStack.toArray(new Token[rpnStack.size()]);
+    Deque<Node> nodes = new ArrayDeque<>();
+    Deque<Branch> branches = new ArrayDeque<>();
+    for (int t = 0; t <= program.length; t++) {
+      /* Conditionals end where their jump over the second branch lands */
+      while (!branches.isEmpty() && branches.peek().end != null && branches.peek().end.getTarget() == t) {
+        Branch branch = branches.pop();
+        FunctionToken conditional = new FunctionToken("if",branch.jump.getPosition());
+        conditional.setArity(3);
+        nodes.push(optimizer.function(conditional,new Node [] { branch.condition, branch.taken, nodes.pop() }));
+      }
+      if (t == program.length) break;
+      Token token = program[t];
+      switch (token.getType()) {
+        case VAL:
+          nodes.push(new Node(token,((ValueToken)token).getValue().getClass()));
+          break;
+        case VAR:
+          nodes.push(new Node(token,environment.getVariableType(((VariableToken)token).getName())));
+          break;
+        case UNA: case UNI:
+          nodes.push(optimizer.unary(token,nodes.pop()));
+          break;
+        case DUP:
+          /* Only emitted for x*x, raised at the operator */
+          if (t + 1 == program.length || program[t + 1].getType() != Token.Type.BIN) return rpnStack;
+          break;
+        case BIN: {
+          BinaryOperatorToken operator = (BinaryOperatorToken)token;
+          if (program[t - 1].getType() == Token.Type.DUP) {
+            nodes.push(optimizer.square(operator,nodes.pop()));
+            break;
+          }
+          Node right = nodes.pop();
+          Branch branch = branches.peek();
+          if (branch != null && branch.end == null && branch.jump.getCondition() != JumpToken.Condition.FALSE
+                  && branch.jump.getTarget() == t + 1) {
+            branches.pop();
+            nodes.push(optimizer.binary(operator,branch.condition,right));
+            break;
+          }
+          Node left = nodes.pop();
+          nodes.push(optimizer.binary(operator,left,right));
+          break;
+        }
+        case FNC: {
+          Node [] operands = new Node[((FunctionToken)token).getArity()];
+          for (int p = operands.length - 1; p >= 0; p--) operands[p] = nodes.pop();
+          nodes.push(optimizer.function((FunctionToken)token,operands));
+          break;
+        }
+        case JMP: {
+          JumpToken jump = (JumpToken)token;
+          if (jump.getCondition() != JumpToken.Condition.ALWAYS) {
+            branches.push(new Branch(jump,nodes.pop()));
+            break;
+          }
+          /* The end of the first branch of a conditional */
+          Branch branch = branches.peek();
+          if (branch == null || branch.end != null || branch.jump.getCondition() != JumpToken.Condition.FALSE
+                  || branch.jump.getTarget() != t + 1) return rpnStack;
+          branch.taken = nodes.pop();
+          branch.end = jump;
+          break;
+        }
+        default:
+          return rpnStack;
+      }
+    }
+    if (!branches.isEmpty()) return rpnStack;
+    Node root = nodes.pop();
+    report(root);
+    Deque<Token> optimized = new LinkedList<>();
+    root.emit(optimized);
+    return optimized;
+  }
+
+  /*
+   * Throws for the first undefined operator that is evaluated unconditionally,
+   * in the order of evaluation. What follows a jump may never be evaluated:
+   * the operands after the first, and the operator of and or or itself.
+   */
+  private static void report(Node node) throws UndefinedOperatorException {
+    if (node.jump != null) {
+      report(node.operands[0]);
+      return;
+    }
+    for (Node operand:node.operands) {
+      if (operand != null) report(operand);
+    }
+    if (node.undefined != null) throw node.undefined;
+  }
+
+  /**
+   * Returns the RPN Stack where functions called with constant arguments call
+   * their specialization instead.
+   * @see com.googlecode.jmep.function.Function#specialize(Object[])
+   */
+  static Deque<Token> specializeFunctions(Deque<Token> rpnStack) {
+    if (rpnStack == null || Expression.getMaximumDepth(rpnStack) < 0) return rpnStack;
+    Token [] program = rpnStack.toArray(new Token[rpnStack.size()]);
+    boolean specialized = false;
+    /* The value of each operand on the stack, as far as known before evaluation */
+    List<Object> stack = new ArrayList<>();
+    /* The stack at the targets of jumps */
+    Map<Integer,List<Object>> targets = new HashMap<>();
+    boolean reachable = true;
+    for (int t = 0; t < program.length; t++) {
+      List<Object> target = targets.get(t);
+      if (target != null) {
+        /* Joining the jump, the result depends on whether it was taken */
+        if (reachable) stack.set(stack.size() - 1,NOT_CONSTANT);
+        else stack = target;
+        reachable = true;
+      }
+      Token token = program[t];
+      switch (token.getType()) {
+        case VAL:
+          stack.add(((ValueToken)token).getValue());
+          break;
+        case VAR:
+          stack.add(NOT_CONSTANT);
+          break;
+        case UNA: case UNI:
+          stack.set(stack.size() - 1,NOT_CONSTANT);
+          break;
+        case DUP:
+          stack.add(stack.get(stack.size() - 1));
+          break;
+        case BIN:
+          stack.remove(stack.size() - 1);
+          stack.set(stack.size() - 1,NOT_CONSTANT);
+          break;
+        case FNC: {
+          FunctionToken function = (FunctionToken)token;
+          Object [] constants = new Object[function.getArity()];
+          boolean constant = false;
+          for (int p = constants.length - 1; p >= 0; p--) {
+            Object value = stack.remove(stack.size() - 1);
+            if (value != NOT_CONSTANT) {
+              constants[p] = value;
+              constant = true;
+            }
+          }
+          if (constant) {
+            program[t] = function.specialize(constants);
+            specialized |= program[t] != token;
+          }
+          stack.add(NOT_CONSTANT);
+          break;
+        }
+        case JMP: {
+          JumpToken jump = (JumpToken)token;
+          if (jump.getCondition() == JumpToken.Condition.FALSE) stack.remove(stack.size() - 1);
+          targets.putIfAbsent(jump.getTarget(),new ArrayList<>(stack));
+          reachable = jump.getCondition() != JumpToken.Condition.ALWAYS;
+          break;
+        }
+        default:
+          return rpnStack;
+      }
+    }
+    if (!specialized) return rpnStack;
+    Deque<Token> result = new LinkedList<>();
+    for (Token token:program) result.addLast(token);
+    return result;
+  }
+
+  private Node unary(Token token,Node operand) {
+    UnaryOperator implementation = (operand.type == null) ? null : (token instanceof UnitToken)
+            ? ((UnitToken)token).getImplementation(operators,operand.type)
+            : ((UnaryOperatorToken)token).getImplementation(operators,operand.type);
+    if (operand.isConstant() && implementation != null) {
+      try {
+        Object value = (token instanceof UnitToken)
+                ? ((UnitToken)token).apply(implementation,operand.getValue())
+                : ((UnaryOperatorToken)token).apply(implementation,operand.getValue());
+        return constant(value,token);
+      } catch (ExpressionException x) {
+        // Leave the failure for evaluation time
+      }
+    }
+    UndefinedOperatorException undefined = null;
+    if (operand.type != null) {
+      if (token instanceof UnitToken) {
+        if (implementation == null) undefined = new UndefinedOperatorException((UnitToken)token,operand.type);
+        else ((UnitToken)token).bind(operators,operand.type);
+      } else {
+        if (implementation == null) undefined = new UndefinedOperatorException((UnaryOperatorToken)token,operand.type);
+        else ((UnaryOperatorToken)token).bind(operators,operand.type);
+      }
+    }
+    return new Node(token,typeOf(implementation),operand).undefined(undefined);
+  }
+
+  private Node binary(BinaryOperatorToken token,Node left,Node right) {
+    BinaryOperator implementation = (left.type == null || right.type == null)
+            ? null : token.getImplementation(operators,left.type,right.type);
+    UndefinedOperatorException undefined = null;
+    if (left.type != null && right.type != null) {
+      if (implementation == null) undefined = new UndefinedOperatorException(token,left.type,right.type);
+      else token.bind(operators,left.type,right.type);
+    }
+    if (left.isConstant() && right.isConstant() && implementation != null) {
+      try {
+        return constant(token.apply(implementation,left.getValue(),right.getValue()),token);
+      } catch (ExpressionException x) {
+        // Leave the failure for evaluation time
+      }
+    }
+    Class type = typeOf(implementation);
+    if (isShortCircuit(token)) {
+      JumpToken jump = new JumpToken(token.getBinaryOperatorType() == BinaryOperatorType.LAND
+              ? JumpToken.Condition.AND : JumpToken.Condition.OR,token.getPosition());
+      if (!left.isConstant()) return new Node(token,type,jump,left,right).undefined(undefined);
+      try {
+        if (jump.isTaken(left.getValue())) return constant(jump.getResult(),token);
+      } catch (ExpressionException x) {
+        // Leave the failure for evaluation time
+      }
+    }
+    if (implementation != null && isNumeric(left.type) && isNumeric(right.type) && environment.isDefault(implementation)) {
+      switch (token.getBinaryOperatorType()) {
+        case MUL:
+          if (right.isConstant() && isOne(right.getValue()) && type == left.type) return left;
+          if (left.isConstant() && isOne(left.getValue()) && type == right.type) return right;
+          break;
+        case ADD:
+          if (right.isConstant() && isZero(right.getValue()) && type == left.type && left.type == Long.class) return left;
+          if (left.isConstant() && isZero(left.getValue()) && type == right.type && right.type == Long.class) return right;
+          break;
+        case SUB:
+          if (right.isConstant() && isZero(right.getValue()) && type == left.type) return left;
+          break;
+        case DIV:
+          if (right.isConstant() && isOne(right.getValue()) && type == left.type) return left;
+          break;
+        case POW:
+          if (right.isConstant() && isTwo(right.getValue()) && (left.type == Double.class || right.type == Long.class)) {
+            BinaryOperatorToken multiply = new BinaryOperatorToken(BinaryOperatorType.MUL,token.getPosition());
+            BinaryOperator multiplication = multiply.getImplementation(operators,left.type,left.type);
+            if (multiplication != null && environment.isDefault(multiplication) && typeOf(multiplication) == left.type) {
+              multiply.bind(operators,left.type,left.type);
+              return new Node(multiply,left.type,left,null);
+            }
+          }
+          break;
+      }
+    }
+    return new Node(token,type,left,right).undefined(undefined);
+  }
+
+  /*
+   * The operator applied on the operand twice, as reduced from x^2 before.
+   */
+  private Node square(BinaryOperatorToken token,Node operand) {
+    if (operand.isConstant()) return binary(token,operand,operand);
+    BinaryOperator implementation = (operand.type == null) ? null : token.getImplementation(operators,operand.type,operand.type);
+    return new Node(token,typeOf(implementation),operand,null);
+  }
+
+  private Node function(FunctionToken token,Node [] operands) {
+    if (token.getFunction() != null) {
+      if (environment.isPure(token.getName()) && allConstant(operands)) {
+        Object [] values = new Object[operands.length];
+        for (int p = 0; p < values.length; p++) values[p] = operands[p].getValue();
+        try {
+          Object value = token.evaluate(values);
+          if (value != null) return constant(value,token);
+        } catch (ExpressionException | RuntimeException x) {
+          // Leave the failure for evaluation time, the call may never be taken
+        }
+      }
+      return new Node(token,environment.getFunctionType(token.getName()),operands);
+    }
+    if (!token.getName().equals("if") || operands.length != 3) {
+      return new Node(token,null,operands);
+    }
+    JumpToken jump = new JumpToken(JumpToken.Condition.FALSE,token.getPosition());
+    if (operands[0].isConstant()) {
+      try {
+        return jump.isTaken(operands[0].getValue()) ? operands[2] : operands[1];
+      } catch (ExpressionException x) {
+        // Leave the failure for evaluation time
+      }
+    }
+    Class type = (operands[1].type == operands[2].type) ? operands[1].type : null;
+    return new Node(token,type,jump,operands);
+  }
+
+  /*
+   * Only the default implementation of the logical operators is known to be
+   * decided by its left operand.
+   */
+  private boolean isShortCircuit(BinaryOperatorToken token) {
+    switch (token.getBinaryOperatorType()) {
+      case LAND: case LOR:
+        BinaryOperator implementation = token.getImplementation(operators,Long.class,Long.class);
+        return implementation != null && environment.isDefault(implementation);
+      default:
+        return false;
+    }
+  }
+
+  private static boolean allConstant(Node [] nodes) {
+    for (Node node:nodes) {
+      if (!node.isConstant()) return false;
+    }
+    return true;
+  }
+
+  private static Node constant(Object value,Token token) {
+    ValueToken valueToken = new ValueToken(value,token.getPosition());
+    return new Node(valueToken,valueToken.getValue().getClass());
+  }
+
+  static boolean isNumeric(Class type) {
+    return type == Long.class || type == Double.class;
+  }
+
+  private static boolean isOne(Object value) {
+    return value.equals(1L) || value.equals(1.0);
+  }
+
+  private static boolean isZero(Object value) {
+    // Double.equals distinguishes 0.0 from -0.0
+    return value.equals(0L) || value.equals(0.0);
+  }
+
+  private static boolean isTwo(Object value) {
+    return value.equals(2L) || value.equals(2.0);
+  }
+
+  static Class typeOf(Variable variable) {
+    if (variable instanceof DoubleVariable) return Double.class;
+    if (variable instanceof LongVariable) return Long.class;
+    return null;
+  }
+
+  /*
+   * The result type of an implementation, if known by its primitive specialization.
+   */
+  static Class typeOf(BinaryOperator implementation) {
+    while (implementation instanceof Environment.UpgradedBinaryOperator) {
+      implementation = ((Environment.UpgradedBinaryOperator)implementation).getOperator();
+    }
+    if (implementation instanceof DoubleBinaryOperator) return Double.class;
+    if (implementation instanceof LongBinaryOperator) return Long.class;
+    if (implementation instanceof LongBinaryPredicate) return Long.class;
+    if (implementation instanceof DoubleBinaryPredicate) return Long.class;
+    return null;
+  }
+
+  static Class typeOf(UnaryOperator implementation) {
+    while (implementation instanceof Environment.UpgradedUnaryOperator) {
+      implementation = ((Environment.UpgradedUnaryOperator)implementation).getOperator();
+    }
+    if (implementation instanceof DoubleUnaryOperator) return Double.class;
+    if (implementation instanceof LongUnaryOperator) return Long.class;
+    return null;
+  }
+
+  /*
+   * A jump met in an RPN Stack that was optimized before, until the node it
+   * was emitted for is complete. The conditional has both its jumps, and the
+   * branch taken when the condition holds.
+   */
+  private static final class Branch {
+    final JumpToken jump;
+    final Node condition;
+    JumpToken end;
+    Node taken;
+
+    Branch(JumpToken jump,Node condition) {
+      this.jump = jump;
+      this.condition = condition;
+    }
+  }
+
+  /*
+   * Expression tree built from the RPN Stack. A binary operator having a null
+   * right operand is applied on its left operand twice (x^2 as x*x). A node
+   * having a jump evaluates its operands lazily: the jump follows the first
+   * operand, and for the conditional the token itself is not emitted.
+   */
+  private static final class Node {
+    final Token token;
+    final Class type;
+    final JumpToken jump;
+    final Node [] operands;
+    /* For operands of known types that the operator is not defined for */
+    private UndefinedOperatorException undefined;
+
+    Node(Token token,Class type,Node... operands) {
+      this(token,type,null,operands);
+    }
+
+    Node(Token token,Class type,JumpToken jump,Node... operands) {
+      this.token = token;
+      this.type = type;
+      this.jump = jump;
+      this.operands = operands;
+    }
+
+    Node undefined(UndefinedOperatorException undefined) {
+      this.undefined = undefined;
+      return this;
+    }
+
+    boolean isConstant() {
+      return token.getType() == Token.Type.VAL;
+    }
+
+    Object getValue() {
+      return ((ValueToken)token).getValue();
+    }
+
+    void emit(Deque<Token> rpnStack) {
+      if (jump != null) {
+        operands[0].emit(rpnStack);
+        rpnStack.addLast(jump);
+        operands[1].emit(rpnStack);
+        if (jump.getCondition() == JumpToken.Condition.FALSE) {
+          JumpToken end = new JumpToken(JumpToken.Condition.ALWAYS,token.getPosition());
+          rpnStack.addLast(end);
+          jump.setTarget(rpnStack.size());
+          operands[2].emit(rpnStack);
+          end.setTarget(rpnStack.size());
+        } else {
+          rpnStack.addLast(token);
+          jump.setTarget(rpnStack.size());
+        }
+        return;
+      }
+      for (Node operand:operands) {
+        if (operand == null) rpnStack.addLast(new Token(Token.Type.DUP,token.getPosition()));
+        else operand.emit(rpnStack);
+      }
+      rpnStack.addLast(token);
+    }
+  }
+}
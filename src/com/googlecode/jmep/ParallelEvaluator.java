@@ -0,0 +1,224 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Spreads the evaluation of many rows over the threads of an Executor. The rows
+ * are cut into chunks of a few thousand rows. One worker is forked for every
+ * thread of the pool, the calling thread being one of them, and every worker
+ * keeps claiming the next chunk until all are done. This balances the load
+ * without any coordination beyond a counter. Each worker evaluates with its
+ * own BatchEvaluator, so no evaluation state is shared.<p>
+ *
+ * Once the calling thread runs out of chunks, it only waits for the workers
+ * that have started, and workers starting later find nothing to do. The caller
+ * therefore never waits for a worker that cannot be scheduled, as happens when
+ * it runs on a thread of the same pool, and on a ForkJoinPool it waits as a
+ * managed blocker.<p>
+ *
+ * Completed chunks are handed to the ResultSink strictly in order. A chunk
+ * that completes early is parked until the chunks before it have been
+ * delivered, and the worker moves on in the meantime.
+ * @author Jo Desmet
+ */
+final class ParallelEvaluator {
+  private static final int MAXIMUM_CHUNK_SIZE = 16 * BatchEvaluator.CHUNK_SIZE;
+
+  private final Deque<Token> rpnStack;
+  private final int maximumDepth;
+  private final Environment environment;
+  private final Map<String,Object> columns;
+  private final ResultSink sink;
+  private final Executor executor;
+  private final int parallelism;
+  private final int rowCount;
+  private final int chunkSize;
+  private final int chunkCount;
+  private final AtomicInteger nextChunk = new AtomicInteger();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private final Gate gate = new Gate();
+  private final ConcurrentLinkedQueue<double []> buffers = new ConcurrentLinkedQueue<>();
+  private final double [][] completed;
+  private int nextDelivery;
+  private boolean delivering;
+
+  /*
+   * The RPN Stack must be well-formed, the maximum depth is as calculated
+   * by Expression.getMaximumDepth(...).
+   */
+  ParallelEvaluator(Deque<Token> rpnStack,int maximumDepth,Environment environment,RowSource source,ResultSink sink,Executor executor) {
+    this.rpnStack = rpnStack;
+    this.maximumDepth = maximumDepth;
+    this.environment = environment;
+    this.columns = new HashMap<>();
+    for (Token token:rpnStack) {
+      if (token.getType() != Token.Type.VAR) continue;
+      String name = ((VariableToken)token).getName();
+      Object column = source.getColumn(name);
+      if (column != null) columns.put(name,column);
+    }
+    this.sink = sink;
+    this.executor = executor;
+    this.parallelism = executor instanceof ForkJoinPool
+            ? ((ForkJoinPool)executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+    this.rowCount = source.getRowCount();
+    // Some chunks per thread to balance the load, in multiples of the batch chunks.
+    int chunk = rowCount / (4 * parallelism) + 1;
+    chunk = (chunk + BatchEvaluator.CHUNK_SIZE - 1) / BatchEvaluator.CHUNK_SIZE * BatchEvaluator.CHUNK_SIZE;
+    this.chunkSize = Math.min(chunk, MAXIMUM_CHUNK_SIZE);
+    this.chunkCount = (int)(((long)rowCount + chunkSize - 1) / chunkSize);
+    this.completed = new double[chunkCount][];
+  }
+
+  void evaluate() throws ExpressionException {
+    int workers = Math.min(parallelism, chunkCount) - 1;
+    for (int i = 0; i < workers; i++) {
+      try {
+        executor.execute(() -> {
+          if (!gate.enter()) return;
+          try {
+            work();
+          } finally {
+            gate.leave();
+          }
+        });
+      } catch (RejectedExecutionException x) {
+        /* The workers that did start take over */
+        break;
+      }
+    }
+    work();
+    gate.close();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        ForkJoinPool.managedBlock(gate);
+        break;
+      } catch (InterruptedException x) {
+        // Let the workers stop after their current chunk.
+        failure.compareAndSet(null, x);
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    Throwable x = failure.get();
+    if (x == null) return;
+    if (x instanceof ExpressionException) throw (ExpressionException)x;
+    if (x instanceof RuntimeException) throw (RuntimeException)x;
+    if (x instanceof Error) throw (Error)x;
+    throw new ExpressionException(0,"Evaluation interrupted",x);
+  }
+
+  private void work() {
+    BatchEvaluator evaluator = null;
+    int chunk;
+    while (failure.get() == null && (chunk = nextChunk.getAndIncrement()) < chunkCount) {
+      try {
+        if (evaluator == null) evaluator = new BatchEvaluator(rpnStack,maximumDepth,environment,columns,rowCount);
+        int first = chunk * chunkSize;
+        double [] results = buffers.poll();
+        if (results == null) results = new double[chunkSize];
+        evaluator.evaluate(first,results,Math.min(chunkSize, rowCount - first));
+        deliver(chunk,results);
+      } catch (Throwable x) {
+        failure.compareAndSet(null, x);
+      }
+    }
+  }
+
+  /*
+   * Admits workers until closed by the caller, after which the caller waits
+   * for the admitted workers only.
+   */
+  static private final class Gate implements ForkJoinPool.ManagedBlocker {
+    private int running;
+    private boolean closed;
+
+    synchronized boolean enter() {
+      if (closed) return false;
+      running++;
+      return true;
+    }
+
+    synchronized void leave() {
+      if (--running == 0) notifyAll();
+    }
+
+    synchronized void close() {
+      closed = true;
+    }
+
+    @Override
+    public synchronized boolean block() throws InterruptedException {
+      while (running > 0) wait();
+      return true;
+    }
+
+    @Override
+    public synchronized boolean isReleasable() {
+      return running == 0;
+    }
+  }
+
+  /*
+   * Parks the results of the chunk, and delivers all chunks that are next in
+   * line unless another worker is already doing so. The sink is called outside
+   * of the lock, so that other workers can park their results meanwhile.
+   */
+  private void deliver(int chunk,double [] results) {
+    synchronized (this) {
+      completed[chunk] = results;
+      if (delivering) return;
+      delivering = true;
+    }
+    while (true) {
+      int index;
+      double [] next;
+      synchronized (this) {
+        index = nextDelivery;
+        next = index < chunkCount ? completed[index] : null;
+        if (next == null) {
+          delivering = false;
+          return;
+        }
+        completed[index] = null;
+        nextDelivery++;
+      }
+      int first = index * chunkSize;
+      sink.accept(first,next,Math.min(chunkSize, rowCount - first));
+      buffers.offer(next);
+    }
+  }
+}
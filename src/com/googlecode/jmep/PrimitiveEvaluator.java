@@ -0,0 +1,364 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.BinaryOperator;
+import com.googlecode.jmep.function.DoubleBinaryOperator;
+import com.googlecode.jmep.function.DoubleBinaryPredicate;
+import com.googlecode.jmep.function.DoubleUnaryOperator;
+import com.googlecode.jmep.function.DoubleVariable;
+import com.googlecode.jmep.function.LongBinaryOperator;
+import com.googlecode.jmep.function.LongBinaryPredicate;
+import com.googlecode.jmep.function.LongUnaryOperator;
+import com.googlecode.jmep.function.LongVariable;
+import com.googlecode.jmep.function.UnaryOperator;
+import com.googlecode.jmep.function.Variable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evaluates the RPN Stack on a result stack made of primitive slots. Long and
+ * Double values stay unboxed as long as the implementations found in the
+ * Environment are primitive specializations (see DoubleBinaryOperator and
+ * related interfaces), including upgrades through a LongToDoubleConversion.
+ * Any other implementation is applied on boxed operands, exactly as the
+ * interpreter in Expression would do.<p>
+ *
+ * The slots are allocated once, so an evaluator can only be used by one thread
+ * at a time, and not by a nested evaluation on that same thread.
+ * @author Jo Desmet
+ */
+final class PrimitiveEvaluator {
+  static final byte LONG = 0;
+  static final byte DOUBLE = 1;
+  static final byte OBJECT = 2;
+
+  private final Token [] program;
+  /* Slot of the frame for every variable of the program */
+  private final int [] slots;
+  private final Environment environment;
+  private final byte [] kinds;
+  private final long [] longs;
+  private final double [] doubles;
+  private final Object [] objects;
+  /* Set by the owner while evaluating, see Expression */
+  boolean inUse;
+
+  /*
+   * The program must be well-formed, the maximum depth is as calculated by
+   * Expression.getMaximumDepth(...), and the slots as by slotsOf(...). Both the
+   * program and the slots are only read, and can be shared by evaluators.
+   */
+  PrimitiveEvaluator(Token [] program,int [] slots,int maximumDepth,Environment environment) {
+    this.program = program;
+    this.slots = slots;
+    this.environment = environment;
+    this.kinds = new byte[maximumDepth];
+    this.longs = new long[maximumDepth];
+    this.doubles = new double[maximumDepth];
+    this.objects = new Object[maximumDepth];
+  }
+
+  /*
+   * Returns the slot of the frame for every variable of the program, -1 for a
+   * variable not in the frame.
+   */
+  static int [] slotsOf(Token [] program,String [] slotNames) {
+    Map<String,Integer> index = new HashMap<>();
+    for (int s = slotNames.length - 1; s >= 0; s--) index.put(slotNames[s],s);
+    int [] slots = new int[program.length];
+    for (int t = 0; t < program.length; t++) {
+      if (program[t].getType() == Token.Type.VAR) {
+        Integer slot = index.get(((VariableToken)program[t]).getName());
+        slots[t] = (slot == null) ? -1 : slot;
+      }
+    }
+    return slots;
+  }
+
+  /*
+   * The frame is null when all variables are read from the Environment.
+   */
+  Object evaluate(Frame frame) throws ExpressionException {
+    run(frame);
+    Object result = box(0);
+    objects[0] = null;
+    return result;
+  }
+
+  double evaluateAsDouble(Frame frame) throws ExpressionException {
+    switch (run(frame)) {
+      case LONG: return longs[0];
+      case DOUBLE: return doubles[0];
+      default: return toDouble(objects[0]);
+    }
+  }
+
+  long evaluateAsLong(Frame frame) throws ExpressionException {
+    if (run(frame) == LONG) return longs[0];
+    return toLong(box(0));
+  }
+
+  boolean evaluateAsBoolean(Frame frame) throws ExpressionException {
+    if (run(frame) == LONG) return longs[0] != 0L;
+    return toBoolean(box(0));
+  }
+
+  static double toDouble(Object result) throws ExpressionException {
+    if (result instanceof Number) return ((Number)result).doubleValue();
+    throw new ExpressionException(0,"Result of type "+result.getClass().getSimpleName()+" is not a Number");
+  }
+
+  static long toLong(Object result) throws ExpressionException {
+    if (result instanceof Long || result instanceof Integer) return ((Number)result).longValue();
+    throw new ExpressionException(0,"Result of type "+result.getClass().getSimpleName()+" is not a Long");
+  }
+
+  static boolean toBoolean(Object result) throws ExpressionException {
+    if (result instanceof Long || result instanceof Integer) return ((Number)result).longValue() != 0L;
+    throw new ExpressionException(0,"Result of type "+result.getClass().getSimpleName()+" is not a logical value");
+  }
+
+  /*
+   * Evaluates the program leaving the result in the first slot, and returns
+   * the kind of that result.
+   */
+  private byte run(Frame frame) throws ExpressionException {
+    ResolvedOperators operators = environment.getResolvedOperators();
+    Metrics metrics = Metrics.active;
+    int top = -1;
+    for (int t = 0; t < program.length; t++) {
+      Token token = program[t];
+      switch (token.getType()) {
+        case VAL:
+          set(++top,((ValueToken)token).getValue());
+          break;
+        case VAR: {
+          Variable variable = ((VariableToken)token).getVariable();
+          top++;
+          if (frame != null && frame.kinds[slots[t]] != Frame.NONE) {
+            int slot = slots[t];
+            kinds[top] = frame.kinds[slot];
+            longs[top] = frame.longs[slot];
+            doubles[top] = frame.doubles[slot];
+            objects[top] = frame.objects[slot];
+          } else if (variable instanceof DoubleVariable) {
+            long start = (metrics == null) ? 0 : System.nanoTime();
+            doubles[top] = ((DoubleVariable)variable).getAsDouble();
+            kinds[top] = DOUBLE;
+            if (metrics != null) metrics.variableRead(((VariableToken)token).getName(),start);
+          } else if (variable instanceof LongVariable) {
+            long start = (metrics == null) ? 0 : System.nanoTime();
+            longs[top] = ((LongVariable)variable).getAsLong();
+            kinds[top] = LONG;
+            if (metrics != null) metrics.variableRead(((VariableToken)token).getName(),start);
+          } else {
+            set(top,((VariableToken)token).evaluate());
+          }
+          break;
+        }
+        case UNA: {
+          UnaryOperatorToken unaryOperatorToken = (UnaryOperatorToken)token;
+          UnaryOperator operator = unaryOperatorToken.getImplementation(operators,classOf(top));
+          if (operator == null) throw new UndefinedOperatorException(unaryOperatorToken,box(top));
+          try {
+            if (applyPrimitive(operator,top)) break;
+          } catch (Throwable x) {
+            throw new OperatorException(unaryOperatorToken,box(top),x);
+          }
+          set(top,unaryOperatorToken.apply(operator,box(top)));
+          break;
+        }
+        case UNI: {
+          UnitToken unitToken = (UnitToken)token;
+          UnaryOperator operator = unitToken.getImplementation(operators,classOf(top));
+          if (operator == null) throw new UndefinedOperatorException(unitToken,box(top));
+          try {
+            if (applyPrimitive(operator,top)) break;
+          } catch (Throwable x) {
+            throw new OperatorException(unitToken,box(top),x);
+          }
+          set(top,unitToken.apply(operator,box(top)));
+          break;
+        }
+        case BIN: {
+          BinaryOperatorToken binaryOperatorToken = (BinaryOperatorToken)token;
+          int left = --top;
+          int right = left + 1;
+          BinaryOperator operator = binaryOperatorToken.dispatch(operators,classOf(left),classOf(right));
+          if (operator == null) throw new UndefinedOperatorException(binaryOperatorToken,box(left),box(right));
+          try {
+            if (applyPrimitive(operator,left,right)) break;
+          } catch (Throwable x) {
+            throw new OperatorException(binaryOperatorToken,box(left),box(right),x);
+          }
+          set(left,binaryOperatorToken.apply(operator,box(left),box(right)));
+          break;
+        }
+        case DUP:
+          kinds[top + 1] = kinds[top];
+          longs[top + 1] = longs[top];
+          doubles[top + 1] = doubles[top];
+          objects[top + 1] = objects[top];
+          top++;
+          break;
+        case FNC: {
+          FunctionToken functionToken = (FunctionToken)token;
+          int arity = functionToken.getArity();
+          Object [] parameters = new Object [arity];
+          top -= arity;
+          for (int p = 0; p < arity; p++) parameters[p] = box(top + 1 + p);
+          set(++top,functionToken.evaluate(parameters));
+          break;
+        }
+        case JMP: {
+          JumpToken jumpToken = (JumpToken)token;
+          JumpToken.Condition condition = jumpToken.getCondition();
+          boolean taken = condition == JumpToken.Condition.ALWAYS
+                  || ((kinds[top] == LONG) ? jumpToken.isTaken(longs[top]) : jumpToken.isTaken(box(top)));
+          if (condition == JumpToken.Condition.FALSE) top--;
+          if (taken) {
+            if (jumpToken.getResult() != null) set(top,jumpToken.getResult());
+            t = jumpToken.getTarget() - 1;
+          }
+          break;
+        }
+        default:
+          throw new IllegalExpressionStateException(token.getPosition());
+      }
+    }
+    return kinds[0];
+  }
+
+  /*
+   * Applies the operator without boxing if both the operator and the operand
+   * allow for it. Returns false when the operator needs to be applied on the
+   * boxed operand.
+   */
+  private boolean applyPrimitive(UnaryOperator operator,int slot) {
+    byte kind = kinds[slot];
+    if (kind == OBJECT) return false;
+    double doubleValue = doubles[slot];
+    while (operator instanceof Environment.UpgradedUnaryOperator) {
+      Environment.UpgradedUnaryOperator upgraded = (Environment.UpgradedUnaryOperator)operator;
+      UpgradeConversion conversion = upgraded.getConversion();
+      if (conversion != null) {
+        if (kind != LONG || !(conversion instanceof LongToDoubleConversion)) return false;
+        doubleValue = ((LongToDoubleConversion)conversion).applyAsDouble(longs[slot]);
+        kind = DOUBLE;
+      }
+      operator = upgraded.getOperator();
+    }
+    if (kind == DOUBLE && operator instanceof DoubleUnaryOperator) {
+      doubles[slot] = ((DoubleUnaryOperator)operator).applyAsDouble(doubleValue);
+      kinds[slot] = DOUBLE;
+      return true;
+    }
+    if (kind == LONG && operator instanceof LongUnaryOperator) {
+      longs[slot] = ((LongUnaryOperator)operator).applyAsLong(longs[slot]);
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * Applies the operator without boxing if both the operator and the operands
+   * allow for it, leaving the result in the left slot. Returns false when the
+   * operator needs to be applied on boxed operands.
+   */
+  private boolean applyPrimitive(BinaryOperator operator,int left,int right) {
+    byte leftKind = kinds[left];
+    byte rightKind = kinds[right];
+    if (leftKind == OBJECT || rightKind == OBJECT) return false;
+    double leftDouble = doubles[left];
+    double rightDouble = doubles[right];
+    while (operator instanceof Environment.UpgradedBinaryOperator) {
+      Environment.UpgradedBinaryOperator upgraded = (Environment.UpgradedBinaryOperator)operator;
+      UpgradeConversion leftConversion = upgraded.getLeftConversion();
+      UpgradeConversion rightConversion = upgraded.getRightConversion();
+      if (leftConversion != null) {
+        if (leftKind != LONG || !(leftConversion instanceof LongToDoubleConversion)) return false;
+        leftDouble = ((LongToDoubleConversion)leftConversion).applyAsDouble(longs[left]);
+        leftKind = DOUBLE;
+      }
+      if (rightConversion != null) {
+        if (rightKind != LONG || !(rightConversion instanceof LongToDoubleConversion)) return false;
+        rightDouble = ((LongToDoubleConversion)rightConversion).applyAsDouble(longs[right]);
+        rightKind = DOUBLE;
+      }
+      operator = upgraded.getOperator();
+    }
+    if (leftKind == DOUBLE && rightKind == DOUBLE) {
+      if (operator instanceof DoubleBinaryOperator) {
+        doubles[left] = ((DoubleBinaryOperator)operator).applyAsDouble(leftDouble,rightDouble);
+        kinds[left] = DOUBLE;
+        return true;
+      }
+      if (operator instanceof DoubleBinaryPredicate) {
+        longs[left] = ((DoubleBinaryPredicate)operator).test(leftDouble,rightDouble) ? 1L : 0L;
+        kinds[left] = LONG;
+        return true;
+      }
+    } else if (leftKind == LONG && rightKind == LONG) {
+      if (operator instanceof LongBinaryOperator) {
+        longs[left] = ((LongBinaryOperator)operator).applyAsLong(longs[left],longs[right]);
+        return true;
+      }
+      if (operator instanceof LongBinaryPredicate) {
+        longs[left] = ((LongBinaryPredicate)operator).test(longs[left],longs[right]) ? 1L : 0L;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Class classOf(int slot) {
+    switch (kinds[slot]) {
+      case LONG: return Long.class;
+      case DOUBLE: return Double.class;
+      default: return objects[slot].getClass();
+    }
+  }
+
+  private Object box(int slot) {
+    switch (kinds[slot]) {
+      case LONG: return longs[slot];
+      case DOUBLE: return doubles[slot];
+      default: return objects[slot];
+    }
+  }
+
+  private void set(int slot,Object value) {
+    if (value instanceof Long || value instanceof Integer) {
+      longs[slot] = ((Number)value).longValue();
+      kinds[slot] = LONG;
+    } else if (value instanceof Double) {
+      doubles[slot] = (Double)value;
+      kinds[slot] = DOUBLE;
+    } else {
+      objects[slot] = value;
+      kinds[slot] = OBJECT;
+    }
+  }
+}
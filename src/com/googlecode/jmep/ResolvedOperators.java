@@ -0,0 +1,125 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.BinaryOperator;
+import com.googlecode.jmep.function.UnaryOperator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the operators and units of an Environment, including
+ * all the versions created through upgrade conversions. A snapshot never changes
+ * after it has been published, so it can be used by any number of threads without
+ * locking. Registering on the Environment results in a new snapshot, while
+ * evaluations that already hold the previous one can complete with it.<p>
+ *
+ * Every operand class that occurs in the snapshot gets a small integer ID, and
+ * the implementations are stored in arrays indexed by those IDs. Dispatching an
+ * operator then costs an identity map lookup and an array index, without
+ * allocating.
+ * @author Jo Desmet
+ */
+final class ResolvedOperators {
+  private final Map<Class,Integer> classIds;
+  private final BinaryOperator [][][] binaryOperators;
+  private final UnaryOperator [][] unaryOperators;
+  private final Map<String,UnaryOperator []> units;
+  private final UnaryOperator [] noUnit;
+
+  ResolvedOperators(Map<BinaryOperatorType,Map<SimpleClassPair,BinaryOperator>> binaryOperators,
+          Map<UnaryOperatorType,Map<Class,UnaryOperator>> unaryOperators,
+          Map<String,Map<Class,UnaryOperator>> units) {
+    Set<Class> classes = new LinkedHashSet<>();
+    for (Map<SimpleClassPair,BinaryOperator> implementations:binaryOperators.values()) {
+      for (SimpleClassPair pair:implementations.keySet()) {
+        classes.add(pair.t);
+        classes.add(pair.u);
+      }
+    }
+    for (Map<Class,UnaryOperator> implementations:unaryOperators.values()) {
+      classes.addAll(implementations.keySet());
+    }
+    for (Map<Class,UnaryOperator> implementations:units.values()) {
+      classes.addAll(implementations.keySet());
+    }
+    this.classIds = new IdentityHashMap<>();
+    for (Class operandClass:classes) classIds.put(operandClass,classIds.size());
+    int size = classIds.size();
+
+    this.binaryOperators = new BinaryOperator[BinaryOperatorType.values().length][size][size];
+    for (Map.Entry<BinaryOperatorType,Map<SimpleClassPair,BinaryOperator>> e:binaryOperators.entrySet()) {
+      BinaryOperator [][] table = this.binaryOperators[e.getKey().ordinal()];
+      for (Map.Entry<SimpleClassPair,BinaryOperator> ee:e.getValue().entrySet()) {
+        table[getClassId(ee.getKey().t)][getClassId(ee.getKey().u)] = ee.getValue();
+      }
+    }
+    this.unaryOperators = new UnaryOperator[UnaryOperatorType.values().length][size];
+    for (Map.Entry<UnaryOperatorType,Map<Class,UnaryOperator>> e:unaryOperators.entrySet()) {
+      fill(this.unaryOperators[e.getKey().ordinal()],e.getValue());
+    }
+    this.units = new HashMap<>();
+    for (Map.Entry<String,Map<Class,UnaryOperator>> e:units.entrySet()) {
+      this.units.put(e.getKey(),fill(new UnaryOperator[size],e.getValue()));
+    }
+    this.noUnit = new UnaryOperator[size];
+  }
+
+  private UnaryOperator [] fill(UnaryOperator [] row,Map<Class,UnaryOperator> implementations) {
+    for (Map.Entry<Class,UnaryOperator> e:implementations.entrySet()) {
+      row[getClassId(e.getKey())] = e.getValue();
+    }
+    return row;
+  }
+
+  /*
+   * Returns the ID of the operand class, or -1 when no operator or unit in this
+   * snapshot accepts it.
+   */
+  int getClassId(Class operandClass) {
+    Integer id = classIds.get(operandClass);
+    return id == null ? -1 : id;
+  }
+
+  /*
+   * The table of implementations indexed by the IDs of the left and the right
+   * operand class. Missing implementations are null.
+   */
+  BinaryOperator [][] getBinaryOperators(BinaryOperatorType type) {
+    return binaryOperators[type.ordinal()];
+  }
+
+  UnaryOperator [] getUnaryOperators(UnaryOperatorType type) {
+    return unaryOperators[type.ordinal()];
+  }
+
+  UnaryOperator [] getUnits(String name) {
+    UnaryOperator [] implementations = units.get(name);
+    return implementations == null ? noUnit : implementations;
+  }
+}
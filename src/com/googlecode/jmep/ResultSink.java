@@ -0,0 +1,53 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+/**
+ * Receives the results of evaluating an expression over many rows. Results are
+ * delivered in order of the rows, one range of consecutive rows at a time, and
+ * never by two threads at the same time.
+ * @author Jo Desmet
+ * @see Expression#evaluateParallel(RowSource, ResultSink, java.util.concurrent.Executor)
+ */
+@FunctionalInterface
+public interface ResultSink {
+  /**
+   * Accepts the results of a range of rows.
+   * @param firstRow the row of the first result.
+   * @param results the results, starting at index 0. The array is reused after
+   * returning, so the values must be copied if they are to be kept.
+   * @param count the number of results.
+   */
+  void accept(int firstRow,double [] results,int count);
+
+  /**
+   * Copies the results into an array holding a result for every row.
+   * @param out the array receiving the results.
+   * @return the result sink.
+   */
+  static ResultSink of(final double [] out) {
+    return (firstRow,results,count) -> System.arraycopy(results, 0, out, firstRow, count);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+
+package com.googlecode.jmep;
+
+import java.util.Map;
+
+/**
+ * Provides the input rows for evaluating an expression over many rows at once.
+ * The values of a variable are provided as a single column, either a
+ * <code>double[]</code> or a <code>long[]</code> holding a value for every row.
+ * Columns are only read, and may be read by several threads at the same time.
+ * @author Jo Desmet
+ * @see Expression#evaluateParallel(RowSource, ResultSink, java.util.concurrent.Executor)
+ */
+public interface RowSource {
+  /**
+   * @return the number of rows.
+   */
+  int getRowCount();
+
+  /**
+   * Returns the values of a variable for all rows. Called once per evaluation
+   * for every variable of the expression.
+   * @param variable the name of the variable.
+   * @return a <code>double[]</code> or <code>long[]</code> with at least as many
+   * elements as there are rows, or <code>null</code> when the variable is not
+   * provided by this source, in which case the variable of the Environment is used.
+   */
+  Object getColumn(String variable);
+
+  /**
+   * Wraps columns held in a map.
+   * @param columns the columns by variable name.
+   * @param rowCount the number of rows.
+   * @return the row source.
+   */
+  static RowSource of(final Map<String,?> columns,final int rowCount) {
+    return new RowSource() {
+      @Override
+      public int getRowCount() {
+        return rowCount;
+      }
+
+      @Override
+      public Object getColumn(String variable) {
+        return columns.get(variable);
+      }
+    };
+  }
+}
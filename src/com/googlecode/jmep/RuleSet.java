@@ -0,0 +1,223 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.DoubleVariable;
+import com.googlecode.jmep.function.LongVariable;
+import com.googlecode.jmep.function.Variable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of expressions evaluated against the same record. The set collects the
+ * variables used by any of its expressions, and on every evaluation reads each
+ * of them exactly once into a frame shared by all expressions, however many
+ * expressions use the variable and however often. This matters when reading a
+ * variable is costly, for instance when it is backed by a remote cache.<p>
+ *
+ * The results are returned as an array, indexed by the order the expressions
+ * were added in. Expressions are added by a single thread. Once all are added,
+ * the set can be evaluated by several threads at the same time.
+ * <pre><code>RuleSet rules = new RuleSet(env);
+ *int total = rules.add("price*qty");
+ *int discount = rules.add("if(qty &gt; 10, price*qty*0.05, 0)");
+ *Object [] results = rules.evaluate();</code></pre>
+ * @author Jo Desmet
+ * @see ExpressionSet
+ * @see Frame
+ */
+public final class RuleSet {
+  private final Environment environment;
+  private final List<Expression> rules = new ArrayList<>();
+  private volatile Layout layout;
+
+  /**
+   * Allocates an empty set.
+   * @param environment the environment to compile the expressions against.
+   */
+  public RuleSet(Environment environment) {
+    this.environment = environment;
+  }
+
+  /**
+   * Compiles an expression and adds it to the set.
+   * @param expression the string containing the mathematical expression.
+   * @return the index of the result of the expression.
+   * @throws ExpressionException when the expression cannot be compiled.
+   */
+  public int add(String expression) throws ExpressionException {
+    return add(new Expression(expression,environment));
+  }
+
+  /**
+   * Adds an expression to the set.
+   * @param expression the expression, compiled against the environment of the set.
+   * @return the index of the result of the expression.
+   * @throws IllegalArgumentException when the expression is compiled against
+   * another environment.
+   */
+  public int add(Expression expression) {
+    if (expression.getEnvironment() != environment) {
+      throw new IllegalArgumentException("Expression is compiled against another Environment");
+    }
+    rules.add(expression);
+    layout = null;
+    return rules.size() - 1;
+  }
+
+  /**
+   * @return the number of expressions.
+   */
+  public int size() {
+    return rules.size();
+  }
+
+  /**
+   * @param index the index of the expression.
+   * @return the expression.
+   */
+  public Expression get(int index) {
+    return rules.get(index);
+  }
+
+  /**
+   * @return the names of the variables read by the expressions, in order of
+   * the slots of the frames of this set.
+   */
+  public Set<String> getVariableNames() {
+    return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(getLayout().names)));
+  }
+
+  /**
+   * Creates a frame for {@link #evaluate(Frame)}, having a slot for every
+   * variable read by any of the expressions.
+   * @return a new frame, with all slots unset.
+   */
+  public Frame newFrame() {
+    return new Frame(getLayout().names);
+  }
+
+  /**
+   * Evaluates all expressions, reading every variable once.
+   * @return the results, indexed as the expressions were added.
+   * @throws ExpressionException when any of the expressions fails.
+   */
+  public Object [] evaluate() throws ExpressionException {
+    return evaluate(newFrame());
+  }
+
+  /**
+   * Evaluates all expressions, taking the values of the variables from the
+   * frame. Variables that are not set in the frame are read once, and unset
+   * again afterwards, so that the frame can be reused for the next record.
+   * @param frame the frame, created by this set.
+   * @return the results, indexed as the expressions were added.
+   * @throws ExpressionException when any of the expressions fails.
+   */
+  public Object [] evaluate(Frame frame) throws ExpressionException {
+    Layout layout = getLayout();
+    if (frame.getNames() != layout.names && !Arrays.equals(frame.getNames(),layout.names)) {
+      throw new IllegalArgumentException("Frame does not belong to this rule set");
+    }
+    int [] read = new int[layout.names.length];
+    int reads = 0;
+    PrimitiveEvaluator [] lanes = layout.acquire();
+    try {
+      for (int slot = 0; slot < layout.names.length; slot++) {
+        if (frame.kinds[slot] == Frame.NONE) {
+          read(layout.variables[slot],frame,slot);
+          read[reads++] = slot;
+        }
+      }
+      Object [] results = new Object[layout.rules.length];
+      for (int r = 0; r < results.length; r++) {
+        results[r] = (lanes[r] == null) ? layout.rules[r].evaluate() : lanes[r].evaluate(frame);
+      }
+      return results;
+    } finally {
+      layout.release(lanes);
+      for (int i = 0; i < reads; i++) frame.set(read[i],null);
+    }
+  }
+
+  private static void read(Variable variable,Frame frame,int slot) {
+    if (variable instanceof LongVariable) frame.setLong(slot,((LongVariable)variable).getAsLong());
+    else if (variable instanceof DoubleVariable) frame.setDouble(slot,((DoubleVariable)variable).getAsDouble());
+    else frame.set(slot,variable.get());
+  }
+
+  private Layout getLayout() {
+    Layout layout = this.layout;
+    if (layout == null) {
+      layout = new Layout(rules.toArray(new Expression[rules.size()]));
+      this.layout = layout;
+    }
+    return layout;
+  }
+
+  /*
+   * The slots shared by all expressions, and the evaluators reading from them.
+   * Every thread keeps its own evaluators, taking them while evaluating so that
+   * a nested evaluation on the same thread creates others.
+   */
+  private static final class Layout {
+    final Expression [] rules;
+    final String [] names;
+    final Variable [] variables;
+    private final ThreadLocal<PrimitiveEvaluator []> idle = new ThreadLocal<>();
+
+    Layout(Expression [] rules) {
+      this.rules = rules;
+      Set<String> names = new LinkedHashSet<>();
+      for (Expression rule:rules) names.addAll(rule.getVariableNames());
+      this.names = names.toArray(new String[names.size()]);
+      this.variables = new Variable[this.names.length];
+      for (int slot = 0; slot < this.names.length; slot++) {
+        for (Expression rule:rules) {
+          variables[slot] = rule.getVariable(this.names[slot]);
+          if (variables[slot] != null) break;
+        }
+      }
+    }
+
+    PrimitiveEvaluator [] acquire() {
+      PrimitiveEvaluator [] lanes = idle.get();
+      if (lanes != null) {
+        idle.set(null);
+        return lanes;
+      }
+      lanes = new PrimitiveEvaluator[rules.length];
+      for (int r = 0; r < rules.length; r++) lanes[r] = rules[r].newPrimitiveEvaluator(names);
+      return lanes;
+    }
+
+    void release(PrimitiveEvaluator [] lanes) {
+      idle.set(lanes);
+    }
+  }
+}
@@ -29,6 +29,8 @@ public class SimpleClassPair<T, U> {
   @Override
   public int hashCode() {
     int hash = 3;
+    hash = 37 * hash + Objects.hashCode(this.t);
+    hash = 37 * hash + Objects.hashCode(this.u);
     return hash;
   }
 
@@ -0,0 +1,307 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Turns the RPN Stack of an expression back into its expression tree, made of
+ * nodes that each evaluate a single kind of token directly on the values of
+ * their operands. Evaluating the expression becomes a plain call tree, without
+ * result stack and without dispatch on the token type, which the JIT can
+ * inline much like the generated bytecode, but without generating classes.<p>
+ *
+ * The tree is built from the compiled and optimized RPN Stack, so it shares the
+ * folded constants, and the jumps of the logical operators and the conditional
+ * become nodes that evaluate their operands lazily.
+ * @author Jo Desmet
+ */
+final class TreeCompiler {
+  private final Token [] program;
+
+  private TreeCompiler(Token [] program) {
+    this.program = program;
+  }
+
+  /**
+   * Builds the evaluator for an RPN Stack.
+   * @return the evaluator, or <code>null</code> when the RPN Stack is not
+   * well-formed. Such an expression should remain interpreted, so it keeps
+   * reporting its errors at evaluation time.
+   */
+  static Evaluator compile(Deque<Token> rpnStack,Environment environment) {
+    if (rpnStack == null || Expression.getMaximumDepth(rpnStack) < 0) return null;
+    TreeCompiler compiler = new TreeCompiler(rpnStack.toArray(new Token[rpnStack.size()]));
+    Deque<Node> nodes = new ArrayDeque<>();
+    if (!compiler.build(0,compiler.program.length,nodes) || nodes.size() != 1) return null;
+    Node root = nodes.pop();
+    return () -> root.evaluate(environment.getResolvedOperators());
+  }
+
+  /*
+   * Builds the nodes for the tokens from first up to last, pushing them on the
+   * given stack. Returns false for jumps not as emitted by the Optimizer.
+   */
+  private boolean build(int first,int last,Deque<Node> nodes) {
+    for (int t = first; t < last; t++) {
+      Token token = program[t];
+      switch (token.getType()) {
+        case VAL:
+          nodes.push(new ConstantNode(((ValueToken)token).getValue()));
+          break;
+        case VAR:
+          nodes.push(new VariableNode((VariableToken)token));
+          break;
+        case UNA:
+          nodes.push(new UnaryNode((UnaryOperatorToken)token,nodes.pop()));
+          break;
+        case UNI:
+          nodes.push(new UnitNode((UnitToken)token,nodes.pop()));
+          break;
+        case DUP:
+          // Only emitted for x^2 as x*x, evaluating x once
+          if (t + 1 >= last || program[t + 1].getType() != Token.Type.BIN) return false;
+          nodes.push(new SquareNode((BinaryOperatorToken)program[++t],nodes.pop()));
+          break;
+        case BIN: {
+          Node right = nodes.pop();
+          Node left = nodes.pop();
+          nodes.push(new BinaryNode((BinaryOperatorToken)token,left,right));
+          break;
+        }
+        case FNC: {
+          FunctionToken functionToken = (FunctionToken)token;
+          Node [] parameters = new Node[functionToken.getArity()];
+          for (int p = parameters.length - 1; p >= 0; p--) parameters[p] = nodes.pop();
+          nodes.push(new FunctionNode(functionToken,parameters));
+          break;
+        }
+        case JMP: {
+          JumpToken jumpToken = (JumpToken)token;
+          int target = jumpToken.getTarget();
+          if (target > last) return false;
+          if (jumpToken.getCondition() == JumpToken.Condition.FALSE) {
+            // cond FALSE(else) a ALWAYS(end) else: b end:
+            Token end = program[target - 1];
+            if (end.getType() != Token.Type.JMP || ((JumpToken)end).getCondition() != JumpToken.Condition.ALWAYS) return false;
+            int endTarget = ((JumpToken)end).getTarget();
+            if (endTarget > last) return false;
+            Node branch = build(t + 1,target - 1);
+            Node otherwise = build(target,endTarget);
+            if (branch == null || otherwise == null) return false;
+            nodes.push(new ConditionalNode(jumpToken,nodes.pop(),branch,otherwise));
+            t = endTarget - 1;
+          } else if (jumpToken.getCondition() != JumpToken.Condition.ALWAYS) {
+            // left AND/OR(end) right operator end:
+            Token operator = program[target - 1];
+            if (operator.getType() != Token.Type.BIN) return false;
+            Node right = build(t + 1,target - 1);
+            if (right == null) return false;
+            nodes.push(new LogicalNode(jumpToken,(BinaryOperatorToken)operator,nodes.pop(),right));
+            t = target - 1;
+          } else {
+            return false;
+          }
+          break;
+        }
+        default:
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Builds the single node for the tokens from first up to last.
+   */
+  private Node build(int first,int last) {
+    Deque<Node> nodes = new ArrayDeque<>();
+    if (!build(first,last,nodes) || nodes.size() != 1) return null;
+    return nodes.pop();
+  }
+
+  /*
+   * A node of the expression tree. The snapshot of the operators is taken once
+   * by the root and handed down.
+   */
+  private static abstract class Node {
+    abstract Object evaluate(ResolvedOperators operators) throws ExpressionException;
+  }
+
+  private static final class ConstantNode extends Node {
+    private final Object value;
+
+    ConstantNode(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) {
+      return value;
+    }
+  }
+
+  private static final class VariableNode extends Node {
+    private final VariableToken token;
+
+    VariableNode(VariableToken token) {
+      this.token = token;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      return token.evaluate();
+    }
+  }
+
+  private static final class UnaryNode extends Node {
+    private final UnaryOperatorToken token;
+    private final Node operand;
+
+    UnaryNode(UnaryOperatorToken token,Node operand) {
+      this.token = token;
+      this.operand = operand;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      return token.evaluate(operators,operand.evaluate(operators));
+    }
+  }
+
+  private static final class UnitNode extends Node {
+    private final UnitToken token;
+    private final Node operand;
+
+    UnitNode(UnitToken token,Node operand) {
+      this.token = token;
+      this.operand = operand;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      return token.evaluate(operators,operand.evaluate(operators));
+    }
+  }
+
+  private static final class BinaryNode extends Node {
+    private final BinaryOperatorToken token;
+    private final Node left;
+    private final Node right;
+
+    BinaryNode(BinaryOperatorToken token,Node left,Node right) {
+      this.token = token;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      Object leftOperand = left.evaluate(operators);
+      return token.evaluate(operators,leftOperand,right.evaluate(operators));
+    }
+  }
+
+  /*
+   * Binary operator applied on the value of a single operand for both sides.
+   */
+  private static final class SquareNode extends Node {
+    private final BinaryOperatorToken token;
+    private final Node operand;
+
+    SquareNode(BinaryOperatorToken token,Node operand) {
+      this.token = token;
+      this.operand = operand;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      Object value = operand.evaluate(operators);
+      return token.evaluate(operators,value,value);
+    }
+  }
+
+  private static final class FunctionNode extends Node {
+    private final FunctionToken token;
+    private final Node [] parameters;
+
+    FunctionNode(FunctionToken token,Node [] parameters) {
+      this.token = token;
+      this.parameters = parameters;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      Object [] values = new Object [parameters.length];
+      for (int p = 0; p < values.length; p++) values[p] = parameters[p].evaluate(operators);
+      return token.evaluate(values);
+    }
+  }
+
+  /*
+   * The logical and/or, only evaluating the right operand when the left
+   * operand does not decide.
+   */
+  private static final class LogicalNode extends Node {
+    private final JumpToken jump;
+    private final BinaryOperatorToken token;
+    private final Node left;
+    private final Node right;
+
+    LogicalNode(JumpToken jump,BinaryOperatorToken token,Node left,Node right) {
+      this.jump = jump;
+      this.token = token;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      Object leftOperand = left.evaluate(operators);
+      if (jump.isTaken(leftOperand)) return jump.getResult();
+      return token.evaluate(operators,leftOperand,right.evaluate(operators));
+    }
+  }
+
+  private static final class ConditionalNode extends Node {
+    private final JumpToken jump;
+    private final Node condition;
+    private final Node branch;
+    private final Node otherwise;
+
+    ConditionalNode(JumpToken jump,Node condition,Node branch,Node otherwise) {
+      this.jump = jump;
+      this.condition = condition;
+      this.branch = branch;
+      this.otherwise = otherwise;
+    }
+
+    @Override
+    Object evaluate(ResolvedOperators operators) throws ExpressionException {
+      return jump.isTaken(condition.evaluate(operators))
+              ? otherwise.evaluate(operators) : branch.evaluate(operators);
+    }
+  }
+}
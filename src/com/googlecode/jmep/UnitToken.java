@@ -1 +1,92 @@
-/* * JMEP - Java Mathematical Expression Parser. * Copyright (C) 1999  Jo Desmet *  * This library is free software; you can redistribute it and/or * modify it under the terms of the GNU Lesser General Public * License as published by the Free Software Foundation; either * version 2.1 of the License, or any later version. *  * This library is distributed in the hope that it will be useful, * but WITHOUT ANY WARRANTY; without even the implied warranty of * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU * Lesser General Public License for more details. *  * You should have received a copy of the GNU Lesser General Public * License along with this library; if not, write to the Free Software * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA *  * You can contact the Original submitter of this library by * email at: Jo_Desmet@yahoo.com. *  */package com.googlecode.jmep;import com.googlecode.jmep.function.UnaryOperator;import java.util.Map;class UnitToken extends Token {  //private Unit callback;  private final String name;  UnitToken(String name,int position) {    super(Token.Type.UNI,position);    this.name = name;  }    String getName() {    return this.name;  }  Object evaluate(Environment environment,Object operand) throws OperatorException {    Map<Class,UnaryOperator> implementations = environment.getUnits().get(this.name);    if (implementations == null) throw new UndefinedOperatorException(this,operand);    UnaryOperator operation = implementations.get(operand.getClass());    if (operation == null) throw new UndefinedOperatorException(this,operand);    try {      return operation.apply(operand);    } catch (Throwable x) {      throw new OperatorException(this, operand,x);    }  }}
\ No newline at end of file
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep;
+
+import com.googlecode.jmep.function.UnaryOperator;
+
+
+class UnitToken extends Token {
+  //private Unit callback;
+  private final String name;
+  private Binding<UnaryOperator [],UnaryOperator> binding;
+
+  UnitToken(String name,int position) {
+    super(Token.Type.UNI,position);
+    this.name = name;
+  }
+  
+  String getName() {
+    return this.name;
+  }
+
+  /*
+   * Binds to the implementations of the unit once per snapshot, after which
+   * a lookup is an array index on the class ID.
+   */
+  private Binding<UnaryOperator [],UnaryOperator> getBinding(ResolvedOperators operators) {
+    Binding<UnaryOperator [],UnaryOperator> binding = this.binding;
+    if (binding == null || binding.operators != operators) {
+      binding = new Binding<>(operators,operators.getUnits(this.name));
+      this.binding = binding;
+    }
+    return binding;
+  }
+
+  @Override
+  void bind(ResolvedOperators operators) {
+    getBinding(operators);
+  }
+
+  /*
+   * Binds to the exact implementation for an operand of a known class, found
+   * at compile time.
+   */
+  void bind(ResolvedOperators operators,Class operandClass) {
+    UnaryOperator implementation = getImplementation(operators,operandClass);
+    if (implementation == null) return;
+    this.binding = getBinding(operators).bind(operandClass,null,implementation);
+  }
+
+  UnaryOperator getImplementation(ResolvedOperators operators,Class operandClass) {
+    Binding<UnaryOperator [],UnaryOperator> binding = getBinding(operators);
+    int operand = operators.getClassId(operandClass);
+    return operand < 0 ? null : binding.implementations[operand];
+  }
+
+  Object evaluate(ResolvedOperators operators,Object operand) throws OperatorException {
+    Binding<UnaryOperator [],UnaryOperator> binding = getBinding(operators);
+    UnaryOperator operation = (operand.getClass() == binding.leftClass)
+            ? binding.implementation : getImplementation(operators,operand.getClass());
+    if (operation == null) throw new UndefinedOperatorException(this,operand);
+    return apply(operation,operand);
+  }
+
+  Object apply(UnaryOperator operation,Object operand) throws OperatorException {
+    try {
+      return operation.apply(operand);
+    } catch (Throwable x) {
+      throw new OperatorException(this, operand,x);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep.function;
+
+/**
+ * Describes how a Function behaves, so that expressions can call it less
+ * often. A pure function always returns the same result for the same
+ * arguments and has no side effects:<P>
+ *<ul><pre><code>env.addFunction("taxBracket",
+ *    (Object [] p) -&gt; lookup(p[0],p[1]),
+ *    FunctionTraits.pure().memoize(10000));</code></pre></ul>
+ * Traits are immutable, every method returns a new instance.
+ *
+ * @see com.googlecode.jmep.Environment#addFunction(String, Function, FunctionTraits)
+ */
+public final class FunctionTraits {
+  private static final FunctionTraits PURE = new FunctionTraits(true,0);
+  private final boolean pure;
+  private final int memoSize;
+
+  private FunctionTraits(boolean pure,int memoSize) {
+    this.pure = pure;
+    this.memoSize = memoSize;
+  }
+
+  /**
+   * Declares a function to be pure. Calls having only constant arguments are
+   * then evaluated once, when compiling, and calls with the same arguments can
+   * be shared by an ExpressionSet.
+   * @return the traits of a pure function.
+   */
+  public static FunctionTraits pure() {
+    return PURE;
+  }
+
+  /**
+   * Keeps the results of a pure function in a cache, so that repeated calls
+   * with the same arguments do not call the function again. The cache holds
+   * the least recently used results, up to the given number.
+   * @param size the maximum number of results kept.
+   * @return the traits including the cache.
+   * @throws IllegalArgumentException when the size is not positive.
+   */
+  public FunctionTraits memoize(int size) {
+    if (size <= 0) throw new IllegalArgumentException("Size must be positive: "+size);
+    return new FunctionTraits(pure,size);
+  }
+
+  /**
+   * @return true when the function always returns the same result for the
+   * same arguments.
+   */
+  public boolean isPure() {
+    return pure;
+  }
+
+  /**
+   * @return the maximum number of results kept, or 0 when not memoized.
+   */
+  public int getMemoSize() {
+    return memoSize;
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep.function;
+
+/**
+ * A BinaryOperator testing two <code>long</code> operands, that can be applied
+ * without boxing. As for all logical operators the result is represented as
+ * <code>1L</code> (true) or <code>0L</code> (false).
+ * @see com.googlecode.jmep.Environment#register(com.googlecode.jmep.BinaryOperatorType, Class, Class, BinaryOperator)
+ */
+public interface LongBinaryPredicate extends BinaryOperator<Long, Long, Long> {
+  boolean test(long t, long u);
+
+  @Override
+  default Long apply(Long t, Long u) { return test(t, u) ? 1L : 0L; }
+}
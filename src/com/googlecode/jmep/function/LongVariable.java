@@ -0,0 +1,43 @@
+/*
+ * JMEP - Java Mathematical Expression Parser.
+ * Copyright (C) 1999  Jo Desmet
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * You can contact the Original submitter of this library by
+ * email at: Jo_Desmet@yahoo.com.
+ * 
+ */
+
+package com.googlecode.jmep.function;
+
+/**
+ * A Variable producing a primitive <code>long</code>. Expressions evaluated
+ * through {@link com.googlecode.jmep.Expression#evaluateAsLong()} read it
+ * without boxing.<P>
+ *<ul><pre><code>env.addVariable("count",(LongVariable)() -&gt; count);</code></pre></ul>
+ *
+ * @see com.googlecode.jmep.Environment#addVariable
+ */
+public interface LongVariable extends Variable<Long> {
+  /**
+   * Defines the variable's behavior.
+   * @return the variable contents.
+   */
+  public long getAsLong();
+
+  @Override
+  default public Long get() { return getAsLong(); }
+}
@@ -1 +1,1158 @@
-import com.googlecode.jmep.Environment;import com.googlecode.jmep.Expression;import com.googlecode.jmep.BasicEnvironment;import com.googlecode.jmep.ExpressionException;import static org.junit.Assert.*;import java.math.BigDecimal;//import org.junit.After;//import org.junit.AfterClass;//import org.junit.BeforeClass;import org.junit.Before;import org.junit.Test;public class TestJMEP {  private Environment env;  @Before public void initializeEnvironment() {    env = BasicEnvironment.getInstance();    /* add a unit called 'mm' to the environment */    env.registerUnit("mm", Double.class, (t)->0.001*t);    env.registerUnit("mm", Long.class, (t)->0.001*t);    env.addConstant("name","neemsoft");    env.addConstant("one", 1);    env.addFunction("one", (Object [] p)->1); // For Testing a No-Arg Func    env.addVariable("x", () -> x);    env.addVariable("y", () -> y);    env.addVariable("z", () -> z);    env.addVariable("p", () -> p);    env.addVariable("m", () -> m);    env.addVariable("a", () -> a);    env.addVariable("b", () -> b);  }  int x=0;  int y=0;  int z=0;  int p=0;  int m=0;  int a=0;  int b=0;    @Test public void simpleExpression() throws ExpressionException {      Object result;      result = (new Expression("one*2+3*4+(1+2*3)+1",env)).evaluate();      assertEquals(22L,result);  }    @Test public void variousExpressions() throws ExpressionException {      Object result;            result = (new Expression("1*2+3*4+(1+2*3)+1",env)).evaluate();      assertEquals(22L,result);      result = (new Expression("1+4*3^2+1",env)).evaluate();      assertEquals(38L,result);      result = (new Expression("1 <> 2",env)).evaluate();      assertEquals(1L,result);            x=2; y=-3;      result = (new Expression("x^2+y^3",env)).evaluate();      assertEquals(-23L,result);      p=1; m=-4; z=-2;      result = (new Expression("p*m^2-z^3",env)).evaluate();      assertEquals(24L,result);      // Typical for Programming Languages, Unary always takes precedence      // Over Binary Operators. So below formula's, although looking similar,      // will give different results. Use Parentheses to remove confusion.      result = (new Expression("-2^2",env)).evaluate();      assertEquals(4L,result);      result = (new Expression("(-2)^2",env)).evaluate();      assertEquals(4L,result);      result = (new Expression("-(2^2)",env)).evaluate();      assertEquals(-4L,result);      result = (new Expression("0-2^2",env)).evaluate();      assertEquals(-4L,result);      x=-3; y=-2;      result = (new Expression("-x^2-y^3",env)).evaluate();      assertEquals(17L,result);            result = (new Expression("0-x^2-y^3",env)).evaluate();      assertEquals(-1L,result);      a=-2; b=3;      result = (new Expression("a^2-b^2*a",env)).evaluate();      assertEquals(22L,result);      result = (new Expression("0.01*100-1")).evaluate();      assertEquals(0.0,result);            result = (new Expression("round(sin(30*pi/180)*1000)/1000")).evaluate();      assertEquals(0.5,result);        }  @Test public void zeroArgumentFunc() throws ExpressionException {      // Algorithm cannot differentiate no-pars from 1 par, as it is using      // a very basic counting algorithm, counting just comma and close paranthesis.      // Users should for now not use zero argument functions, and instead use      // variables which will have the same effect.      // Pretest is needed to find CPA following FNC immediately to handle case,      // or, need a completely new tokenizer that parses using a tree rather than      // using the shunting algorithm. A new tokenizer using a tree would also be      // able to find syntactical problems more correctly at compile time.      Object result = (new Expression("one()")).evaluate();      assertEquals(1L,result);  }    @Test public void divide() throws ExpressionException {    Object result;    result = (new Expression("1/0",env)).evaluate();    assertEquals(Double.POSITIVE_INFINITY, result);    result = (new Expression("-1/0",env)).evaluate();    assertEquals(Double.NEGATIVE_INFINITY, result);    result = (new Expression("0/0",env)).evaluate();    assertEquals(Double.NaN, result);    result = (new Expression("1/2",env)).evaluate();    assertEquals(0.5, result);    result = (new Expression("4/2",env)).evaluate();    assertEquals(2L, result);    result = (new Expression("1.2/2",env)).evaluate();    assertEquals(0.6, result);  }  @Test(expected=com.googlecode.jmep.ExpressionException.class) public void testArguments() throws ExpressionException {    try {      (new Expression("1&&0",env)).evaluate();    } catch (ExpressionException xx) {      assertEquals(xx.getMessage(), "ERROR(@1): AND on [?,?]: Wrong number of arguments");      throw xx;    }    assertTrue(false); // should never reach  }  @Test(expected=com.googlecode.jmep.UndefinedOperatorException.class) public void doubleOnEquality() throws ExpressionException {      Object result;      // Can not compare two double values on equality because of statistical improbability.      result = (new Expression("sin(12.0) = pi",env)).evaluate();      assertEquals(0,result);  }  @Test public void longExpression() throws ExpressionException {	  Object result;	        result = (new Expression("10000000000",env)).evaluate();      assertEquals(10000000000L,result);      result = (new Expression("4000000*10",env)).evaluate();      assertEquals(4000000L*10,result);      result = (new Expression("1000000000000000000000000000000",env)).evaluate();      assertEquals(new Double("1e30"),result);  }  @Test public void financialExpression() throws ExpressionException {	  Object result;      result = (new Expression("1000000000000000000000000000000",Environment.getInstance(Expression.OperationalMode.FINANCIAL))).evaluate();      assertEquals(new BigDecimal("1e30"),result);  }  }
\ No newline at end of file
+
+import com.googlecode.jmep.Environment;
+import com.googlecode.jmep.Expression;
+import com.googlecode.jmep.BasicEnvironment;
+import com.googlecode.jmep.CommandLineTool;
+import com.googlecode.jmep.ExpressionException;
+import com.googlecode.jmep.ExpressionCache;
+import com.googlecode.jmep.ExpressionLibrary;
+import com.googlecode.jmep.ExpressionSet;
+import com.googlecode.jmep.Frame;
+import com.googlecode.jmep.FunctionStatistics;
+import com.googlecode.jmep.Metrics;
+import com.googlecode.jmep.MetricsListener;
+import com.googlecode.jmep.OperatorException;
+import com.googlecode.jmep.BinaryOperatorType;
+import com.googlecode.jmep.UnaryOperatorType;
+import com.googlecode.jmep.UndefinedOperatorException;
+import com.googlecode.jmep.ResultSink;
+import com.googlecode.jmep.RowSource;
+import com.googlecode.jmep.RuleSet;
+import com.googlecode.jmep.function.DoubleVariable;
+import com.googlecode.jmep.function.Function;
+import com.googlecode.jmep.function.FunctionTraits;
+import com.googlecode.jmep.function.LongVariable;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+//import org.junit.After;
+//import org.junit.AfterClass;
+//import org.junit.BeforeClass;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestJMEP {
+  private Environment env;
+
+  @Before public void initializeEnvironment() {
+    env = BasicEnvironment.getInstance();
+    /* add a unit called 'mm' to the environment */
+    env.registerUnit("mm", Double.class, (t)->0.001*t);
+    env.registerUnit("mm", Long.class, (t)->0.001*t);
+
+    env.addConstant("name","neemsoft");
+    env.addConstant("one", 1);
+    env.addFunction("one", (Object [] p)->1); // For Testing a No-Arg Func
+
+    env.addVariable("x", () -> x);
+    env.addVariable("y", () -> y);
+    env.addVariable("z", () -> z);
+    env.addVariable("p", () -> p);
+    env.addVariable("m", () -> m);
+    env.addVariable("a", () -> a);
+    env.addVariable("b", () -> b);
+  }
+
+  int x=0;
+  int y=0;
+  int z=0;
+  int p=0;
+  int m=0;
+  int a=0;
+  int b=0;
+  
+  @Test public void simpleExpression() throws ExpressionException {
+      Object result;
+      result = (new Expression("one*2+3*4+(1+2*3)+1",env)).evaluate();
+      assertEquals(22L,result);
+  }
+  
+  @Test public void variousExpressions() throws ExpressionException {
+      Object result;
+      
+
+      result = (new Expression("1*2+3*4+(1+2*3)+1",env)).evaluate();
+      assertEquals(22L,result);
+
+      result = (new Expression("1+4*3^2+1",env)).evaluate();
+      assertEquals(38L,result);
+
+      result = (new Expression("1 <> 2",env)).evaluate();
+      assertEquals(1L,result);
+      
+      x=2; y=-3;
+      result = (new Expression("x^2+y^3",env)).evaluate();
+      assertEquals(-23L,result);
+
+      p=1; m=-4; z=-2;
+      result = (new Expression("p*m^2-z^3",env)).evaluate();
+      assertEquals(24L,result);
+
+      // Typical for Programming Languages, Unary always takes precedence
+      // Over Binary Operators. So below formula's, although looking similar,
+      // will give different results. Use Parentheses to remove confusion.
+      result = (new Expression("-2^2",env)).evaluate();
+      assertEquals(4L,result);
+      result = (new Expression("(-2)^2",env)).evaluate();
+      assertEquals(4L,result);
+      result = (new Expression("-(2^2)",env)).evaluate();
+      assertEquals(-4L,result);
+      result = (new Expression("0-2^2",env)).evaluate();
+      assertEquals(-4L,result);
+
+      x=-3; y=-2;
+      result = (new Expression("-x^2-y^3",env)).evaluate();
+      assertEquals(17L,result);
+      
+      result = (new Expression("0-x^2-y^3",env)).evaluate();
+      assertEquals(-1L,result);
+
+      a=-2; b=3;
+      result = (new Expression("a^2-b^2*a",env)).evaluate();
+      assertEquals(22L,result);
+
+
+      result = (new Expression("0.01*100-1")).evaluate();
+      assertEquals(0.0,result);
+      
+      result = (new Expression("round(sin(30*pi/180)*1000)/1000")).evaluate();
+      assertEquals(0.5,result);
+      
+  }
+
+  @Test public void zeroArgumentFunc() throws ExpressionException {
+      // The counting algorithm counts just comma and close paranthesis, so a
+      // function is only without parameters when nothing was compiled in between.
+      for (Expression.CompileMode mode:Expression.CompileMode.values()) {
+        Object result = (new Expression("one()",env)).compile(mode).evaluate();
+        assertEquals(1L,result);
+        assertEquals(3L,(new Expression("one()+one(one())*2",env)).compile(mode).evaluate());
+      }
+  }
+  
+  @Test public void divide() throws ExpressionException {
+    Object result;
+    result = (new Expression("1/0",env)).evaluate();
+    assertEquals(Double.POSITIVE_INFINITY, result);
+    result = (new Expression("-1/0",env)).evaluate();
+    assertEquals(Double.NEGATIVE_INFINITY, result);
+    result = (new Expression("0/0",env)).evaluate();
+    assertEquals(Double.NaN, result);
+    result = (new Expression("1/2",env)).evaluate();
+    assertEquals(0.5, result);
+    result = (new Expression("4/2",env)).evaluate();
+    assertEquals(2L, result);
+    result = (new Expression("1.2/2",env)).evaluate();
+    assertEquals(0.6, result);
+  }
+
+  @Test(expected=com.googlecode.jmep.ExpressionException.class) public void testArguments() throws ExpressionException {
+    try {
+      (new Expression("1&&0",env)).evaluate();
+    } catch (ExpressionException xx) {
+      assertEquals(xx.getMessage(), "ERROR(@1): AND on [?,?]: Wrong number of arguments");
+      throw xx;
+    }
+    assertTrue(false); // should never reach
+  }
+
+  @Test(expected=com.googlecode.jmep.UndefinedOperatorException.class) public void doubleOnEquality() throws ExpressionException {
+      Object result;
+      // Can not compare two double values on equality because of statistical improbability.
+      result = (new Expression("sin(12.0) = pi",env)).evaluate();
+      assertEquals(0,result);
+  }
+
+  @Test public void longExpression() throws ExpressionException {
+	  Object result;
+	  
+      result = (new Expression("10000000000",env)).evaluate();
+      assertEquals(10000000000L,result);
+
+      result = (new Expression("4000000*10",env)).evaluate();
+      assertEquals(4000000L*10,result);
+
+      result = (new Expression("1000000000000000000000000000000",env)).evaluate();
+      assertEquals(new Double("1e30"),result);
+  }
+
+  @Test public void bytecodeExpressions() throws ExpressionException {
+      String [] expressions = {
+        "one*2+3*4+(1+2*3)+1", "1+4*3^2+1", "1 <> 2", "-2^2", "-(2^2)", "0-2^2",
+        "x^2+y^3", "-x^2-y^3", "a^2-b^2*a", "0.01*100-1", "round(sin(30*pi/180)*1000)/1000",
+        "1/0", "0/0", "4/2", "1.2/2", "3 mm", "(x+1) mm", "name+\"!\"", "\"ab\"*3",
+        "10000000000", "not 0 and (1 or 0)", "inv 5 & 3 | 8"
+      };
+      for (String e:expressions) {
+        for (int i = -2; i <= 2; i++) {
+          x=i; y=i-1; a=2*i; b=i+3;
+          Expression interpreted = new Expression(e,env);
+          Expression compiled = new Expression(e,env).compile(Expression.CompileMode.BYTECODE);
+          assertEquals(e,interpreted.evaluate(),compiled.evaluate());
+        }
+      }
+  }
+
+  @Test public void treeExpressions() throws ExpressionException {
+      String [] expressions = {
+        "one*2+3*4+(1+2*3)+1", "x^2+y^3", "-x^2-y^3", "a^2-b^2*a", "round(sin(30*pi/180)*1000)/1000",
+        "1/0", "3 mm", "(x+1) mm", "name+\"!\"", "not 0 and (1 or 0)", "inv 5 & 3 | 8",
+        "x and y or a", "if(x < 0, -x, if(x, x*2.5, name))"
+      };
+      for (String e:expressions) {
+        for (int i = -2; i <= 2; i++) {
+          x=i; y=i-1; a=2*i; b=i+3;
+          Expression interpreted = new Expression(e,env);
+          Expression tree = new Expression(e,env).compile(Expression.CompileMode.TREE);
+          assertEquals(e,interpreted.evaluate(),tree.evaluate());
+        }
+      }
+  }
+
+  @Test public void bytecodeReadsVariables() throws ExpressionException {
+      Expression expression = new Expression("x*y+z",env).compile(Expression.CompileMode.BYTECODE);
+      x=2; y=3; z=4;
+      assertEquals(10L,expression.evaluate());
+      x=-1;
+      assertEquals(1L,expression.evaluate());
+  }
+
+  @Test(expected=com.googlecode.jmep.ExpressionException.class) public void bytecodeArguments() throws ExpressionException {
+    try {
+      (new Expression("1&&0",env)).compile(Expression.CompileMode.BYTECODE).evaluate();
+    } catch (ExpressionException xx) {
+      assertEquals(xx.getMessage(), "ERROR(@1): AND on [?,?]: Wrong number of arguments");
+      throw xx;
+    }
+    assertTrue(false); // should never reach
+  }
+
+  @Test(expected=com.googlecode.jmep.UndefinedOperatorException.class) public void bytecodeUndefinedOperator() throws ExpressionException {
+      (new Expression("sin(12.0) = pi",env)).compile(Expression.CompileMode.BYTECODE).evaluate();
+  }
+
+  @Test public void undefinedOperatorNotTaken() throws ExpressionException {
+      /* An undefined operator that is always evaluated is reported when compiling */
+      for (String text:new String [] { "sin(12.0) = pi", "if(sin(12.0) = pi, 1, 2)", "1 + -\"a\" or 1" }) {
+        try {
+          new Expression(text,env);
+          fail("Expected an undefined operator when compiling "+text);
+        } catch (UndefinedOperatorException x) {
+          // expected
+        }
+      }
+      try {
+        new Expression("sin(12.0) = pi",env);
+        fail("Expected an undefined operator when compiling");
+      } catch (UndefinedOperatorException x) {
+        assertEquals("ERROR(@10): EQ on [Double,Double]: No matching binary operator implementation found",x.getMessage());
+      }
+      /* Otherwise it only fails when it is evaluated */
+      String [] texts = { "if(0, sin(12.0) = pi, 1)", "0 and sin(12.0) = pi", "1 or sin(12.0) = pi" };
+      Object [] results = { 1L, 0L, 1L };
+      for (Expression.CompileMode mode:Expression.CompileMode.values()) {
+        for (int i = 0; i < texts.length; i++) {
+          assertEquals(texts[i],results[i],new Expression(texts[i],env).compile(mode).evaluate());
+        }
+      }
+      long [] choice = { 0 };
+      env.addVariable("choice",(LongVariable)() -> choice[0]);
+      Expression expression = new Expression("if(choice, sin(12.0) = pi, 1)",env);
+      assertEquals(1L,expression.evaluate());
+      choice[0] = 1;
+      try {
+        expression.evaluate();
+        fail("Expected an UndefinedOperatorException");
+      } catch (UndefinedOperatorException x) {
+        // expected
+      }
+  }
+
+  @Test public void primitiveEvaluation() throws ExpressionException {
+      String [] expressions = {
+        "one*2+3*4+(1+2*3)+1", "1+4*3^2+1", "-2^2", "x^2+y^3", "a^2-b^2*a",
+        "0.01*100-1", "round(sin(30*pi/180)*1000)/1000", "2*pi/180*x", "1/2", "4/2",
+        "x mm", "-x*1.5+y", "x % 3", "(x < y) + (1.5 >= x)"
+      };
+      for (String e:expressions) {
+        for (int i = -2; i <= 2; i++) {
+          x=i; y=i-1; a=2*i; b=i+3;
+          Expression expression = new Expression(e,env);
+          Object result = expression.evaluate();
+          assertEquals(e,((Number)result).doubleValue(),expression.evaluateAsDouble(),0.0);
+          if (result instanceof Long) {
+            assertEquals(e,result,expression.evaluateAsLong());
+            assertEquals(e,((Long)result) != 0L,expression.evaluateAsBoolean());
+          }
+        }
+      }
+  }
+
+  @Test public void primitiveVariables() throws ExpressionException {
+      double [] rate = { 0.0 };
+      long [] count = { 0L };
+      env.addVariable("rate", (DoubleVariable)() -> rate[0]);
+      env.addVariable("count", (LongVariable)() -> count[0]);
+      Expression expression = new Expression("count*rate+count",env);
+      rate[0] = 0.5; count[0] = 4;
+      assertEquals(6.0,expression.evaluateAsDouble(),0.0);
+      assertEquals(6.0,expression.evaluate());
+      assertTrue(new Expression("count > 3 and rate < 1",env).evaluateAsBoolean());
+      assertEquals(16L,new Expression("count^2",env).evaluateAsLong());
+  }
+
+  @Test(expected=com.googlecode.jmep.ExpressionException.class) public void primitiveNotANumber() throws ExpressionException {
+      new Expression("name",env).evaluateAsDouble();
+  }
+
+  @Test(expected=com.googlecode.jmep.OperatorException.class) public void primitiveOperatorException() throws ExpressionException {
+      new Expression("x % 0",env).evaluateAsLong();
+  }
+
+  @Test public void optimizedExpressions() throws ExpressionException {
+      double [] d = { 0.0 };
+      long [] l = { 0L };
+      env.addVariable("d", (DoubleVariable)() -> d[0]);
+      env.addVariable("l", (LongVariable)() -> l[0]);
+      d[0] = 3.0; l[0] = 5;
+      assertEquals(Math.PI/90*3.0,new Expression("2*pi/180*d",env).evaluate());
+      assertEquals(-4L,new Expression("-(2^2)",env).evaluate());
+      assertEquals(9.0,new Expression("d^2",env).evaluate());
+      assertEquals(25L,new Expression("l^2",env).evaluate());
+      assertEquals(25.0,new Expression("l^2+0.5-0.5",env).evaluate());
+      assertEquals(3.0,new Expression("d*1",env).evaluate());
+      assertEquals(5L,new Expression("1*l+0",env).evaluate());
+      assertEquals(7.5,new Expression("l*1.5",env).evaluate());
+      assertEquals(3.0,new Expression("(d-0)/1",env).evaluate());
+      d[0] = -0.0;
+      // -0.0+0 is 0.0, so x+0 may not be removed for a Double
+      assertEquals(Double.POSITIVE_INFINITY,new Expression("1/(d+0)",env).evaluate());
+      assertEquals(Double.NEGATIVE_INFINITY,new Expression("1/(d-0)",env).evaluate());
+      x=3;
+      assertEquals(9L,new Expression("x^2",env).evaluate());
+      assertEquals(3L,new Expression("x*1",env).evaluate());
+  }
+
+  @Test(expected=com.googlecode.jmep.OperatorException.class) public void optimizedFailureAtEvaluation() throws ExpressionException {
+      Expression expression = new Expression("1 % 0",env);
+      expression.evaluate();
+  }
+
+  @Test public void expressionCache() throws ExpressionException {
+      ExpressionCache cache = new ExpressionCache(2);
+      Expression expression = cache.get("x+1",env);
+      assertSame(expression,cache.get("x+1",env));
+      x=4;
+      assertEquals(5L,cache.get("x+1",env).evaluate());
+      assertNotSame(expression,cache.get("1+1",env));
+      assertNotSame(cache.get("1+1",env),cache.get("1+1",BasicEnvironment.getInstance()));
+      cache.get("x+2",env);
+      assertEquals(2,cache.size());
+      ExpressionCache.Statistics statistics = cache.getStatistics();
+      assertEquals(3L,statistics.getHitCount());
+      assertEquals(4L,statistics.getMissCount());
+      assertEquals(2L,statistics.getEvictionCount());
+  }
+
+  @Test public void expressionCacheReleasesEnvironment() throws Exception {
+      ExpressionCache cache = new ExpressionCache(10);
+      Environment environment = new BasicEnvironment();
+      WeakReference<Environment> reference = new WeakReference<>(environment);
+      assertEquals(3L,cache.get("1+2",environment).evaluate());
+      assertEquals(1,cache.size());
+      environment = null;
+      for (int i = 0; i < 100 && (reference.get() != null || cache.size() > 0); i++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      assertNull(reference.get());
+      assertEquals(0,cache.size());
+  }
+
+  @Test public void reboundOperators() throws ExpressionException {
+      /* Operators bound at compile time follow the Environment when it changes */
+      env.addVariable("count", (LongVariable)() -> 3L);
+      String [] texts = { "count + 2", "-count", "count mm" };
+      List<Expression> expressions = new ArrayList<>();
+      for (Expression.CompileMode mode:Expression.CompileMode.values()) {
+        for (String text:texts) expressions.add(new Expression(text,env).compile(mode));
+      }
+      Object [] before = { 5L, -3L, 0.001*3 };
+      for (int i = 0; i < expressions.size(); i++) {
+        Expression expression = expressions.get(i);
+        assertEquals(before[i % texts.length],expression.evaluate());
+        assertEquals(before[i % texts.length],expression.evaluate(expression.newFrame()));
+      }
+      env.register(BinaryOperatorType.ADD,Long.class,Long.class,(Long t,Long u)->t*u);
+      env.register(UnaryOperatorType.MIN,Long.class,(Long t)->t*10);
+      env.registerUnit("mm",Long.class,(Long t)->t*2.0);
+      env.resolve();
+      Object [] after = { 6L, 30L, 6.0 };
+      for (int i = 0; i < expressions.size(); i++) {
+        Expression expression = expressions.get(i);
+        assertEquals(after[i % texts.length],expression.evaluate());
+        assertEquals(after[i % texts.length],expression.evaluate(expression.newFrame()));
+      }
+  }
+
+  @Test public void expressionCacheInvalidation() throws ExpressionException {
+      ExpressionCache cache = new ExpressionCache(100L,String::length);
+      env.addFunction("f", (Object [] p)->1L);
+      assertEquals(2L,cache.get("f(0)+1",env).evaluate());
+      env.addFunction("f", (Object [] p)->2L);
+      assertEquals(3L,cache.get("f(0)+1",env).evaluate());
+      env.register(BinaryOperatorType.ADD,Long.class,Long.class,(Long t,Long u)->t*u);
+      assertEquals(2L,cache.get("f(0)+1",env).evaluate());
+      assertEquals(2L,cache.getStatistics().getInvalidationCount());
+  }
+
+  @Test public void batchEvaluation() throws ExpressionException {
+      double [] rate = { 0.0 };
+      long [] count = { 0L };
+      env.addVariable("rate", (DoubleVariable)() -> rate[0]);
+      env.addVariable("count", (LongVariable)() -> count[0]);
+      int rows = 2500;
+      double [] rates = new double[rows];
+      long [] counts = new long[rows];
+      for (int i = 0; i < rows; i++) {
+        rates[i] = i * 0.25;
+        counts[i] = i - 100;
+      }
+      Map<String,Object> columns = new HashMap<>();
+      columns.put("rate",rates);
+      columns.put("count",counts);
+      double [] out = new double[rows];
+      for (String e:new String[] { "count*rate+count/4", "-count mm + count^2", "(count > 10 and rate < 300) + abs(count)", "rate*x" }) {
+        Expression expression = new Expression(e,env);
+        x = 3;
+        expression.evaluateBatch(columns,out);
+        for (int i = 0; i < rows; i++) {
+          rate[0] = rates[i];
+          count[0] = counts[i];
+          assertEquals(e,expression.evaluateAsDouble(),out[i],0.0);
+        }
+      }
+  }
+
+  @Test public void columnKernels() throws ExpressionException {
+      /* Only Double columns, so that all operators run through the (vector) kernels */
+      double [] a = { 0.0 };
+      double [] b = { 0.0 };
+      env.addVariable("a", (DoubleVariable)() -> a[0]);
+      env.addVariable("b", (DoubleVariable)() -> b[0]);
+      int rows = 1001;
+      double [] as = new double[rows];
+      double [] bs = new double[rows];
+      for (int i = 0; i < rows; i++) {
+        as[i] = i * 0.37 - 100;
+        bs[i] = (i % 13) - 6.5;
+      }
+      Map<String,Object> columns = new HashMap<>();
+      columns.put("a",as);
+      columns.put("b",bs);
+      double [] out = new double[rows];
+      for (String e:new String[] { "a+b", "a-b", "a*b", "a/b", "(a<b)+(a>b)*2+(a<=b)*4+(a>=b)*8", "abs(a)-abs(b)" }) {
+        Expression expression = new Expression(e,env);
+        expression.evaluateBatch(columns,out);
+        for (int i = 0; i < rows; i++) {
+          a[0] = as[i];
+          b[0] = bs[i];
+          assertEquals(e,expression.evaluateAsDouble(),out[i],0.0);
+        }
+      }
+  }
+
+  @Test(expected=com.googlecode.jmep.OperatorException.class) public void batchEvaluationFailure() throws ExpressionException {
+      env.addVariable("count", (LongVariable)() -> 1L);
+      Map<String,Object> columns = new HashMap<>();
+      columns.put("count",new long [] { 3L, 2L, 1L });
+      new Expression("count % (count - 1)",env).evaluateBatch(columns,new double[3]);
+  }
+
+  @Test public void parallelEvaluation() throws ExpressionException {
+      env.addVariable("rate", (DoubleVariable)() -> 0.0);
+      env.addVariable("count", (LongVariable)() -> 0L);
+      int rows = 300000;
+      double [] rates = new double[rows];
+      long [] counts = new long[rows];
+      for (int i = 0; i < rows; i++) {
+        rates[i] = i * 0.5;
+        counts[i] = i % 977;
+      }
+      Map<String,Object> columns = new HashMap<>();
+      columns.put("rate",rates);
+      columns.put("count",counts);
+      Expression expression = new Expression("rate*count/3 + count/4",env);
+      double [] expected = new double[rows];
+      expression.evaluateBatch(columns,expected);
+      double [] out = new double[rows];
+      int [] nextRow = { 0 };
+      ResultSink copy = ResultSink.of(out);
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+        expression.evaluateParallel(RowSource.of(columns,rows),(first,results,count) -> {
+          assertEquals(nextRow[0],first);
+          nextRow[0] += count;
+          copy.accept(first,results,count);
+        },pool);
+      } finally {
+        pool.shutdown();
+      }
+      assertEquals(rows,nextRow[0]);
+      assertArrayEquals(expected,out,0.0);
+  }
+
+  @Test public void upgradesFollowRegistration() throws ExpressionException {
+      Environment environment = new Environment(Expression.OperationalMode.BASIC) {};
+      environment.register(BinaryOperatorType.ADD,Double.class,Double.class,(Double t,Double u)->t + u);
+      environment.register(Long.class,Double.class,(Long t)->(double)t);
+      assertEquals(2.0,new Expression("1+1",environment).evaluate());
+      environment.register(Long.class,Double.class,(Long t)->10.0 * t);
+      assertEquals(20.0,new Expression("1+1",environment).evaluate());
+  }
+
+  @Test public void concurrentEvaluation() throws Exception {
+      Expression expression = new Expression("x*2+1",env).compile(Expression.CompileMode.BYTECODE);
+      Expression interpreted = new Expression("x*2+1",env);
+      x = 20;
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+          futures.add(executor.submit(() -> {
+            for (int i = 0; i < 20000; i++) {
+              assertEquals(41L,expression.evaluate());
+              assertEquals(41L,interpreted.evaluate());
+              assertEquals(41L,interpreted.evaluateAsLong());
+            }
+            return null;
+          }));
+        }
+        for (int i = 0; i < 200; i++) env.registerUnit("cm", Long.class, (t)->0.01*t);
+        for (Future<?> future:futures) future.get();
+      } finally {
+        executor.shutdown();
+      }
+  }
+
+  @Test public void shortCircuitEvaluation() throws ExpressionException {
+      int [] calls = { 0 };
+      env.addFunction("expensive", (Object [] p)->{ calls[0]++; return 10L / ((Number)p[0]).longValue(); });
+      String [] expressions = {
+        "x <> 0 and expensive(x) > 2", "x = 0 or expensive(x) > 2",
+        "if(x <> 0, expensive(x), -1)", "if(x = 0, -1, expensive(x)) + 1",
+        "(x <> 0 and expensive(x) > 2) or if(y, expensive(y), 7) = 7"
+      };
+      Object [][] expected = {
+        { 0L, 1L }, { 1L, 1L }, { -1L, 5L }, { 0L, 6L }, { 1L, 1L }
+      };
+      for (Expression.CompileMode mode:Expression.CompileMode.values()) {
+        for (int e = 0; e < expressions.length; e++) {
+          Expression expression = new Expression(expressions[e],env).compile(mode);
+          x = 0; y = 0; calls[0] = 0;
+          assertEquals(expressions[e],expected[e][0],expression.evaluate());
+          assertEquals(expressions[e],((Number)expected[e][0]).doubleValue(),expression.evaluateAsDouble(),0.0);
+          assertEquals(expressions[e],0,calls[0]);
+          x = 2;
+          assertEquals(expressions[e],expected[e][1],expression.evaluate());
+        }
+      }
+      assertEquals(0L,new Expression("0 and expensive(0)",env).evaluate());
+      assertEquals(2.5,new Expression("if(1, 2.5, expensive(0))",env).evaluate());
+  }
+
+  @Test(expected=com.googlecode.jmep.ExpressionException.class) public void conditionNotLogical() throws ExpressionException {
+      new Expression("if(x + 0.5, 1, 2)",env).evaluate();
+  }
+
+  @Test public void batchShortCircuit() throws ExpressionException {
+      env.addVariable("count", (LongVariable)() -> 0L);
+      int rows = 1500;
+      long [] counts = new long[rows];
+      for (int i = 0; i < rows; i++) counts[i] = (i < 1100) ? 0 : i % 7;
+      Map<String,Object> columns = new HashMap<>();
+      columns.put("count",counts);
+      double [] out = new double[rows];
+      new Expression("if(count <> 0, 14 % count, -1.5) + (count = 0 or 7 % count > 2)",env).evaluateBatch(columns,out);
+      for (int i = 0; i < rows; i++) {
+        long count = counts[i];
+        assertEquals((count != 0 ? 14 % count : -1.5) + ((count == 0 || 7 % count > 2) ? 1 : 0),out[i],0.0);
+      }
+  }
+
+  @Test public void expressionSet() throws ExpressionException {
+      int [] reads = { 0 };
+      env.addVariable("price", (DoubleVariable)() -> { reads[0]++; return 2.5; });
+      env.addVariable("qty", (LongVariable)() -> 4L);
+      env.addVariable("who", () -> "jo");
+      ExpressionSet rules = new ExpressionSet(env);
+      rules.add("total","price*qty");
+      rules.add("tax","qty*price*0.2");
+      rules.add("discount","if(price*qty > 5, (price*qty)^2, 0)");
+      rules.add("greeting","who+\"!\"");
+      rules.add("reversed","\"!\"+who");
+      Map<String,Object> results = rules.evaluate();
+      assertEquals(10.0,results.get("total"));
+      assertEquals(2.0,results.get("tax"));
+      assertEquals(100.0,results.get("discount"));
+      assertEquals("jo!",results.get("greeting"));
+      assertEquals("!jo",results.get("reversed"));
+      assertEquals(1,reads[0]);
+      assertTrue(rules.getNodeCount() < rules.getTokenCount());
+  }
+
+  @Test public void largeBytecodeExpression() throws ExpressionException {
+      /* Too many constants for a generated class, so the expression stays interpreted */
+      env.addVariable("s", () -> "s");
+      StringBuilder text = new StringBuilder("s");
+      StringBuilder expected = new StringBuilder("s");
+      for (int i = 0; i < 1500; i++) {
+        text.append("+\"").append(i).append("\"+s");
+        expected.append(i).append("s");
+      }
+      Expression expression = new Expression(text.toString(),env).compile(Expression.CompileMode.BYTECODE);
+      assertEquals(expected.toString(),expression.evaluate());
+  }
+
+  @Test public void specializedExpression() throws ExpressionException {
+      int [] reads = { 0 };
+      env.addVariable("rate", () -> { reads[0]++; return 0.25; });
+      Expression expression = new Expression("x*(1+rate)^2 + if(rate > 1, one(), 2)",env);
+      Map<String,Object> parameters = new HashMap<>();
+      parameters.put("rate",0.5);
+      parameters.put("unused",1);
+      Expression specialized = expression.specialize(parameters);
+      x = 4;
+      assertEquals(11.0,specialized.evaluate());
+      assertEquals(11.0,specialized.compile(Expression.CompileMode.BYTECODE).evaluate());
+      assertEquals(0,reads[0]);
+      assertEquals(8.25,expression.evaluate());
+      assertEquals(2,reads[0]);
+  }
+
+  @Test public void specializedLoadedExpression() throws Exception {
+      int [] calls = { 0 };
+      env.addFunction("twice", (Object [] p) -> { calls[0]++; return ((Number)p[0]).doubleValue() * 2; },FunctionTraits.pure());
+      env.addVariable("rate", (DoubleVariable)() -> 0.25);
+      Expression expression = new Expression("if(x > 0, twice(rate), 1) + rate^2 + (x > 1 and twice(rate) > 2)",env);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      expression.writeTo(out);
+      Expression loaded = Expression.readFrom(new ByteArrayInputStream(out.toByteArray()),env);
+      Map<String,Object> fixed = new HashMap<>();
+      fixed.put("rate",1.5);
+      Expression specialized = loaded.specialize(fixed);
+      calls[0] = 0;
+      double [] expected = { 3.25, 3.25, 5.25, 6.25 };
+      for (int i = 0; i < expected.length; i++) {
+        x = i - 1;
+        assertEquals(expected[i],specialized.evaluate());
+      }
+      assertEquals(0,calls[0]);
+  }
+
+  @Test public void pureFunctionFailures() throws ExpressionException {
+      /* A pure function rejecting its constant arguments fails when evaluated */
+      int [] calls = { 0 };
+      env.addFunction("ratio", (Object [] p) -> { calls[0]++; return (Long)p[0] / (Long)p[1]; },FunctionTraits.pure());
+      Expression expression = new Expression("if(x, ratio(1, 0), 2)",env);
+      assertEquals(1,calls[0]);
+      x = 0;
+      assertEquals(2L,expression.evaluate());
+      x = 1;
+      try {
+        expression.evaluate();
+        fail("Expected an ArithmeticException");
+      } catch (ArithmeticException xx) {
+        assertEquals(2,calls[0]);
+      }
+      /* Whatever the function throws, it is thrown again when the call is evaluated */
+      env.addFunction("broken", (Object [] p) -> { throw new IllegalStateException("broken"); },FunctionTraits.pure());
+      expression = new Expression("if(x, broken(1), 2)",env);
+      x = 0;
+      assertEquals(2L,expression.evaluate());
+      x = 1;
+      try {
+        expression.evaluate();
+        fail("Expected an IllegalStateException");
+      } catch (IllegalStateException xx) {
+        assertEquals("broken",xx.getMessage());
+      }
+  }
+
+  @Test public void frameEvaluation() throws Exception {
+      Expression expression = new Expression("x*2+y/4+if(z, 0.5, 0)",env);
+      Frame frame = expression.newFrame();
+      assertEquals(3,frame.size());
+      int slotX = frame.getSlot("x");
+      int slotY = frame.getSlot("y");
+      frame.setLong(slotX,10L).setDouble(slotY,2.0);
+      z = 1;
+      assertEquals(21.0,expression.evaluate(frame));
+      assertEquals(21.0,expression.evaluateAsDouble(frame),0.0);
+      frame.set(slotY,8).set(frame.getSlot("z"),0L);
+      assertEquals(22L,expression.evaluate(frame));
+      frame.clear();
+      x = 3; y = 4;
+      assertEquals(7.5,expression.evaluate(frame));
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+          final long offset = t;
+          futures.add(executor.submit(() -> {
+            Frame own = expression.newFrame();
+            for (int i = 0; i < 10000; i++) {
+              own.setLong(slotX,offset + i).setLong(slotY,4L).setLong(frame.getSlot("z"),0L);
+              assertEquals(2.0 * (offset + i) + 1.0,expression.evaluateAsDouble(own),0.0);
+            }
+            return null;
+          }));
+        }
+        for (Future<?> future:futures) future.get();
+      } finally {
+        executor.shutdown();
+      }
+  }
+
+  @Test public void financialExpression() throws ExpressionException {
+	  Object result;
+      result = (new Expression("1000000000000000000000000000000",Environment.getInstance(Expression.OperationalMode.FINANCIAL))).evaluate();
+      assertEquals(new BigDecimal("1e30"),result);
+  }
+
+  @Test public void upgradeChains() throws ExpressionException {
+      env.register(Short.class, Long.class, (Short t) -> (long)t);
+      env.addVariable("s", () -> (short)3);
+      env.registerUnit("pct", Double.class, (t)->t/100);
+      assertEquals(3.5,(new Expression("s+0.5",env)).evaluate());
+      assertEquals(6L,(new Expression("s*2",env)).evaluate());
+      assertEquals(-3L,(new Expression("-s",env)).evaluate());
+      assertEquals(0.02,(new Expression("2 pct",env)).evaluate());
+      try {
+        (new Expression("5.5%s",env)).evaluate();
+        fail("Expected an undefined operator");
+      } catch (ExpressionException x) {
+        // Expected
+      }
+      env.register(BinaryOperatorType.MOD, Double.class, Double.class, (Double t, Double u) -> t % u);
+      assertEquals(2.5,(new Expression("5.5%s",env)).evaluate());
+  }
+
+  @Test public void typedVariables() throws ExpressionException {
+      env.addVariable("t", Double.class, () -> 0.5 * x);
+      env.addVariable("n", Integer.class, () -> x);
+      x = 3;
+      assertEquals(4.0,(new Expression("t*2+1",env)).evaluate());
+      assertEquals(-3L,(new Expression("-n",env)).evaluate());
+      assertEquals(4.5,(new Expression("n+t",env)).compile(Expression.CompileMode.TREE).evaluate());
+      try {
+        new Expression("1 + (t = 1.5)",env);
+        fail("Expected an undefined operator when compiling");
+      } catch (ExpressionException xx) {
+        assertEquals("ERROR(@7): EQ on [Double,Double]: No matching binary operator implementation found",xx.getMessage());
+      }
+      try {
+        new Expression("\"a\" - round(t)",env);
+        fail("Expected an undefined operator when compiling");
+      } catch (ExpressionException xx) {
+        assertEquals("ERROR(@4): SUB on [String,Long]: No matching binary operator implementation found",xx.getMessage());
+      }
+  }
+
+  @Test public void compiledForm() throws Exception {
+      String [] expressions = {
+        "x^2+y*3.5", "if(x < 0, -x, if(x, x*2.5, name))", "x and y or a", "(x+1) mm",
+        "round(sin(30*pi/180)*1000)/1000", "undefined(x)", "1000000000000000000000000000000"
+      };
+      Map<String,Expression> compiled = new LinkedHashMap<>();
+      for (String e:expressions) compiled.put(e,new Expression(e,env));
+      File file = File.createTempFile("jmep",".lib");
+      file.deleteOnExit();
+      try (OutputStream out = new FileOutputStream(file)) {
+        ExpressionLibrary.write(compiled,out);
+      }
+      ExpressionLibrary library = ExpressionLibrary.open(file.toPath(),env);
+      assertEquals(compiled.keySet(),library.getNames());
+      assertSame(library.get("x and y or a"),library.get("x and y or a"));
+      assertNull(library.get("x"));
+      for (String e:expressions) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compiled.get(e).writeTo(out);
+        Expression loaded = Expression.readFrom(new ByteArrayInputStream(out.toByteArray()),env);
+        for (int i = -2; i <= 2; i++) {
+          x=i; y=i-1; a=2*i;
+          Object expected;
+          try {
+            expected = compiled.get(e).evaluate();
+          } catch (ExpressionException xx) {
+            expected = xx.getMessage();
+          }
+          for (Expression actual:new Expression[] {loaded,library.get(e)}) {
+            try {
+              assertEquals(e,expected,actual.evaluate());
+            } catch (ExpressionException xx) {
+              assertEquals(e,expected,xx.getMessage());
+            }
+          }
+        }
+      }
+      x = 2;
+      Map<String,Object> fixed = new HashMap<>();
+      fixed.put("y",4L);
+      assertEquals(18.0,library.get("x^2+y*3.5").specialize(fixed).evaluate());
+
+      try {
+        ExpressionLibrary.write(new HashMap<>(),new ByteArrayOutputStream());
+        fail("Expected an empty library to be rejected");
+      } catch (IllegalArgumentException xx) {
+        // Expected
+      }
+
+      Environment other = BasicEnvironment.getInstance();
+      try {
+        ExpressionLibrary.open(file.toPath(),other);
+        fail("Expected the Environment not to match");
+      } catch (InvalidObjectException xx) {
+        // Expected
+      }
+  }
+
+  @Test public void ruleSet() throws ExpressionException {
+      final int [] reads = new int[1];
+      env.addVariable("q", () -> { reads[0]++; return 3L; });
+      env.addVariable("r", (DoubleVariable)() -> { reads[0]++; return 0.5; });
+      RuleSet rules = new RuleSet(env);
+      assertEquals(0,rules.add("q^2+q"));
+      assertEquals(1,rules.add("if(q > 1, q*r, r)"));
+      assertEquals(2,rules.add("name"));
+      assertEquals(3,rules.add(new Expression("r+q+x",env)));
+      x = 1;
+      assertArrayEquals(new Object[] {12L,1.5,"neemsoft",4.5},rules.evaluate());
+      assertEquals(2,reads[0]);
+
+      Frame frame = rules.newFrame();
+      frame.setLong(frame.getSlot("q"),-2L);
+      assertArrayEquals(new Object[] {2L,0.5,"neemsoft",-0.5},rules.evaluate(frame));
+      assertEquals(3,reads[0]);
+      assertArrayEquals(new Object[] {2L,0.5,"neemsoft",-0.5},rules.evaluate(frame));
+      assertEquals(4,reads[0]);
+  }
+
+  @Test public void literals() throws ExpressionException {
+      assertEquals(2L,(new Expression("2.0")).evaluate());
+      assertEquals(1000L,(new Expression("1e3")).evaluate());
+      assertEquals(15L,(new Expression("1.5E+1")).evaluate());
+      assertEquals(0.25,(new Expression("25e-2")).evaluate());
+      assertEquals(0.1,(new Expression(".1")).evaluate());
+      assertEquals(Long.MAX_VALUE,(new Expression("9223372036854775807")).evaluate());
+      assertEquals(9.223372036854775808e18,(new Expression("9223372036854775808")).evaluate());
+      assertEquals(0.30000000000000004,(new Expression("0.30000000000000004")).evaluate());
+      assertEquals("a\"b\\c",(new Expression("\"a\\\"b\\\\c\"")).evaluate());
+      assertEquals(new BigDecimal("0.1"),(new Expression("0.10",Environment.getInstance(Expression.OperationalMode.FINANCIAL))).evaluate());
+  }
+
+  @Test public void memoizedFunction() throws ExpressionException {
+    final int [] calls = new int[1];
+    env.addFunction("rate", (Object [] p) -> { calls[0]++; return ((Long)p[0]) * 10 + ((Long)p[1]); },
+            FunctionTraits.pure().memoize(2));
+    Expression e = new Expression("rate(x, 1) + rate(x, 1)*2",env);
+    x = 1;
+    assertEquals(33L,e.evaluate());
+    assertEquals(1,calls[0]);
+    x = 2;
+    assertEquals(63L,e.evaluate());
+    x = 1;
+    assertEquals(33L,e.evaluate());
+    assertEquals(2,calls[0]);
+    assertEquals(7L,(new Expression("rate(0, 7)",env)).evaluate());
+    assertEquals(3,calls[0]);
+
+    FunctionStatistics statistics = env.getFunctionStatistics("rate");
+    assertEquals(4,statistics.getHits());
+    assertEquals(3,statistics.getMisses());
+    assertEquals(1,statistics.getEvictions());
+    assertEquals(2,statistics.getSize());
+    assertNull(env.getFunctionStatistics("sin"));
+
+    env.addFunction("nothing", (Object [] p) -> null);
+    env.addFunction("orNone", (Object [] p) -> p[0] == null ? "none" : p[0],FunctionTraits.pure().memoize(2));
+    e = new Expression("orNone(nothing())",env);
+    assertEquals("none",e.evaluate());
+    assertEquals("none",e.evaluate());
+    assertEquals(1,env.getFunctionStatistics("orNone").getHits());
+  }
+
+  @Test public void specializedFunction() throws Exception {
+      final int [] compiles = new int[1];
+      env.addFunction("matches", new Function() {
+        @Override
+        public Object call(Object [] p) {
+          compiles[0]++;
+          return Pattern.matches((String)p[1],(String)p[0]) ? 1L : 0L;
+        }
+        @Override
+        public Function specialize(Object [] constants) {
+          if (!(constants[1] instanceof String)) return this;
+          compiles[0]++;
+          final Pattern pattern = Pattern.compile((String)constants[1]);
+          return (Object [] p) -> pattern.matcher((String)p[0]).matches() ? 1L : 0L;
+        }
+      });
+      env.addVariable("s", () -> "neemsoft");
+      Expression e = new Expression("matches(s, \"^neem.*\") + matches(s, \"^x\"+s)",env);
+      for (int i = 0; i < 3; i++) assertEquals(1L,e.evaluate());
+      assertEquals(4,compiles[0]);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      e.writeTo(out);
+      compiles[0] = 0;
+      Expression loaded = Expression.readFrom(new ByteArrayInputStream(out.toByteArray()),env);
+      for (int i = 0; i < 3; i++) assertEquals(1L,loaded.evaluate());
+      assertEquals(4,compiles[0]);
+      x = 1;
+      assertEquals(0L,(new Expression("if(x > 0, matches(s, \"x.*\"), 1)",env)).evaluate());
+
+      /* A specialization returns what the function returns, so they share the cache */
+      final int [] specializations = new int[1];
+      final int [] calls = new int[1];
+      env.addFunction("suffix", new Function() {
+        @Override
+        public Object call(Object [] p) {
+          calls[0]++;
+          return (String)p[0] + p[1];
+        }
+        @Override
+        public Function specialize(Object [] constants) {
+          specializations[0]++;
+          return (Object [] p) -> (String)p[0] + p[1];
+        }
+      },FunctionTraits.pure().memoize(4));
+      Expression memoized = new Expression("suffix(s, \"!\")",env);
+      assertEquals("neemsoft!",memoized.evaluate());
+      assertEquals("neemsoft!",memoized.evaluate());
+      assertEquals(1,specializations[0]);
+      assertEquals(1,env.getFunctionStatistics("suffix").getHits());
+      assertEquals(1,env.getFunctionStatistics("suffix").getMisses());
+      env.addVariable("mark", () -> "!");
+      Expression unspecialized = new Expression("suffix(s, mark)",env);
+      assertEquals("neemsoft!",unspecialized.evaluate());
+      assertEquals(0,calls[0]);
+      assertEquals(2,env.getFunctionStatistics("suffix").getHits());
+      assertEquals(1,env.getFunctionStatistics("suffix").getMisses());
+      assertEquals(1,env.getFunctionStatistics("suffix").getSize());
+  }
+
+  @Test public void metrics() throws Exception {
+      /* Metrics are global: measure under labels of this test only, and clear them afterwards */
+      Metrics metrics = Metrics.getInstance();
+      final List<String> evaluated = new ArrayList<>();
+      MetricsListener listener = new MetricsListener() {
+        @Override
+        public void evaluated(String expression,long nanos,ExpressionException failure) {
+          evaluated.add(expression);
+        }
+      };
+      long [] count = { 3L };
+      env.addFunction("metered", (Object [] p) -> ((Number)p[0]).doubleValue() * 2);
+      env.addVariable("count", (LongVariable)() -> count[0]);
+      Expression e = new Expression("metered(x) + x",env);
+      Expression bound = new Expression("count + 1",env);
+      env.addVariable("s", () -> "abc");
+      Expression failing = new Expression("s - 1",env);
+      e.evaluate();
+      metrics.reset();
+      metrics.addListener(listener);
+      metrics.setEnabled(true);
+      try {
+        x = 2;
+        assertEquals(6.0,e.evaluate());
+        assertEquals(6.0,e.evaluateAsDouble(),0.0);
+        assertEquals(4L,bound.evaluate());
+        try {
+          failing.evaluate();
+          fail("Expected an undefined operator");
+        } catch (OperatorException x) {
+          // Expected
+        }
+        metrics.setEnabled(false);
+        e.evaluate();
+        assertEquals(2,metrics.getEvaluationTimer("metered(x) + x").getCount());
+        assertEquals(1,metrics.getEvaluationTimer("s - 1").getFailures());
+        assertEquals(1,metrics.getUndefinedOperatorCount());
+        assertEquals(2,metrics.getFunctionTimer("metered").getCount());
+        assertEquals(4,metrics.getVariableTimer("x").getCount());
+        assertEquals(1,metrics.getVariableTimer("s").getCount());
+        assertEquals(2,metrics.getDispatchCount(BinaryOperatorType.ADD,Double.class,Long.class));
+        assertEquals(1,metrics.getDispatchCount(BinaryOperatorType.ADD,Long.class,Long.class));
+        assertEquals(Long.valueOf(2),metrics.getFunctionCallCounts().get("metered"));
+        assertTrue(metrics.getEvaluationTimer("metered(x) + x").getPercentileNanos(0.99) > 0);
+        assertEquals(4,evaluated.size());
+      } finally {
+        metrics.setEnabled(false);
+        metrics.removeListener(listener);
+        metrics.reset();
+      }
+  }
+
+  @Test public void flightEvents() throws Exception {
+      env.addFunction("pause", (Object [] p) -> {
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException x) {
+          Thread.currentThread().interrupt();
+        }
+        return p[0];
+      });
+      Path file = Files.createTempFile("jmep",".jfr");
+      try (Recording recording = new Recording()) {
+        recording.enable("com.googlecode.jmep.ExpressionCompile");
+        recording.enable("com.googlecode.jmep.EnvironmentResolve");
+        recording.enable("com.googlecode.jmep.SlowEvaluation").withThreshold(Duration.ofMillis(1));
+        recording.start();
+        x = 1;
+        assertEquals(2L,(new Expression("pause(x) + x",env)).evaluate());
+        assertEquals(1L,(new Expression("x",env)).evaluate());
+        BasicEnvironment.getInstance().resolve();
+        env.register(BinaryOperatorType.ADD,String.class,String.class,(String a,String b) -> a + b);
+        env.resolve();
+        recording.stop();
+        recording.dump(file);
+      }
+      Map<String,RecordedEvent> events = new HashMap<>();
+      List<RecordedEvent> resolves = new ArrayList<>();
+      for (RecordedEvent event:RecordingFile.readAllEvents(file)) {
+        events.put(event.getEventType().getName(),event);
+        if (event.getEventType().getName().equals("com.googlecode.jmep.EnvironmentResolve")) resolves.add(event);
+      }
+      Files.delete(file);
+      assertEquals(3,events.size());
+      resolves.sort((RecordedEvent l,RecordedEvent r) -> l.getInt("operators") - r.getInt("operators"));
+      /* Only the addition is resolved again after registering it, not all operators */
+      RecordedEvent incremental = resolves.get(0);
+      RecordedEvent full = resolves.get(resolves.size() - 1);
+      assertTrue(incremental.getInt("operators") < full.getInt("operators"));
+      assertTrue(incremental.getInt("upgradedOperators") < full.getInt("upgradedOperators"));
+      RecordedEvent slow = events.get("com.googlecode.jmep.SlowEvaluation");
+      assertEquals("pause(x) + x",slow.getString("expression"));
+      assertEquals("pause",slow.getString("slowestFunction"));
+      assertTrue(events.get("com.googlecode.jmep.ExpressionCompile").getInt("tokenCount") > 0);
+      assertTrue(incremental.getInt("upgradedOperators") > 0);
+  }
+
+  /*
+   * A recording started at launch is running before FlightEvents gets loaded,
+   * so the classes are loaded again in a class loader of their own.
+   */
+  @Test public void flightEventsOfRunningRecording() throws Exception {
+      Path file = Files.createTempFile("jmep",".jfr");
+      try (Recording recording = new Recording()) {
+        recording.enable("com.googlecode.jmep.SlowEvaluation").withThreshold(Duration.ofMillis(1));
+        recording.start();
+        URL classes = Expression.class.getProtectionDomain().getCodeSource().getLocation();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {classes},ClassLoader.getPlatformClassLoader())) {
+          Class<?> functionClass = loader.loadClass("com.googlecode.jmep.function.Function");
+          Object pause = Proxy.newProxyInstance(loader,new Class<?>[] {functionClass},(Object proxy,Method method,Object [] args) -> {
+            if (method.getName().equals("specialize")) return proxy;
+            Thread.sleep(5);
+            return 1L;
+          });
+          Class<?> environmentClass = loader.loadClass("com.googlecode.jmep.Environment");
+          Object environment = loader.loadClass("com.googlecode.jmep.BasicEnvironment").getMethod("getInstance").invoke(null);
+          environmentClass.getMethod("addFunction",String.class,functionClass).invoke(environment,"pause",pause);
+          Class<?> expressionClass = loader.loadClass("com.googlecode.jmep.Expression");
+          Object expression = expressionClass.getConstructor(String.class,environmentClass).newInstance("pause(1)+1",environment);
+          assertEquals(2L,expressionClass.getMethod("evaluate").invoke(expression));
+        }
+        recording.stop();
+        recording.dump(file);
+      }
+      int slowEvaluations = 0;
+      for (RecordedEvent event:RecordingFile.readAllEvents(file)) {
+        if (event.getEventType().getName().equals("com.googlecode.jmep.SlowEvaluation")) slowEvaluations++;
+      }
+      Files.delete(file);
+      assertEquals(1,slowEvaluations);
+  }
+
+  private static String evaluateFile(String expression,String contents) throws Exception {
+      Path input = Files.createTempFile("jmep",".csv");
+      Path output = Files.createTempFile("jmep",".out");
+      try {
+        Files.write(input,contents.getBytes(StandardCharsets.UTF_8));
+        CommandLineTool.main(new String[] {expression,input.toString(),output.toString()});
+        return new String(Files.readAllBytes(output),StandardCharsets.UTF_8);
+      } finally {
+        Files.delete(input);
+        Files.delete(output);
+      }
+  }
+
+  @Test public void delimitedFile() throws Exception {
+      /* Blank lines are skipped for either line ending, empty fields are NaN */
+      assertEquals("3\n7.5\nNaN\n",evaluateFile("a+b","a,b\n1,2\n\n3,4.5\r\n\r\n5,\n"));
+      assertEquals("3\n7\n",evaluateFile("a+b","a,b\r\n1,2\r\n3,4\r\n"));
+      /* Columns are mapped by name, unused columns are not parsed */
+      assertEquals("-1\n10\n",evaluateFile("b-a*2","\uFEFFb,skip,\"a\"\n1,x,1\n20,\"y,z\",5\n"));
+      assertEquals("6\n",evaluateFile("c*2","a\tc\n1\t3"));
+      assertEquals("NaN\n",evaluateFile("a+b","a,b\n1"));
+  }
+
+  @Test public void parallelFromPoolThreads() throws Exception {
+      int rows = 100000;
+      double [] rates = new double[rows];
+      for (int i = 0; i < rows; i++) rates[i] = i;
+      Map<String,Object> columns = new HashMap<>();
+      columns.put("x",rates);
+      final Expression expression = new Expression("x*2",env);
+      /* Every thread of the pool evaluates in parallel on that same pool */
+      ForkJoinPool pool = new ForkJoinPool(2);
+      try {
+        List<Future<double []>> results = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+          results.add(pool.submit(() -> {
+            double [] out = new double[rows];
+            expression.evaluateParallel(RowSource.of(columns,rows),ResultSink.of(out),pool);
+            return out;
+          }));
+        }
+        for (Future<double []> result:results) {
+          double [] out = result.get(30,TimeUnit.SECONDS);
+          assertEquals(2.0 * (rows - 1),out[rows - 1],0.0);
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+  }
+
+}